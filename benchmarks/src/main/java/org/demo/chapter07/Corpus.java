@@ -0,0 +1,76 @@
+package org.demo.chapter07;
+
+import java.util.Random;
+
+/**
+ * 基准测试使用的合成语料
+ * 使用固定的随机数种子生成,每次运行得到的数据都完全相同.
+ * 单词的出现频率服从近似的Zipf分布,并混入停用词、大写字母、单引号以及标点符号.
+ */
+public class Corpus {
+
+    private final static String[] STOP_WORDS = ("the of and to in is it that for on with as " +
+            "was he be at by this had not are but from or have an they which").split(" ");
+    private final static String[] PUNCTUATION = {" ", " ", " ", " ", ", ", ". ", "; ", "\n"};
+
+    private final Random random;
+    //词汇表
+    private final String[] vocabulary;
+
+    /**
+     * @param seed           随机数种子
+     * @param vocabularySize 词汇表大小
+     */
+    public Corpus(long seed, int vocabularySize) {
+        this.random = new Random(seed);
+        this.vocabulary = new String[vocabularySize];
+        for (int i = 0; i < vocabularySize; i++) {
+            vocabulary[i] = word(i);
+        }
+    }
+
+    //把序号转换为一个由小写字母组成的单词,例如0->"aab"
+    private static String word(int index) {
+        StringBuilder builder = new StringBuilder("aa");
+        do {
+            builder.append((char) ('a' + index % 26));
+            index /= 26;
+        } while (index > 0);
+        return builder.toString();
+    }
+
+    /**
+     * 随机选取一个单词,序号越小的单词出现的概率越大
+     */
+    public String nextWord() {
+        double u = random.nextDouble();
+        int index = (int) Math.floor(Math.pow(vocabulary.length, u)) - 1;
+        return vocabulary[Math.max(0, Math.min(index, vocabulary.length - 1))];
+    }
+
+    /**
+     * 生成一篇文档
+     *
+     * @param words 文档包含的单词数量
+     * @return 文档内容
+     */
+    public String document(int words) {
+        StringBuilder builder = new StringBuilder(words * 8);
+        for (int i = 0; i < words; i++) {
+            int r = random.nextInt(100);
+            if (r < 30) {
+                builder.append(STOP_WORDS[random.nextInt(STOP_WORDS.length)]);
+            } else if (r < 33) {
+                builder.append('\'').append(nextWord()).append('\'');
+            } else if (r < 38) {
+                String word = nextWord();
+                builder.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+            } else {
+                builder.append(nextWord());
+            }
+            builder.append(PUNCTUATION[random.nextInt(PUNCTUATION.length)]);
+        }
+        return builder.toString();
+    }
+
+}
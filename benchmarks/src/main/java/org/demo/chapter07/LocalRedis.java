@@ -0,0 +1,157 @@
+package org.demo.chapter07;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+
+/**
+ * 基准测试使用的Redis
+ * <p>
+ * 默认在本机的一个随机端口上启动一个新的redis-server进程(不持久化),基准测试结束时关闭,
+ * 不会影响任何已有的数据.redis-server的路径可以通过-Dredis.server指定,默认从PATH中查找.
+ * 指定了-Dredis.port时改为连接一个已有的Redis,同时可以指定-Dredis.host、-Dredis.password和-Dredis.db,
+ * 这个数据库在基准测试开始时会被清空.
+ */
+public class LocalRedis {
+
+    //连接和命令的超时时间,准备数据时的批量命令可能需要较长时间
+    private final static int TIMEOUT = 600000;
+
+    private final String host;
+    private final int port;
+    private final String password;
+    private final int db;
+    //启动的redis-server进程,连接已有的Redis时为null
+    private final Process process;
+
+    private LocalRedis(String host, int port, String password, int db, Process process) {
+        this.host = host;
+        this.port = port;
+        this.password = password;
+        this.db = db;
+        this.process = process;
+    }
+
+    /**
+     * 启动一个redis-server进程,或者连接系统属性指定的Redis
+     *
+     * @return Redis
+     */
+    public static LocalRedis start() {
+        if (null != System.getProperty("redis.port")) {
+            LocalRedis redis = new LocalRedis(System.getProperty("redis.host", "127.0.0.1"),
+                    Integer.getInteger("redis.port"), System.getProperty("redis.password", ""),
+                    Integer.getInteger("redis.db", 15), null);
+            Jedis conn = redis.connect();
+            conn.flushDB();
+            conn.close();
+            return redis;
+        }
+        int port = freePort();
+        Process process;
+        try {
+            process = new ProcessBuilder(System.getProperty("redis.server", "redis-server"),
+                    "--port", String.valueOf(port), "--bind", "127.0.0.1",
+                    "--save", "", "--appendonly", "no", "--dir", System.getProperty("java.io.tmpdir"))
+                    .redirectErrorStream(true)
+                    .redirectOutput(new File(System.getProperty("java.io.tmpdir"), "redis-bench-" + port + ".log"))
+                    .start();
+        } catch (IOException e) {
+            throw new IllegalStateException("无法启动redis-server,可以通过-Dredis.server指定路径", e);
+        }
+        LocalRedis redis = new LocalRedis("127.0.0.1", port, "", 0, process);
+        redis.awaitReady();
+        return redis;
+    }
+
+    //通过绑定0端口让操作系统分配一个空闲端口
+    private static int freePort() {
+        try {
+            ServerSocket socket = new ServerSocket(0);
+            try {
+                return socket.getLocalPort();
+            } finally {
+                socket.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    //等待redis-server开始接受连接
+    private void awaitReady() {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try {
+                Jedis conn = connect();
+                conn.ping();
+                conn.close();
+                return;
+            } catch (JedisConnectionException e) {
+                if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+                    stop();
+                    throw new IllegalStateException("redis-server没有在端口" + port + "上启动", e);
+                }
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(interrupted);
+                }
+            }
+        }
+    }
+
+    /**
+     * 创建一个新的连接
+     *
+     * @return 连接
+     */
+    public Jedis connect() {
+        Jedis conn = new Jedis(host, port, TIMEOUT);
+        if (!password.isEmpty()) {
+            conn.auth(password);
+        }
+        if (db != 0) {
+            conn.select(db);
+        }
+        return conn;
+    }
+
+    /**
+     * 创建一个连接池
+     *
+     * @param size 最大连接数
+     * @return 连接池
+     */
+    public JedisPool pool(int size) {
+        GenericObjectPoolConfig config = new GenericObjectPoolConfig();
+        config.setMaxTotal(size);
+        config.setMaxIdle(size);
+        return new JedisPool(config, host, port, TIMEOUT, password.isEmpty() ? null : password, db);
+    }
+
+    /**
+     * 关闭启动的redis-server进程,连接已有的Redis时清空使用的数据库
+     */
+    public void stop() {
+        if (null == process) {
+            Jedis conn = connect();
+            conn.flushDB();
+            conn.close();
+            return;
+        }
+        process.destroy();
+        try {
+            process.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
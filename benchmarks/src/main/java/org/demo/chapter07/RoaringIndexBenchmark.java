@@ -0,0 +1,128 @@
+package org.demo.chapter07;
+
+import org.openjdk.jmh.annotations.*;
+import org.roaringbitmap.buffer.MutableRoaringBitmap;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.util.SafeEncoder;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 集合索引与位图索引的查询对比
+ * <p>
+ * 使用LocalRedis启动的Redis(或者通过-Dredis.port等系统属性指定的数据库,setup阶段会清空这个数据库),
+ * 直接写入四个单词的索引集合和位图,
+ * 每个文档以固定的概率包含各个单词,所有单词包含的文档数量之和约等于postings.
+ * 集合索引在1亿个文档id时需要数GB内存,运行之前先确认Redis的maxmemory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoaringIndexBenchmark {
+
+    private final static String QUERY = "apple +banana cherry -damson";
+    private final static String[] WORDS = {"apple", "banana", "cherry", "damson"};
+    //每个文档包含各个单词的概率
+    private final static double[] DENSITY = {0.3, 0.1, 0.5, 0.05};
+
+    //所有单词的索引包含的文档数量之和
+    @Param({"1000000", "10000000", "100000000"})
+    public int postings;
+
+    private LocalRedis redis;
+    private Jedis conn;
+    private MyES es;
+    private RoaringIndex index;
+    private ExecutorService executor;
+    private MyES.Query query;
+
+    @Setup
+    public void setup() {
+        redis = LocalRedis.start();
+        conn = redis.connect();
+
+        es = new MyES();
+        es.setConn(conn);
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        index = new RoaringIndex();
+        index.setConn(conn);
+        index.setEs(es);
+        index.setExecutor(executor);
+        query = es.parse(QUERY);
+
+        double total = 0;
+        for (double density : DENSITY) {
+            total += density;
+        }
+        int documents = (int) (postings / total);
+        Random random = new Random(42);
+        for (int w = 0; w < WORDS.length; w++) {
+            MutableRoaringBitmap bitmap = new MutableRoaringBitmap();
+            Pipeline pipeline = conn.pipelined();
+            String[] batch = new String[10000];
+            int size = 0;
+            for (int doc = 0; doc < documents; doc++) {
+                if (random.nextDouble() >= DENSITY[w]) {
+                    continue;
+                }
+                bitmap.add(doc);
+                batch[size++] = String.valueOf(doc);
+                if (size == batch.length) {
+                    pipeline.sadd(es.idxKey(WORDS[w]), batch);
+                    size = 0;
+                }
+            }
+            if (size > 0) {
+                String[] rest = new String[size];
+                System.arraycopy(batch, 0, rest, 0, size);
+                pipeline.sadd(es.idxKey(WORDS[w]), rest);
+            }
+            pipeline.sync();
+
+            bitmap.runOptimize();
+            ByteBuffer buffer = ByteBuffer.allocate(bitmap.serializedSizeInBytes());
+            bitmap.serialize(buffer);
+            conn.set(SafeEncoder.encode(index.bitmapKey(WORDS[w])), buffer.array());
+            System.out.println("\n" + WORDS[w] + ": " + bitmap.getCardinality() + " postings, bitmap "
+                    + buffer.capacity() + " bytes");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        conn.close();
+        redis.stop();
+        executor.shutdown();
+    }
+
+    //在Redis中计算交集、并集和差集
+    @Benchmark
+    public String setSearch() {
+        String id = es.parseAndSearch(QUERY, 1);
+        conn.del(es.idxKey(id));
+        return id;
+    }
+
+    //在客户端计算,并把结果写入临时集合
+    @Benchmark
+    public String roaringSearch() {
+        String id = index.parseAndSearch(QUERY, 1);
+        conn.del(es.idxKey(id));
+        return id;
+    }
+
+    //只在客户端计算,不写回结果
+    @Benchmark
+    public int roaringEvaluate() {
+        return index.evaluate(query).getCardinality();
+    }
+
+}
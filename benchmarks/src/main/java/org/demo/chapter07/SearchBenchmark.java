@@ -0,0 +1,122 @@
+package org.demo.chapter07;
+
+import com.google.common.collect.Maps;
+import org.demo.commons.Page;
+import org.openjdk.jmh.annotations.*;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 搜索相关操作的基准测试
+ * <p>
+ * 每个参数组合都使用LocalRedis启动一个新的Redis,通过indexDocuments写入corpus篇合成文档,
+ * 并为每篇文档写入排序需要的文档散列(kb:doc:文档id)以及searchAndZsort使用的两个排序有序集合.
+ * 语料和查询都由固定的随机数种子生成,每次运行的数据完全相同.
+ * 查询中的单词按照在语料中的出现频率选取,常见单词的索引集合大小与corpus成正比.
+ * <p>
+ * 查询结果的缓存时间为1秒,每次查询之后删除结果集合,避免查询结果在测量期间占满内存.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+
+    //Corpus生成的单词按照序号越小越常见,aaa最常见,这里使用第2到第5常见的单词
+    private final static String QUERY = "aab +aac aad -aae";
+    //每篇文档包含的单词数量
+    private final static int WORDS = 100;
+    //indexDocument每次改写的文档数量
+    private final static int REWRITES = 1000;
+
+    //文档数量
+    @Param({"1000", "10000", "100000"})
+    public int corpus;
+
+    private LocalRedis redis;
+    private Jedis conn;
+    private MyES es;
+    //indexDocument使用的两组文档内容,交替写入,每次都会产生实际的索引变化
+    private String[][] rewrites;
+    private int next;
+
+    @Setup
+    public void setup() {
+        redis = LocalRedis.start();
+        conn = redis.connect();
+        es = new MyES();
+        es.setConn(conn);
+
+        Corpus generator = new Corpus(42, 20000);
+        Random random = new Random(42);
+        Map<String, String> documents = Maps.newLinkedHashMap();
+        Pipeline pipeline = conn.pipelined();
+        for (int i = 0; i < corpus; i++) {
+            String docid = String.valueOf(i);
+            documents.put(docid, generator.document(WORDS));
+            Map<String, String> fields = Maps.newHashMap();
+            fields.put("id", docid);
+            fields.put("updated", String.valueOf(1500000000 + random.nextInt(100000000)));
+            pipeline.hmset(es.contentKey(docid), fields);
+            pipeline.zadd(es.idxKey("sort:update"), Double.parseDouble(fields.get("updated")), docid);
+            pipeline.zadd(es.idxKey("sort:votes"), random.nextInt(1000), docid);
+            if (documents.size() == 1000) {
+                pipeline.sync();
+                es.indexDocuments(documents);
+                documents.clear();
+                pipeline = conn.pipelined();
+            }
+        }
+        pipeline.sync();
+        es.indexDocuments(documents);
+
+        rewrites = new String[2][REWRITES];
+        for (int i = 0; i < REWRITES; i++) {
+            rewrites[0][i] = generator.document(WORDS);
+            rewrites[1][i] = generator.document(WORDS);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        conn.close();
+        redis.stop();
+    }
+
+    //改写一篇已有的文档,只更新发生了变化的单词的索引
+    @Benchmark
+    public int indexDocument() {
+        int i = next++;
+        return es.indexDocument(String.valueOf(i % REWRITES), rewrites[(i / REWRITES) % 2][i % REWRITES]);
+    }
+
+    @Benchmark
+    public String parseAndSearch() {
+        String id = es.parseAndSearch(QUERY, 1);
+        conn.del(es.idxKey(id));
+        return id;
+    }
+
+    @Benchmark
+    public MyES.SearchResult searchAndSort() {
+        MyES.SearchResult result = es.searchAndSort(QUERY, "", 1, "-updated", new Page(1, 20));
+        conn.del(es.idxKey(result.id));
+        return result;
+    }
+
+    @Benchmark
+    public MyES.SearchResult searchAndZsort() {
+        MyES.SearchResult result = es.searchAndZsort(QUERY, "", 1, true,
+                Collections.<String, Integer>emptyMap(), new Page(1, 20));
+        conn.del(es.idxKey(result.id));
+        return result;
+    }
+
+}
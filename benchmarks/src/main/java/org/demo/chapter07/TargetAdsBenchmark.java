@@ -0,0 +1,116 @@
+package org.demo.chapter07;
+
+import org.javatuples.Pair;
+import org.openjdk.jmh.annotations.*;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 广告定向的基准测试
+ * <p>
+ * 使用LocalRedis启动一个新的Redis,写入ads个合成广告:每个广告随机投放到LOCATIONS个地区中的两个,
+ * 广告内容为30个单词,计费方式和价格随机.每次定向从预先生成的页面中依次选取一个页面和三个地区.
+ * 定向会记录展示次数等统计数据,所以测量期间数据量会缓慢增长.
+ * <p>
+ * scoped为true时设置TempKeyManager,定向过程中的临时有序集合在事务结束时删除,
+ * 为false时这些临时有序集合要等待30秒之后才会过期.
+ * mode为script时通过脚本在一次通信往返里面完成定向和记录,为replica时在进程内的AdIndexReplica中定向,
+ * 展示记录由后台线程每100毫秒写入一次,这两种方式不创建临时有序集合,scoped没有影响.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TargetAdsBenchmark {
+
+    private final static int LOCATIONS = 50;
+    private final static int PAGES = 100;
+
+    //广告数量
+    @Param({"100", "1000", "10000"})
+    public int ads;
+
+    //是否删除临时结果
+    @Param({"false", "true"})
+    public boolean scoped;
+
+    //定向方式: 事务、脚本或者进程内的副本
+    @Param({"transaction", "script", "replica"})
+    public String mode;
+
+    private LocalRedis redis;
+    private Jedis conn;
+    private AdvertisingDirected ad;
+    private JedisPool pool;
+    private AdIndexReplica replica;
+    private String[] pages;
+    private String[][] locations;
+    private int next;
+
+    @Setup
+    public void setup() {
+        redis = LocalRedis.start();
+        conn = redis.connect();
+        MyES es = new MyES();
+        es.setConn(conn);
+        if (scoped) {
+            es.setTempKeyManager(new TempKeyManager());
+        }
+        ad = new AdvertisingDirected();
+        ad.setConn(conn);
+        ad.setEs(es);
+        ad.setUseScript("script".equals(mode));
+
+        Corpus generator = new Corpus(42, 20000);
+        Random random = new Random(42);
+        AdvertisingDirected.Ecpm[] types = AdvertisingDirected.Ecpm.values();
+        for (int i = 0; i < ads; i++) {
+            String[] targets = {location(random), location(random)};
+            ad.indexAd(String.valueOf(i), targets, generator.document(30),
+                    types[random.nextInt(types.length)], 0.1 + random.nextInt(100) / 100.0);
+        }
+
+        pages = new String[PAGES];
+        locations = new String[PAGES][];
+        for (int i = 0; i < PAGES; i++) {
+            pages[i] = generator.document(200);
+            locations[i] = new String[]{location(random), location(random), location(random)};
+        }
+
+        if ("replica".equals(mode)) {
+            pool = redis.pool(4);
+            replica = new AdIndexReplica(es, new IndexFeed("ads:feed:", 10000), pool);
+            replica.load();
+            replica.start(100, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static String location(Random random) {
+        return "L" + random.nextInt(LOCATIONS);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (null != replica) {
+            replica.stop();
+            pool.close();
+        }
+        conn.close();
+        redis.stop();
+    }
+
+    @Benchmark
+    public Pair<Long, String> targetAds() {
+        int i = next++ % PAGES;
+        if (null != replica) {
+            return replica.targetAds(locations[i], pages[i]);
+        }
+        return ad.targetAds(locations[i], pages[i]);
+    }
+
+}
@@ -0,0 +1,87 @@
+package org.demo.chapter07;
+
+import com.google.common.collect.Sets;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 分词性能对比
+ * regex: 原来基于正则表达式的实现(先生成小写副本,每个匹配都创建字符串)
+ * tokenizeSet: MyES.tokenize,逐字符扫描,只为保留下来的单词创建字符串
+ * tokenizeCallback: 逐字符扫描并通过回调处理单词,不创建任何字符串
+ * <p>
+ * 使用-prof gc可以同时观察每次操作分配的内存
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenizeBenchmark {
+
+    private final static Pattern WORDS_RE = Pattern.compile("[a-z']{2,}");
+
+    //文档包含的单词数量
+    @Param({"100", "10000", "1000000"})
+    public int words;
+
+    private String content;
+    private MyES es;
+    private Set<String> stopWords;
+    private Tokenizer tokenizer;
+
+    @Setup
+    public void setup() {
+        content = new Corpus(42, 50000).document(words);
+        es = new MyES();
+        //与MyES使用的停用词保持一致
+        stopWords = Sets.newHashSet(("able about across after all almost also am among " +
+                "an and any are as at be because been but by can " +
+                "cannot could dear did do does either else ever " +
+                "every for from get got had has have he her hers " +
+                "him his how however if in into is it its just " +
+                "least let like likely may me might most must my " +
+                "neither no nor not of off often on only or other " +
+                "our own rather said say says she should since so " +
+                "some than that the their them then there these " +
+                "they this tis to too twas us wants was we were " +
+                "what when where which while who whom why will " +
+                "with would yet you your").split(" "));
+        tokenizer = new Tokenizer(stopWords);
+    }
+
+    @Benchmark
+    public Set<String> regex() {
+        Set<String> result = Sets.newHashSet();
+        Matcher matcher = WORDS_RE.matcher(content.toLowerCase());
+        while (matcher.find()) {
+            String word = matcher.group().trim();
+            word.replace("'", "");
+            if (word.length() >= 2 && !stopWords.contains(word)) {
+                result.add(word);
+            }
+        }
+        return result;
+    }
+
+    @Benchmark
+    public Set<String> tokenizeSet() {
+        return es.tokenize(content);
+    }
+
+    @Benchmark
+    public void tokenizeCallback(final Blackhole blackhole) {
+        tokenizer.tokenize(content, new Tokenizer.TokenCallback() {
+            public void token(char[] buffer, int offset, int length, int position) {
+                blackhole.consume(buffer[offset] + length);
+            }
+        });
+    }
+
+}
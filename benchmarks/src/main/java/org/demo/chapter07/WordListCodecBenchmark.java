@@ -0,0 +1,50 @@
+package org.demo.chapter07;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单词列表编码方式对比
+ * 同时在setup阶段输出每种编码方式编码之后的字节数
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WordListCodecBenchmark {
+
+    //文档包含的单词数量
+    @Param({"100", "1000", "10000"})
+    public int words;
+
+    @Param({"json", "frontCoded"})
+    public String codec;
+
+    private WordListCodec wordListCodec;
+    private Set<String> tokens;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() {
+        wordListCodec = "json".equals(codec) ? WordListCodecs.JSON_CODEC : WordListCodecs.FRONT_CODED;
+        tokens = new MyES().tokenize(new Corpus(42, 50000).document(words));
+        encoded = wordListCodec.encode(tokens);
+        System.out.println("\n" + codec + ": " + tokens.size() + " words, " + encoded.length + " bytes");
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return wordListCodec.encode(tokens);
+    }
+
+    @Benchmark
+    public List<String> decode() {
+        return WordListCodecs.decode(encoded);
+    }
+
+}
@@ -0,0 +1,368 @@
+package org.demo.chapter07;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import lombok.AllArgsConstructor;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 广告展示和点击计数的缓冲区
+ * <p>
+ * recordTargetingResult和recordClick在请求线程中执行一个事务,每个匹配的单词都需要一个ZINCRBY,
+ * 热门广告的同一个计数器在短时间内会被加很多次.设置了AdCounters之后,这些增量先累加到内存中
+ * 每个广告每个单词一个的LongAdder里面,每隔一段时间或者每maxEvents次展示和点击,
+ * 由后台线程通过一个流水线写入Redis,同一个计数器无论增加多少次都只需要一个INCRBY或ZINCRBY.
+ * 停止时会写入剩余的增量.
+ * <p>
+ * 每次写入的增量在同一个事务(MULTI/EXEC)中执行,写入失败时Redis中不会留下其中一部分,
+ * 取出的增量会被放回并由下一次写入重试.但是EXEC执行之后回复在网络中丢失时,重试会把这些增量再写入一次,
+ * 所以写入的语义是至少一次(at-least-once),重试可能让计数偏大.
+ * <p>
+ * 写入之前进程退出会丢失这部分计数,点击也需要在展示记录写入之后才能找到匹配的单词,
+ * 所以写入间隔应该远小于terms:matched:的15分钟生存时间.
+ * 广告展示次数跨过100的整数倍时,写入之后同样会把广告标记为需要更新eCPM.
+ * AdvertisingDirected使用脚本定向时,展示在脚本里面记录,不经过这里.
+ */
+public class AdCounters {
+
+    private final JedisPool pool;
+    //累积多少次展示和点击之后立即写入
+    private final int maxEvents;
+
+    //计数器 -> 增量, 对应INCRBY
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+    //有序集合 -> 成员 -> 增量, 对应ZINCRBY
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, LongAdder>> scores =
+            new ConcurrentHashMap<String, ConcurrentHashMap<String, LongAdder>>();
+    //等待写入的匹配单词集合, 没有单词时只刷新生存时间
+    private final ConcurrentLinkedQueue<Matched> matched = new ConcurrentLinkedQueue<Matched>();
+    //被点击过的广告, 写入时标记为需要更新eCPM
+    private final Set<String> clicked = Sets.newConcurrentHashSet();
+
+    //上一次写入之后的展示和点击次数
+    private final AtomicInteger events = new AtomicInteger();
+    //是否已经提交了一次写入
+    private final AtomicBoolean flushing = new AtomicBoolean();
+    //同一时间只进行一次写入
+    private final Object flushLock = new Object();
+    private final BackgroundTask task = new BackgroundTask(new Runnable() {
+        public void run() {
+            flush();
+        }
+    });
+
+    public AdCounters(JedisPool pool, int maxEvents) {
+        this.pool = pool;
+        this.maxEvents = maxEvents;
+    }
+
+    /**
+     * 记录一次展示,与AdvertisingDirected.recordTargetingResult写入相同的数据
+     *
+     * @param targetId 定向id
+     * @param adId     广告id
+     * @param type     广告计费方式
+     * @param terms    内容与广告相匹配的单词
+     */
+    public void recordView(long targetId, String adId, String type, Set<String> terms) {
+        if (terms.size() > 0) {
+            matched.add(new Matched("terms:matched:" + targetId, terms));
+        }
+        counter("type:" + type + ":views").increment();
+        for (String term : terms) {
+            score("views:" + adId, term).increment();
+        }
+        score("views:" + adId, "").increment();
+        event();
+    }
+
+    /**
+     * 记录一次点击或者动作,与AdvertisingDirected.recordClick写入相同的数据
+     *
+     * @param targetId 定向id
+     * @param adId     广告id
+     * @param type     广告计费方式
+     * @param words    被定向至该广告的单词, 包括代表广告本身的空字符串
+     * @param action   是否执行动作
+     */
+    public void recordClick(long targetId, String adId, AdvertisingDirected.Ecpm type, Set<String> words,
+                            boolean action) {
+        String name = type.name().toLowerCase();
+        String clickKey = "clicks:" + adId;
+        if (AdvertisingDirected.Ecpm.CPA.equals(type)) {
+            //刷新匹配单词的生存时间
+            matched.add(new Matched("terms:matched:" + targetId, null));
+            if (action) {
+                clickKey = "actions:" + adId;
+            }
+        }
+        if (action && AdvertisingDirected.Ecpm.CPA.equals(type)) {
+            counter("type:" + name + ":actions:").increment();
+        } else {
+            counter("type:" + name + ":clicks:").increment();
+        }
+        for (String word : words) {
+            score(clickKey, word).increment();
+        }
+        clicked.add(adId);
+        event();
+    }
+
+    private LongAdder counter(String key) {
+        LongAdder adder = counters.get(key);
+        if (null == adder) {
+            LongAdder created = new LongAdder();
+            adder = counters.putIfAbsent(key, created);
+            if (null == adder) {
+                adder = created;
+            }
+        }
+        return adder;
+    }
+
+    private LongAdder score(String key, String member) {
+        ConcurrentHashMap<String, LongAdder> members = scores.get(key);
+        if (null == members) {
+            ConcurrentHashMap<String, LongAdder> created = new ConcurrentHashMap<String, LongAdder>();
+            members = scores.putIfAbsent(key, created);
+            if (null == members) {
+                members = created;
+            }
+        }
+        LongAdder adder = members.get(member);
+        if (null == adder) {
+            LongAdder created = new LongAdder();
+            adder = members.putIfAbsent(member, created);
+            if (null == adder) {
+                adder = created;
+            }
+        }
+        return adder;
+    }
+
+    //累积了maxEvents次之后让后台线程立即写入,请求线程不会等待写入完成
+    private void event() {
+        if (events.incrementAndGet() < maxEvents) {
+            return;
+        }
+        //没有启动或者正在停止时不提交,剩余的增量由stop写入
+        if (flushing.compareAndSet(false, true) && !task.runNow()) {
+            flushing.set(false);
+        }
+    }
+
+    /**
+     * 把累积的增量写入Redis
+     * 读取增量的同时把它清零,写入期间新增的计数会留到下一次写入.
+     * 写入失败时读取的增量、匹配的单词和被点击的广告会被放回,由下一次写入重试.
+     * 计数器对应的key不会被删除,数量与广告和单词的数量成正比.
+     *
+     * @return 写入的计数器数量
+     */
+    public int flush() {
+        Jedis client = pool.getResource();
+        try {
+            return flush(client);
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * 使用指定的连接写入累积的增量
+     *
+     * @param client 连接
+     * @return 写入的计数器数量
+     */
+    int flush(Jedis client) {
+        synchronized (flushLock) {
+            flushing.set(false);
+            events.set(0);
+            Pending pending = takePending();
+            List<ViewCount> views;
+            try {
+                views = write(client, pending);
+            } catch (RuntimeException e) {
+                restore(pending);
+                throw e;
+            }
+
+            //广告本身的展示次数跨过了100的整数倍时标记为需要更新eCPM
+            List<String> dirty = Lists.newArrayList();
+            for (ViewCount view : views) {
+                double total = view.total.get();
+                if ((long) (total / 100) > (long) ((total - view.delta) / 100)) {
+                    dirty.add(view.adId);
+                }
+            }
+            if (!dirty.isEmpty()) {
+                try {
+                    client.sadd(AdvertisingDirected.DIRTY_KEY, dirty.toArray(new String[dirty.size()]));
+                } catch (RuntimeException e) {
+                    //计数已经写入,只需要在下一次写入时再标记这些广告
+                    clicked.addAll(dirty);
+                    throw e;
+                }
+            }
+            return pending.size();
+        }
+    }
+
+    //取出并清零累积的增量
+    private Pending takePending() {
+        Pending pending = new Pending();
+        for (Matched entry = matched.poll(); null != entry; entry = matched.poll()) {
+            pending.matched.add(entry);
+        }
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            long delta = entry.getValue().sumThenReset();
+            if (delta > 0) {
+                pending.counters.put(entry.getKey(), delta);
+            }
+        }
+        for (Map.Entry<String, ConcurrentHashMap<String, LongAdder>> entry : scores.entrySet()) {
+            Map<String, Long> members = Maps.newHashMap();
+            for (Map.Entry<String, LongAdder> member : entry.getValue().entrySet()) {
+                long delta = member.getValue().sumThenReset();
+                if (delta > 0) {
+                    members.put(member.getKey(), delta);
+                }
+            }
+            if (!members.isEmpty()) {
+                pending.scores.put(entry.getKey(), members);
+            }
+        }
+        for (Iterator<String> iterator = clicked.iterator(); iterator.hasNext(); ) {
+            pending.clicked.add(iterator.next());
+            iterator.remove();
+        }
+        return pending;
+    }
+
+    //把写入失败的增量加回去,期间新增的计数不受影响
+    private void restore(Pending pending) {
+        matched.addAll(pending.matched);
+        for (Map.Entry<String, Long> entry : pending.counters.entrySet()) {
+            counter(entry.getKey()).add(entry.getValue());
+        }
+        for (Map.Entry<String, Map<String, Long>> entry : pending.scores.entrySet()) {
+            for (Map.Entry<String, Long> member : entry.getValue().entrySet()) {
+                score(entry.getKey(), member.getKey()).add(member.getValue());
+            }
+        }
+        clicked.addAll(pending.clicked);
+    }
+
+    //通过一个流水线在事务中写入取出的增量,返回广告本身的展示次数
+    private List<ViewCount> write(Jedis client, Pending pending) {
+        List<ViewCount> views = Lists.newArrayList();
+        Pipeline pipeline = client.pipelined();
+        //事务保证失败时Redis中不会留下一部分增量,放回的增量重试时不会被重复计算
+        pipeline.multi();
+        //先写入匹配的单词,再刷新它们的生存时间
+        for (Matched entry : pending.matched) {
+            if (null != entry.words) {
+                pipeline.sadd(entry.key, entry.words.toArray(new String[entry.words.size()]));
+            }
+            pipeline.expire(entry.key, 900);
+        }
+        for (Map.Entry<String, Long> entry : pending.counters.entrySet()) {
+            pipeline.incrBy(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Map<String, Long>> entry : pending.scores.entrySet()) {
+            String key = entry.getKey();
+            for (Map.Entry<String, Long> member : entry.getValue().entrySet()) {
+                Response<Double> total = pipeline.zincrby(key, member.getValue(), member.getKey());
+                if (key.startsWith("views:") && member.getKey().isEmpty()) {
+                    views.add(new ViewCount(key.substring("views:".length()), member.getValue(), total));
+                }
+            }
+        }
+        for (String adId : pending.clicked) {
+            pipeline.sadd(AdvertisingDirected.DIRTY_KEY, adId);
+        }
+        pipeline.exec();
+        pipeline.sync();
+        return views;
+    }
+
+    /**
+     * 启动后台线程,每隔interval写入一次
+     *
+     * @param interval 间隔时间
+     * @param unit     时间单位
+     */
+    public void start(long interval, TimeUnit unit) {
+        task.start(interval, unit);
+    }
+
+    /**
+     * 停止后台线程,并写入剩余的增量
+     */
+    public void stop() {
+        if (task.stop()) {
+            flush();
+        }
+    }
+
+    /**
+     * 一次写入取出的增量
+     */
+    private static class Pending {
+        final List<Matched> matched = Lists.newArrayList();
+        //计数器 -> 增量
+        final Map<String, Long> counters = Maps.newHashMap();
+        //有序集合 -> 成员 -> 增量
+        final Map<String, Map<String, Long>> scores = Maps.newHashMap();
+        final List<String> clicked = Lists.newArrayList();
+
+        //写入的计数器数量
+        int size() {
+            int size = counters.size();
+            for (Map<String, Long> members : scores.values()) {
+                size += members.size();
+            }
+            return size;
+        }
+    }
+
+    /**
+     * 等待写入的匹配单词
+     */
+    @AllArgsConstructor
+    private static class Matched {
+        //terms:matched:定向id
+        final String key;
+        //匹配的单词, 为null时只刷新生存时间
+        final Set<String> words;
+    }
+
+    /**
+     * 一次写入的广告展示次数
+     */
+    @AllArgsConstructor
+    private static class ViewCount {
+        //广告id
+        final String adId;
+        //这次写入的增量
+        final long delta;
+        //写入之后的展示次数
+        final Response<Double> total;
+    }
+
+}
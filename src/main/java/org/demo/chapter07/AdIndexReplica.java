@@ -0,0 +1,517 @@
+package org.demo.chapter07;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import lombok.AllArgsConstructor;
+import lombok.Setter;
+import org.javatuples.Pair;
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.RoaringBitmap;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Tuple;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 广告定向索引在进程内的副本
+ * <p>
+ * 广告(位置集合、单词附加值、eCPM)的变化远远少于定向请求,AdvertisingDirected.targetAds
+ * 每次却都要在Redis里面执行几十个集合运算.这里把定向需要的索引复制到JVM里面:
+ * 每个广告分配一个整数编号,每个位置和每个单词保存一个包含广告编号的RoaringBitmap,
+ * 广告的eCPM和单词附加值按编号保存,定向的集合运算和评分全部在内存中完成,不需要访问Redis.
+ * <p>
+ * 副本先通过load从Redis读取一份快照,之后由refresh读取AdvertisingDirected.adFeed中的变更记录,
+ * 只重新读取发生变化的广告.变更记录由indexAd和eCPM的重新计算写入,所以副本与Redis之间
+ * 最多相差一个刷新间隔.
+ * <p>
+ * 定向id以块为单位通过INCRBY分配,展示记录(匹配的单词、展示次数、需要更新的标记)放进队列,
+ * 由flush通过流水线批量写入(设置了AdCounters时交给AdCounters累积),所以点击需要在写入之后才能找到匹配的单词.
+ * <p>
+ * targetAds可以被多个线程同时调用;MyES设置了单词字典时,查找单词编号仍然需要访问Redis.
+ * 副本不处理广告的删除,AdvertisingDirected也没有删除广告的操作.
+ */
+public class AdIndexReplica {
+
+    private final MyES es;
+    //广告索引变更记录,必须与AdvertisingDirected.adFeed使用相同的前缀
+    private final IndexFeed feed;
+    private final JedisPool pool;
+    //每次分配的定向id数量
+    @Setter
+    private int idBlockSize = 1000;
+    //每次读取的变更记录数量
+    @Setter
+    private int batchSize = 1000;
+    //展示和点击计数的缓冲区,设置之后展示记录交给它累积,不再进入下面的队列
+    @Setter
+    private AdCounters counters;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    //广告id -> 编号
+    private Map<String, Integer> numbers = Maps.newHashMap();
+    //编号 -> 广告
+    private List<Ad> ads = Lists.newArrayList();
+    //位置 -> 广告编号
+    private Map<String, RoaringBitmap> locations = Maps.newHashMap();
+    //单词 -> 广告编号
+    private Map<String, RoaringBitmap> terms = Maps.newHashMap();
+    //已经处理的最大变更序号
+    private long seq;
+
+    //下一个可用的定向id, 以及当前块中最大的定向id
+    private long nextTargetId = 1;
+    private long lastTargetId;
+    //分配定向id时使用的锁,load和refresh使用对象本身的锁,分配定向id不需要等待刷新完成
+    private final Object targetIdLock = new Object();
+
+    //等待写入的展示记录
+    private final ConcurrentLinkedQueue<View> views = new ConcurrentLinkedQueue<View>();
+    private final BackgroundTask task = new BackgroundTask(new Runnable() {
+        public void run() {
+            refresh();
+            flush();
+        }
+    });
+
+    public AdIndexReplica(MyES es, IndexFeed feed, JedisPool pool) {
+        this.es = es;
+        this.feed = feed;
+        this.pool = pool;
+    }
+
+    /**
+     * 从Redis读取全部广告的快照
+     * 先读取变更记录的序号,之后从这个序号开始刷新,读取快照期间的变更最多会被处理两次.
+     * 与refresh互斥,后台线程和调用者同时刷新时同一批变更只会被处理一次.
+     */
+    public synchronized void load() {
+        Jedis client = pool.getResource();
+        try {
+            long lastSeq = feed.lastSeq(client);
+
+            //找出所有的位置集合
+            List<String> locationKeys = Lists.newArrayList();
+            ScanParams params = new ScanParams().match(es.idxKey("req:*")).count(1000);
+            String cursor = ScanParams.SCAN_POINTER_START;
+            do {
+                ScanResult<String> scan = client.scan(cursor, params);
+                locationKeys.addAll(scan.getResult());
+                cursor = scan.getStringCursor();
+            } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+
+            //读取位置集合、广告的eCPM和类型
+            Pipeline pipeline = client.pipelined();
+            Map<String, Response<Set<String>>> members = Maps.newHashMap();
+            for (String key : locationKeys) {
+                members.put(key.substring(es.idxKey("req:").length()), pipeline.smembers(key));
+            }
+            Response<Set<Tuple>> ecpms = pipeline.zrangeWithScores("idx:ad:value:", 0, -1);
+            Response<Map<String, String>> types = pipeline.hgetAll("type:");
+            pipeline.sync();
+
+            //读取每个广告的定向单词
+            Map<String, Response<Set<String>>> words = Maps.newHashMap();
+            pipeline = client.pipelined();
+            for (Tuple tuple : ecpms.get()) {
+                words.put(tuple.getElement(), pipeline.smembers("terms:" + tuple.getElement()));
+            }
+            pipeline.sync();
+
+            //读取每个定向单词的附加值
+            Map<String, Map<String, Response<Double>>> bonuses = Maps.newHashMap();
+            pipeline = client.pipelined();
+            for (Map.Entry<String, Response<Set<String>>> entry : words.entrySet()) {
+                bonuses.put(entry.getKey(), readBonuses(pipeline, entry.getKey(), entry.getValue().get()));
+            }
+            pipeline.sync();
+
+            //在锁外面创建新的索引,完成之后再替换,替换期间的定向操作不需要等待读取
+            Map<String, Integer> newNumbers = Maps.newHashMap();
+            List<Ad> newAds = Lists.newArrayList();
+            Map<String, RoaringBitmap> newTerms = Maps.newHashMap();
+            for (Tuple tuple : ecpms.get()) {
+                String id = tuple.getElement();
+                Ad ad = new Ad(id, types.get().get(id), tuple.getScore(), toScores(bonuses.get(id)));
+                newNumbers.put(id, newAds.size());
+                newAds.add(ad);
+                for (String word : ad.bonuses.keySet()) {
+                    bitmap(newTerms, word).add(newNumbers.get(id));
+                }
+            }
+            Map<String, RoaringBitmap> newLocations = Maps.newHashMap();
+            for (Map.Entry<String, Response<Set<String>>> entry : members.entrySet()) {
+                RoaringBitmap bitmap = bitmap(newLocations, entry.getKey());
+                for (String id : entry.getValue().get()) {
+                    Integer number = newNumbers.get(id);
+                    if (null != number) {
+                        bitmap.add(number);
+                    }
+                }
+            }
+
+            lock.writeLock().lock();
+            try {
+                numbers = newNumbers;
+                ads = newAds;
+                locations = newLocations;
+                terms = newTerms;
+                seq = lastSeq;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * 读取并处理新的变更记录
+     * 需要的变更记录已经被删除时重新读取快照.
+     *
+     * @return 处理的记录数量
+     */
+    public synchronized int refresh() {
+        int refreshed = 0;
+        Jedis client = pool.getResource();
+        try {
+            IndexFeed.Batch batch;
+            do {
+                batch = feed.read(client, seq, batchSize);
+                if (batch.truncated) {
+                    load();
+                    return refreshed;
+                }
+                if (batch.changes.isEmpty()) {
+                    break;
+                }
+                apply(client, batch.changes);
+                refreshed += batch.changes.size();
+            } while (batch.changes.size() == batchSize);
+        } finally {
+            client.close();
+        }
+        return refreshed;
+    }
+
+    //重新读取发生变化的广告,并把它们加入新增的索引
+    private void apply(Jedis client, List<IndexFeed.IndexChange> changes) {
+        //同一个广告的多条记录合并为一次读取
+        Map<String, Set<String>> added = Maps.newHashMap();
+        for (IndexFeed.IndexChange change : changes) {
+            Set<String> keys = added.get(change.docid);
+            if (null == keys) {
+                keys = Sets.newHashSet();
+                added.put(change.docid, keys);
+            }
+            keys.addAll(change.added);
+        }
+
+        Map<String, Set<String>> words = Maps.newHashMap();
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<String, Set<String>> entry : added.entrySet()) {
+                Integer number = numbers.get(entry.getKey());
+                Set<String> adWords = null == number ? Sets.<String>newHashSet()
+                        : Sets.newHashSet(ads.get(number).bonuses.keySet());
+                for (String key : entry.getValue()) {
+                    if (!key.startsWith("req:")) {
+                        adWords.add(key);
+                    }
+                }
+                words.put(entry.getKey(), adWords);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        Pipeline pipeline = client.pipelined();
+        Map<String, Response<String>> types = Maps.newHashMap();
+        Map<String, Response<Double>> ecpms = Maps.newHashMap();
+        Map<String, Map<String, Response<Double>>> bonuses = Maps.newHashMap();
+        for (Map.Entry<String, Set<String>> entry : words.entrySet()) {
+            String id = entry.getKey();
+            types.put(id, pipeline.hget("type:", id));
+            ecpms.put(id, pipeline.zscore("idx:ad:value:", id));
+            bonuses.put(id, readBonuses(pipeline, id, entry.getValue()));
+        }
+        pipeline.sync();
+
+        lock.writeLock().lock();
+        try {
+            for (String id : words.keySet()) {
+                Double ecpm = ecpms.get(id).get();
+                if (null == ecpm) {
+                    continue;
+                }
+                Ad ad = new Ad(id, types.get(id).get(), ecpm, toScores(bonuses.get(id)));
+                Integer number = numbers.get(id);
+                if (null == number) {
+                    number = ads.size();
+                    numbers.put(id, number);
+                    ads.add(ad);
+                } else {
+                    ads.set(number, ad);
+                }
+                for (String key : added.get(id)) {
+                    if (key.startsWith("req:")) {
+                        bitmap(locations, key.substring("req:".length())).add(number);
+                    } else {
+                        bitmap(terms, key).add(number);
+                    }
+                }
+            }
+            seq = changes.get(changes.size() - 1).seq;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //在流水线中读取广告每个单词的附加值
+    private Map<String, Response<Double>> readBonuses(Pipeline pipeline, String id, Collection<String> words) {
+        Map<String, Response<Double>> bonuses = Maps.newHashMapWithExpectedSize(words.size());
+        for (String word : words) {
+            bonuses.put(word, pipeline.zscore(es.idxKey(word), id));
+        }
+        return bonuses;
+    }
+
+    //单词 -> 附加值, 去掉已经不在附加值有序集合中的单词
+    private static Map<String, Double> toScores(Map<String, Response<Double>> responses) {
+        Map<String, Double> scores = Maps.newHashMapWithExpectedSize(responses.size());
+        for (Map.Entry<String, Response<Double>> entry : responses.entrySet()) {
+            Double score = entry.getValue().get();
+            if (null != score) {
+                scores.put(entry.getKey(), score);
+            }
+        }
+        return scores;
+    }
+
+    private static RoaringBitmap bitmap(Map<String, RoaringBitmap> bitmaps, String key) {
+        RoaringBitmap bitmap = bitmaps.get(key);
+        if (null == bitmap) {
+            bitmap = new RoaringBitmap();
+            bitmaps.put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 在内存中完成广告定向
+     * 评分方式与AdvertisingDirected.targetAds相同:基本eCPM * 2 + 最小附加值 + 最大附加值,
+     * 分值相同时与ZREVRANGE一样选择广告id较大的那个.
+     *
+     * @param locations 地理位置
+     * @param content   浏览内容
+     * @return 广告定向id, 广告id
+     */
+    public Pair<Long, String> targetAds(String[] locations, String content) {
+        Set<String> words = Sets.newHashSet(es.lookupTerms(es.tokenize(content)).values());
+        Ad best = null;
+        lock.readLock().lock();
+        try {
+            //与指定地区相匹配的广告
+            RoaringBitmap matched = new RoaringBitmap();
+            for (String location : locations) {
+                RoaringBitmap bitmap = this.locations.get(location);
+                if (null != bitmap) {
+                    matched.or(bitmap);
+                }
+            }
+            if (matched.isEmpty()) {
+                return new Pair<Long, String>(null, null);
+            }
+
+            //每个匹配广告的最小附加值和最大附加值,下标为广告在matched中的位置
+            int size = matched.getCardinality();
+            double[] minimum = new double[size];
+            double[] maximum = new double[size];
+            boolean[] bonused = new boolean[size];
+            for (String word : words) {
+                RoaringBitmap bitmap = terms.get(word);
+                if (null == bitmap) {
+                    continue;
+                }
+                IntIterator iterator = RoaringBitmap.and(matched, bitmap).getIntIterator();
+                while (iterator.hasNext()) {
+                    int number = iterator.next();
+                    //单词的附加值已经被删除,位图中的编号在下一次读取快照时才会去掉
+                    Double bonus = ads.get(number).bonuses.get(word);
+                    if (null == bonus) {
+                        continue;
+                    }
+                    int i = (int) matched.rank(number) - 1;
+                    if (!bonused[i]) {
+                        minimum[i] = bonus;
+                        maximum[i] = bonus;
+                        bonused[i] = true;
+                    } else {
+                        minimum[i] = Math.min(minimum[i], bonus);
+                        maximum[i] = Math.max(maximum[i], bonus);
+                    }
+                }
+            }
+
+            //找出eCPM最高的广告
+            double bestScore = 0;
+            IntIterator iterator = matched.getIntIterator();
+            for (int i = 0; iterator.hasNext(); i++) {
+                Ad ad = ads.get(iterator.next());
+                double score = 2 * ad.ecpm + (bonused[i] ? minimum[i] + maximum[i] : 0);
+                if (null == best || score > bestScore || (score == bestScore && ad.id.compareTo(best.id) > 0)) {
+                    best = ad;
+                    bestScore = score;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        long targetId = nextTargetId();
+        //记录内容与广告之间相匹配的单词,等待flush写入
+        Set<String> matchedWords = Sets.newHashSet(best.bonuses.keySet());
+        matchedWords.retainAll(words);
+        if (null != counters) {
+            counters.recordView(targetId, best.id, best.type, matchedWords);
+        } else {
+            views.add(new View(targetId, best.id, best.type, matchedWords));
+        }
+        return new Pair<Long, String>(targetId, best.id);
+    }
+
+    //从当前块中分配一个定向id,块用完时通过INCRBY再分配一块
+    private long nextTargetId() {
+        synchronized (targetIdLock) {
+            if (nextTargetId > lastTargetId) {
+                Jedis client = pool.getResource();
+                try {
+                    lastTargetId = client.incrBy("ads:served:", idBlockSize);
+                } finally {
+                    client.close();
+                }
+                nextTargetId = lastTargetId - idBlockSize + 1;
+            }
+            return nextTargetId++;
+        }
+    }
+
+    /**
+     * 写入等待中的展示记录
+     * 与AdvertisingDirected.recordTargetingResult写入相同的数据,所有记录只需要两次通信往返.
+     * 写入失败时记录会被放回队列,由下一次写入重试.
+     *
+     * @return 写入的记录数量
+     */
+    public int flush() {
+        List<View> pending = Lists.newArrayList();
+        for (View view = views.poll(); null != view; view = views.poll()) {
+            pending.add(view);
+        }
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        Jedis client = null;
+        try {
+            List<Response<Double>> totals = Lists.newArrayListWithCapacity(pending.size());
+            try {
+                client = pool.getResource();
+                Pipeline pipeline = client.pipelined();
+                for (View view : pending) {
+                    if (view.words.size() > 0) {
+                        String matchedKey = "terms:matched:" + view.targetId;
+                        pipeline.sadd(matchedKey, view.words.toArray(new String[view.words.size()]));
+                        pipeline.expire(matchedKey, 900);
+                    }
+                    pipeline.incr("type:" + view.type + ":views");
+                    for (String word : view.words) {
+                        pipeline.zincrby("views:" + view.adId, 1, word);
+                    }
+                    totals.add(pipeline.zincrby("views:" + view.adId, 1, ""));
+                }
+                pipeline.sync();
+            } catch (RuntimeException e) {
+                //写入失败时把展示记录放回队列,下一次重新写入
+                views.addAll(pending);
+                throw e;
+            }
+
+            //每个ZINCRBY都返回自己执行之后的展示次数,所以批量写入也不会漏掉第100次展示
+            Pipeline pipeline = client.pipelined();
+            for (int i = 0; i < pending.size(); i++) {
+                if (totals.get(i).get() % 100 == 0) {
+                    pipeline.sadd(AdvertisingDirected.DIRTY_KEY, pending.get(i).adId);
+                }
+            }
+            pipeline.sync();
+        } finally {
+            if (null != client) {
+                client.close();
+            }
+        }
+        return pending.size();
+    }
+
+    /**
+     * 启动后台线程,每隔interval刷新一次副本并写入展示记录
+     *
+     * @param interval 间隔时间
+     * @param unit     时间单位
+     */
+    public void start(long interval, TimeUnit unit) {
+        task.start(interval, unit);
+    }
+
+    /**
+     * 停止后台线程,并写入剩余的展示记录
+     */
+    public void stop() {
+        if (task.stop()) {
+            flush();
+        }
+    }
+
+    /**
+     * 副本中的一个广告
+     * 更新时整个替换,定向期间读取到的对象不会被修改
+     */
+    @AllArgsConstructor
+    private static class Ad {
+        //广告id
+        final String id;
+        //计费方式
+        final String type;
+        //基本eCPM
+        final double ecpm;
+        //定向单词 -> 附加值
+        final Map<String, Double> bonuses;
+    }
+
+    /**
+     * 一次等待写入的展示
+     */
+    @AllArgsConstructor
+    private static class View {
+        //定向id
+        final long targetId;
+        //广告id
+        final String adId;
+        //计费方式
+        final String type;
+        //内容与广告相匹配的单词
+        final Set<String> words;
+    }
+
+}
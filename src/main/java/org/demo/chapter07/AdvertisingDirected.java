@@ -1,15 +1,22 @@
 package org.demo.chapter07;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import lombok.Setter;
 import org.javatuples.Pair;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Tuple;
 import redis.clients.jedis.ZParams;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 需求描述
@@ -37,13 +44,111 @@ import java.util.Set;
  * 页面内容附加值结构
  * idx:单词----------zset
  * 广告id     | eCPM增加的数值
+ * <p>
+ * MyES设置了单词字典时,上面的单词以及广告的定向单词集合terms:广告id里面的单词都使用单词编号.
+ * <p>
+ * 需要重新计算eCPM的广告集合
+ * ads:dirty:----------set
+ * 广告id
+ * 广告每展示100次或者每被点击一次就会被加入这个集合,由CpmUpdater在后台分批重新计算,
+ * 同一个广告在两次计算之间无论变化多少次都只会被计算一次.
+ * <p>
+ * 广告索引变更记录(设置了adFeed时)
+ * ads:feed:----------zset
+ * 与IndexFeed的记录相同,新增的单词为广告加入的索引:位置为req:位置,定向单词为单词本身.
+ * 重新计算eCPM之后也会追加一条没有新增单词的记录,AdIndexReplica据此重新读取广告的eCPM和附加值.
  */
 public class AdvertisingDirected {
 
+    //需要重新计算eCPM的广告集合
+    final static String DIRTY_KEY = "ads:dirty:";
+
+    /**
+     * 在一次通信往返里面完成广告定向以及记录定向结果的脚本,与targetAds加recordTargetingResult的计算过程相同
+     * KEYS[1]为定向id计数器,KEYS[2]为广告eCPM有序集合,KEYS[3]为需要更新eCPM的广告集合,
+     * 之后依次是ARGV[1]个位置集合,最后是页面单词的附加值有序集合.
+     * ARGV[1]为位置的数量,ARGV[2]为临时结果key的前缀,之后依次是与附加值有序集合对应的页面单词.
+     * 返回{定向id, 广告id},没有匹配的广告时只返回{定向id}.
+     * 临时结果的名字包含定向id,不会与其他定向操作冲突,并且在脚本返回之前就会被删除.
+     * 广告的定向单词、展示次数等key由广告id决定,只能在脚本中拼接,所以脚本只适用于单个Redis节点.
+     */
+    private final static LuaScript TARGET_SCRIPT = new LuaScript(
+            "local n = tonumber(ARGV[1])\n" +
+            "local target = redis.call('INCR', KEYS[1])\n" +
+            "local prefix = ARGV[2] .. target .. ':'\n" +
+            "local matched = prefix .. 'matched'\n" +
+            "local base = prefix .. 'base'\n" +
+            "local temps = {matched, base}\n" +
+            //找出与指定地区相匹配的广告,以及这些广告的基本eCPM
+            "redis.call('SUNIONSTORE', matched, unpack(KEYS, 4, 3 + n))\n" +
+            "redis.call('ZINTERSTORE', base, 2, matched, KEYS[2], 'WEIGHTS', 0, 1)\n" +
+            //先计算交集再计算并集,结果为空的附加值有序集合不会被创建,对最小值和最大值没有影响
+            "local bonuses = {}\n" +
+            "for i = 4 + n, #KEYS do\n" +
+            "    local bonus = prefix .. i\n" +
+            "    if redis.call('ZINTERSTORE', bonus, 2, matched, KEYS[i], 'WEIGHTS', 0, 1) > 0 then\n" +
+            "        table.insert(bonuses, bonus)\n" +
+            "        table.insert(temps, bonus)\n" +
+            "    end\n" +
+            "end\n" +
+            "local result = base\n" +
+            "if #bonuses > 0 then\n" +
+            "    local minimum = prefix .. 'min'\n" +
+            "    local maximum = prefix .. 'max'\n" +
+            "    result = prefix .. 'result'\n" +
+            "    local args = {#bonuses, unpack(bonuses)}\n" +
+            "    table.insert(args, 'AGGREGATE')\n" +
+            "    table.insert(args, 'MIN')\n" +
+            "    redis.call('ZUNIONSTORE', minimum, unpack(args))\n" +
+            "    args[#args] = 'MAX'\n" +
+            "    redis.call('ZUNIONSTORE', maximum, unpack(args))\n" +
+            "    redis.call('ZUNIONSTORE', result, 3, base, minimum, maximum, 'WEIGHTS', 2, 1, 1)\n" +
+            "    table.insert(temps, minimum)\n" +
+            "    table.insert(temps, maximum)\n" +
+            "    table.insert(temps, result)\n" +
+            "end\n" +
+            //找出eCPM最高的广告,然后删除所有临时结果
+            "local top = redis.call('ZREVRANGE', result, 0, 0)\n" +
+            "redis.call('DEL', unpack(temps))\n" +
+            "if #top == 0 then\n" +
+            "    return {tostring(target)}\n" +
+            "end\n" +
+            "local ad = top[1]\n" +
+            //记录内容与广告之间相匹配的单词
+            "local words = {}\n" +
+            "for i = 3, #ARGV do\n" +
+            "    if redis.call('SISMEMBER', 'terms:' .. ad, ARGV[i]) == 1 then\n" +
+            "        table.insert(words, ARGV[i])\n" +
+            "    end\n" +
+            "end\n" +
+            "if #words > 0 then\n" +
+            "    redis.call('SADD', 'terms:matched:' .. target, unpack(words))\n" +
+            "    redis.call('EXPIRE', 'terms:matched:' .. target, 900)\n" +
+            "end\n" +
+            //记录广告类型、广告包含单词以及广告本身的展示次数
+            "redis.call('INCR', 'type:' .. tostring(redis.call('HGET', 'type:', ad)) .. ':views')\n" +
+            "for _, word in ipairs(words) do\n" +
+            "    redis.call('ZINCRBY', 'views:' .. ad, 1, word)\n" +
+            "end\n" +
+            "local views = tonumber(redis.call('ZINCRBY', 'views:' .. ad, 1, ''))\n" +
+            "if views % 100 == 0 then\n" +
+            "    redis.call('SADD', KEYS[3], ad)\n" +
+            "end\n" +
+            "return {tostring(target), ad}\n");
+
     @Setter
     private Jedis conn;
     @Setter
     private MyES es;
+    //使用脚本在一次通信往返里面完成定向和记录
+    @Setter
+    private boolean useScript;
+    //广告索引变更记录,供AdIndexReplica更新内存中的副本
+    @Setter
+    private IndexFeed adFeed;
+    //展示和点击计数的缓冲区,设置之后计数由后台线程批量写入
+    @Setter
+    private AdCounters counters;
 
     /**
      * 让广告的价格保持一致的辅助函数(将CPC、CPA转成CPM)
@@ -77,7 +182,8 @@ public class AdvertisingDirected {
     }
 
     //为了评估广告的效果,程序会记录广告每1000次展示的平均点击次数或平均动作执行次数
-    private Map<Ecpm, Double> AVERAGE_PER_1K = Maps.newHashMap();
+    //由后台线程中的updateCpms更新,所以使用线程安全的Map
+    private final Map<Ecpm, Double> AVERAGE_PER_1K = new ConcurrentHashMap<Ecpm, Double>();
 
     /**
      * 将广告加入索引
@@ -102,7 +208,7 @@ public class AdvertisingDirected {
         }
 
         //对广告包含的单词进行索引,使用有序集合是为了存放内容的附加值
-        Set<String> words = es.tokenize(content);
+        Set<String> words = es.terms(es.tokenize(content));
         for (String word : words) {
             trans.zadd(es.idxKey(word), 0, id);
         }
@@ -122,6 +228,13 @@ public class AdvertisingDirected {
         for (String word : words) {
             trans.sadd("terms:" + id, word);
         }
+        if (null != adFeed) {
+            Set<String> added = Sets.newHashSet(words);
+            for (String location : locations) {
+                added.add("req:" + location);
+            }
+            adFeed.append(trans, id, added, Collections.<String>emptySet());
+        }
         trans.exec();
     }
 
@@ -158,14 +271,12 @@ public class AdvertisingDirected {
      * @param trans   事务对象
      * @param matched 定向位置id
      * @param base    基本eCPM id
-     * @param content 页面内容
+     * @param words   页面内容包含的单词(设置了单词字典时为单词编号)
      * @return 包含了内容匹配附加值的广告eCPM
      */
-    public Pair<Set<String>, String> finishScoring(Transaction trans, String matched, String base, String content) {
+    public Pair<Set<String>, String> finishScoring(Transaction trans, String matched, String base, Set<String> words) {
 
         Map<String, Integer> bonusEcpm = Maps.newHashMap();
-        //对内容进行标记化处理,以便与广告进行处理
-        Set<String> words = es.tokenize(content);
         for (String word : words) {
             //找出那些即位于定向位置之内,又拥有页面内容其中一个单词的广告
             //这里先执行了交集运算,是因为在使用"先计算并集,后计算交集"的方式计算定向广告的附加值时,
@@ -217,25 +328,51 @@ public class AdvertisingDirected {
      */
     public Pair<Long, String> targetAds(String[] locations, String content) {
 
-        Transaction trans = conn.multi();
-        //对所有相关的位置集合执行并集计算操作,产生出最初的一组广告
-        //根据用户传入的位置定向参数,找到所有匹配该位置的广告,以及这些广告的eCPM
-        String matchedAds = matchLocation(trans, locations);
-        //找到存储着所有被匹配广告的集合,以及存储着所有被匹配广告的基本eCPM的有序集合,然后返回它们的id
-        String baseEcpm = es.zintersect(trans, 30, new ZParams().weightsByDouble(0, 1), matchedAds, "ad:value:");
-
-        //基于匹配的内容计算附加值
-        Pair<Set<String>, String> result = finishScoring(trans, matchedAds, baseEcpm, content);
-        //获取一个id,它可以用于汇报并记录这个被定向的广告
-        //定向id,这个id代表本次执行的广告定向操作,系统可以通过这个id来追踪广告引发的点击,
-        //并从中了解到广告定向操作的那个部分对点击的中数量产生了贡献
-        trans.incr("ads:served:");
-        //找出eCPM最高的广告,并获取这个广告的id
-        trans.zrevrange(es.idxKey(result.getValue1()), 0, 0);
+        //对内容进行标记化处理,以便与广告进行处理
+        //查找单词编号可能需要访问Redis,所以必须在开始事务之前完成
+        Set<String> words = Sets.newHashSet(es.lookupTerms(es.tokenize(content)).values());
+        if (useScript) {
+            return targetAdsByScript(locations, words);
+        }
 
-        List<Object> response = trans.exec();
-        long targetId = (Long) response.get(response.size() - 2);
-        Set<String> targetedAds = (Set<String>) response.get(response.size() - 1);
+        //设置了临时结果管理时,定向过程中创建的临时有序集合会在同一个事务的最后被删除
+        TempKeyManager.Scope scope = es.openScope();
+        Pair<Set<String>, String> result;
+        Response<Long> served;
+        Response<Set<String>> top;
+        try {
+            Transaction trans = conn.multi();
+            //对所有相关的位置集合执行并集计算操作,产生出最初的一组广告
+            //根据用户传入的位置定向参数,找到所有匹配该位置的广告,以及这些广告的eCPM
+            String matchedAds = matchLocation(trans, locations);
+            //找到存储着所有被匹配广告的集合,以及存储着所有被匹配广告的基本eCPM的有序集合,然后返回它们的id
+            String baseEcpm = es.zintersect(trans, 30, new ZParams().weightsByDouble(0, 1), matchedAds, "ad:value:");
+
+            //基于匹配的内容计算附加值
+            result = finishScoring(trans, matchedAds, baseEcpm, words);
+            //获取一个id,它可以用于汇报并记录这个被定向的广告
+            //定向id,这个id代表本次执行的广告定向操作,系统可以通过这个id来追踪广告引发的点击,
+            //并从中了解到广告定向操作的那个部分对点击的中数量产生了贡献
+            served = trans.incr("ads:served:");
+            //找出eCPM最高的广告,并获取这个广告的id
+            top = trans.zrevrange(es.idxKey(result.getValue1()), 0, 0);
+            if (null != scope) {
+                scope.release(trans);
+            }
+
+            trans.exec();
+        } finally {
+            //定向过程中抛出异常时作用域还没有在事务中释放,这里放弃事务、删除已经创建的临时结果并关闭作用域,
+            //否则它会一直留在当前线程的作用域栈里面;已经在事务中释放的作用域不会被重复删除
+            if (null != scope) {
+                if (conn.getClient().isInMulti()) {
+                    conn.resetState();
+                }
+                scope.release(conn);
+            }
+        }
+        long targetId = served.get();
+        Set<String> targetedAds = top.get();
         //如果没有任何广告与目标位置相匹配,那么返回空值
         if (targetedAds.size() == 0) {
             return new Pair<Long, String>(null, null);
@@ -248,6 +385,34 @@ public class AdvertisingDirected {
         return new Pair<Long, String>(targetId, adId);
     }
 
+    /**
+     * 使用脚本完成广告定向以及记录定向结果
+     * 上面的方式需要一个包含几十个命令的事务,之后recordTargetingResult还需要SMEMBERS、HGET和另一个事务,
+     * 每次展示广告至少需要三次通信往返,而脚本只需要一次,临时结果也不会留到过期.
+     *
+     * @param locations 地理位置
+     * @param words     页面内容包含的单词(设置了单词字典时为单词编号)
+     * @return 广告定向id, 广告id
+     */
+    @SuppressWarnings("unchecked")
+    private Pair<Long, String> targetAdsByScript(String[] locations, Set<String> words) {
+        List<String> keys = Lists.newArrayList("ads:served:", "idx:ad:value:", DIRTY_KEY);
+        for (String location : locations) {
+            keys.add(idxReqKey(location));
+        }
+        List<String> args = Lists.newArrayList(String.valueOf(locations.length), es.idxKey("target:"));
+        for (String word : words) {
+            keys.add(es.idxKey(word));
+            args.add(word);
+        }
+        List<String> result = (List<String>) TARGET_SCRIPT.eval(conn, keys, args);
+        //如果没有任何广告与目标位置相匹配,那么返回空值
+        if (result.size() < 2) {
+            return new Pair<Long, String>(null, null);
+        }
+        return new Pair<Long, String>(Long.parseLong(result.get(0)), result.get(1));
+    }
+
     /**
      * 浏览记录
      *
@@ -258,9 +423,13 @@ public class AdvertisingDirected {
     public void recordTargetingResult(long targetId, String adId, Set<String> words) {
         Set<String> terms = conn.smembers("terms:" + adId);
         String type = conn.hget("type:", adId);
-        Transaction trans = conn.multi();
         //找出内容与广告之间相匹配的那些单词
-        terms.addAll(words);
+        terms.retainAll(words);
+        if (null != counters) {
+            counters.recordView(targetId, adId, type, terms);
+            return;
+        }
+        Transaction trans = conn.multi();
         //如果有相匹配的单词出现,就记录它们,并设置15分钟的生存时间
         if (terms.size() > 0) {
             String matchedKey = "terms:matched:" + targetId;
@@ -282,7 +451,8 @@ public class AdvertisingDirected {
         List<Object> response = trans.exec();
         double views = (Double) response.get(response.size() - 1);
         if (views % 100 == 0) {
-            //广告每展示100次就更新一次它的eCPM
+            //广告每展示100次就更新一次它的eCPM,更新由后台线程完成,这里只把广告标记为需要更新
+            conn.sadd(DIRTY_KEY, adId);
         }
     }
 
@@ -301,6 +471,10 @@ public class AdvertisingDirected {
         String matchKey = "terms:matched:" + targetId;
         Set<String> matched = conn.smembers(matchKey);
         matched.add("");
+        if (null != counters) {
+            counters.recordClick(targetId, adId, ecpm, matched, action);
+            return;
+        }
 
         Transaction trans = conn.multi();
         //如果这是一个按动作计费的广告,并且被匹配的单词仍然存在,那么刷新这些单词的过期时间
@@ -324,16 +498,162 @@ public class AdvertisingDirected {
         for (String word : matched) {
             trans.zincrby(clickKey, 1, word);
         }
-        trans.exec();
-
         //对广告中出现的所有单词的eCPM进行更新
         //因为广告大约每展示100次至2000次(甚至更多)才会引发一次点击或者动作,
-        //所以每次执行这个函数都会调用updateCpms函数
+        //所以每次点击都需要更新eCPM,这里同样只把广告标记为需要更新
+        trans.sadd(DIRTY_KEY, adId);
+        trans.exec();
     }
 
-    public void updateCpms(String adId){
-        Transaction trans = conn.multi();
+    /**
+     * 更新广告的eCPM以及广告包含的每个单词的eCPM附加值
+     *
+     * @param adId 广告id
+     */
+    public void updateCpms(String adId) {
+        updateCpms(conn, Collections.singletonList(adId));
+    }
+
+    /**
+     * 取出最多count个需要更新的广告,并更新它们的eCPM
+     * SPOP保证多个后台线程(或者多个进程)不会重复处理同一个广告,
+     * 处理期间再次被标记的广告会留在集合里面,下一次再处理.
+     * 更新失败时取出的广告会被重新标记,然后抛出异常.
+     *
+     * @param client 连接, 后台线程使用自己的连接
+     * @param count  最多处理的广告数量
+     * @return 处理的广告数量
+     */
+    public int updateDirtyCpms(Jedis client, int count) {
+        Set<String> adIds = client.spop(DIRTY_KEY, count);
+        if (adIds.isEmpty()) {
+            return 0;
+        }
+        try {
+            updateCpms(client, Lists.newArrayList(adIds));
+        } catch (RuntimeException e) {
+            //重新标记取出的广告,否则它们要等到下一次展示或者点击才会被更新
+            try {
+                if (client.getClient().isInMulti()) {
+                    client.resetState();
+                }
+                client.sadd(DIRTY_KEY, adIds.toArray(new String[adIds.size()]));
+            } catch (RuntimeException restore) {
+                e.addSuppressed(restore);
+            }
+            throw e;
+        }
+        return adIds.size();
+    }
+
+    /**
+     * 批量更新广告的eCPM
+     * 1.广告的eCPM = 广告的(点击次数或动作次数 / 展示次数) * 1000 * 价格,还没有被点击过的广告保持原来的eCPM
+     * 2.单词的附加值 = 包含这个单词的展示中的eCPM - 广告的eCPM,单词还没有被点击过时不更新
+     * 3.同时根据各类广告的全局展示次数和点击(动作)次数更新AVERAGE_PER_1K,新加入的广告使用它来估算eCPM
+     * 按广告计费的广告的eCPM就是价格本身,不需要更新.
+     * 无论一批有多少个广告,都只需要三次通信往返:读取广告信息、读取展示和点击统计、写入新的eCPM.
+     *
+     * @param client 连接
+     * @param adIds  广告id
+     */
+    private void updateCpms(Jedis client, List<String> adIds) {
+        //读取广告的类型、基本价格和定向单词,以及各类广告的全局计数器
+        Pipeline pipeline = client.pipelined();
+        List<Response<String>> types = Lists.newArrayListWithCapacity(adIds.size());
+        List<Response<Double>> baseValues = Lists.newArrayListWithCapacity(adIds.size());
+        List<Response<Set<String>>> terms = Lists.newArrayListWithCapacity(adIds.size());
+        for (String adId : adIds) {
+            types.add(pipeline.hget("type:", adId));
+            baseValues.add(pipeline.zscore("ad:base_value:", adId));
+            terms.add(pipeline.smembers("terms:" + adId));
+        }
+        Map<Ecpm, Response<String>> typeViews = Maps.newEnumMap(Ecpm.class);
+        Map<Ecpm, Response<String>> typeClicks = Maps.newEnumMap(Ecpm.class);
+        for (Ecpm type : new Ecpm[]{Ecpm.CPC, Ecpm.CPA}) {
+            String name = type.name().toLowerCase();
+            typeViews.put(type, pipeline.get("type:" + name + ":views"));
+            typeClicks.put(type, pipeline.get("type:" + name + (Ecpm.CPA.equals(type) ? ":actions:" : ":clicks:")));
+        }
+        pipeline.sync();
+        for (Ecpm type : typeViews.keySet()) {
+            String views = typeViews.get(type).get();
+            String clicks = typeClicks.get(type).get();
+            AVERAGE_PER_1K.put(type, 1000. * (null == clicks ? 1 : Long.parseLong(clicks))
+                    / (null == views ? 1 : Long.parseLong(views)));
+        }
+
+        //读取广告以及广告包含的每个单词的展示次数和点击(动作)次数,按广告计费的广告不需要更新
+        List<Integer> updating = Lists.newArrayList();
+        List<Response<Set<Tuple>>> views = Lists.newArrayList();
+        List<Response<Set<Tuple>>> clicks = Lists.newArrayList();
+        List<Response<Double>> ecpms = Lists.newArrayList();
+        pipeline = client.pipelined();
+        for (int i = 0; i < adIds.size(); i++) {
+            String type = types.get(i).get();
+            //广告已经被删除
+            if (null == type || null == baseValues.get(i).get() || Ecpm.CPM.name().equalsIgnoreCase(type)) {
+                continue;
+            }
+            String adId = adIds.get(i);
+            updating.add(i);
+            views.add(pipeline.zrangeWithScores("views:" + adId, 0, -1));
+            clicks.add(pipeline.zrangeWithScores(
+                    (Ecpm.CPA.name().equalsIgnoreCase(type) ? "actions:" : "clicks:") + adId, 0, -1));
+            ecpms.add(pipeline.zscore("idx:ad:value:", adId));
+        }
+        pipeline.sync();
+        if (updating.isEmpty()) {
+            return;
+        }
+
+        //计算并写入新的eCPM
+        pipeline = client.pipelined();
+        for (int j = 0; j < updating.size(); j++) {
+            int i = updating.get(j);
+            String adId = adIds.get(i);
+            Ecpm type = Ecpm.valueOf(types.get(i).get().toUpperCase());
+            double baseValue = baseValues.get(i).get();
+            Map<String, Double> viewCounts = scores(views.get(j).get());
+            Map<String, Double> clickCounts = scores(clicks.get(j).get());
+
+            //广告还没有被点击过时保持原来的eCPM
+            Double adEcpm = ecpms.get(j).get();
+            if (clickCounts.containsKey("")) {
+                adEcpm = toEcpm(type, count(viewCounts, ""), clickCounts.get(""), baseValue);
+                pipeline.zadd("idx:ad:value:", adEcpm, adId);
+            }
+            if (null == adEcpm) {
+                continue;
+            }
+            for (String word : terms.get(i).get()) {
+                if (!clickCounts.containsKey(word)) {
+                    continue;
+                }
+                double wordEcpm = toEcpm(type, count(viewCounts, word), clickCounts.get(word), baseValue);
+                //单词的附加值,可能为负数
+                pipeline.zadd(es.idxKey(word), wordEcpm - adEcpm, adId);
+            }
+            if (null != adFeed) {
+                adFeed.append(pipeline, adId, Collections.<String>emptySet(), Collections.<String>emptySet());
+            }
+        }
+        pipeline.sync();
+    }
+
+    //有序集合的成员 -> 分值
+    private static Map<String, Double> scores(Set<Tuple> tuples) {
+        Map<String, Double> scores = Maps.newHashMapWithExpectedSize(tuples.size());
+        for (Tuple tuple : tuples) {
+            scores.put(tuple.getElement(), tuple.getScore());
+        }
+        return scores;
+    }
 
+    //展示次数,没有记录时为1,避免除以0
+    private static double count(Map<String, Double> views, String word) {
+        Double count = views.get(word);
+        return null == count || count < 1 ? 1 : count;
     }
 
     public enum Ecpm {
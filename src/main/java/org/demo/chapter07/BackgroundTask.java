@@ -0,0 +1,94 @@
+package org.demo.chapter07;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在一个后台线程中定期执行的任务
+ * CpmUpdater、AdIndexReplica和AdCounters使用它定期更新eCPM、刷新副本或者写入计数,
+ * 停止之后剩余的数据由它们自己在调用者的线程中处理.
+ */
+class BackgroundTask {
+
+    private final Runnable task;
+    private volatile ScheduledExecutorService scheduler;
+
+    BackgroundTask(Runnable task) {
+        this.task = task;
+    }
+
+    /**
+     * 启动后台线程,每隔interval执行一次,已经启动时不做任何事情
+     *
+     * @param interval 间隔时间
+     * @param unit     时间单位
+     */
+    synchronized void start(long interval, TimeUnit unit) {
+        if (null != scheduler) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                runQuietly();
+            }
+        }, interval, interval, unit);
+    }
+
+    /**
+     * 让后台线程立即执行一次,调用者不会等待执行完成
+     *
+     * @return 是否已经提交, 没有启动或者正在停止时返回false
+     */
+    boolean runNow() {
+        ScheduledExecutorService executor = scheduler;
+        if (null == executor) {
+            return false;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    runQuietly();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 停止后台线程,并等待正在进行的执行结束
+     *
+     * @return 停止之前是否已经启动
+     */
+    boolean stop() {
+        ScheduledExecutorService stopping;
+        synchronized (this) {
+            stopping = scheduler;
+            scheduler = null;
+        }
+        if (null == stopping) {
+            return false;
+        }
+        stopping.shutdown();
+        try {
+            stopping.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    //抛出的异常会让之后的执行全部取消,所以这里只打印异常,下一次继续处理
+    private void runQuietly() {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
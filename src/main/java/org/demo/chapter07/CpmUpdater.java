@@ -0,0 +1,75 @@
+package org.demo.chapter07;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在后台更新广告的eCPM
+ * <p>
+ * 重新计算eCPM需要读取广告以及广告每个单词的展示和点击统计,如果放在recordTargetingResult和recordClick里面执行,
+ * 展示广告的延迟就会随着广告单词的数量增长.这里让展示和点击只把广告标记为需要更新(ads:dirty:),
+ * 由一个后台线程定期取出被标记的广告,每batchSize个广告作为一批通过流水线重新计算.
+ * 后台线程使用连接池中的连接,不会与展示广告使用的连接相互影响.
+ * <p>
+ * 多个进程可以同时运行CpmUpdater,SPOP保证每个广告只会被其中一个进程处理.
+ */
+public class CpmUpdater {
+
+    private final AdvertisingDirected ad;
+    private final JedisPool pool;
+    //每一批处理的广告数量
+    private final int batchSize;
+    private final BackgroundTask task = new BackgroundTask(new Runnable() {
+        public void run() {
+            drain();
+        }
+    });
+
+    public CpmUpdater(AdvertisingDirected ad, JedisPool pool, int batchSize) {
+        this.ad = ad;
+        this.pool = pool;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * 启动后台线程,每隔interval处理一次所有被标记的广告
+     *
+     * @param interval 间隔时间
+     * @param unit     时间单位
+     */
+    public void start(long interval, TimeUnit unit) {
+        task.start(interval, unit);
+    }
+
+    /**
+     * 停止后台线程,并处理剩余的被标记的广告
+     */
+    public void stop() {
+        if (task.stop()) {
+            drain();
+        }
+    }
+
+    /**
+     * 处理所有被标记的广告
+     *
+     * @return 处理的广告数量
+     */
+    public long drain() {
+        long updated = 0;
+        Jedis conn = pool.getResource();
+        try {
+            int count;
+            do {
+                count = ad.updateDirtyCpms(conn, batchSize);
+                updated += count;
+            } while (count == batchSize);
+        } finally {
+            conn.close();
+        }
+        return updated;
+    }
+
+}
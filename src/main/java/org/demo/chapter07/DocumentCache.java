@@ -0,0 +1,136 @@
+package org.demo.chapter07;
+
+import com.google.common.collect.Maps;
+import lombok.AllArgsConstructor;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 文档的本地缓存
+ * <p>
+ * 热门查询的结果页总是包含那几篇文档,MyES.fetchDocuments每次都从Redis读取它们的字段并不划算.
+ * 这里在本地缓存最近读取过的文档字段,容量超过上限时淘汰最久没有被访问的文档(LRU).
+ * 同一篇文档不同的查询可能读取不同的字段,缓存中保存的是读取过的字段的并集,
+ * 字段不存在时也会被记录(值为null),这样下一次不必再次查询这个字段.
+ * <p>
+ * MyES在创建和删除文档索引时会使对应的文档失效,
+ * 其他客户端对文档散列的修改则只能依靠有效期,缓存的文档最多在有效期内是旧的.
+ */
+public class DocumentCache {
+
+    //文档id -> 缓存的文档
+    private final Map<String, CachedDocument> documents;
+    //文档的有效期(毫秒)
+    private final long ttl;
+
+    //命中次数
+    private long hits;
+    //没有命中的次数
+    private long misses;
+
+    public DocumentCache(final int capacity, long ttl) {
+        this.ttl = ttl;
+        //按照访问顺序排列,超过容量之后移除最久没有被访问的文档
+        this.documents = new LinkedHashMap<String, CachedDocument>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedDocument> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * 获取缓存的文档字段
+     *
+     * @param docid  文档id
+     * @param fields 需要的字段, 为空时需要全部字段
+     * @return 字段 -> 字段值(字段不存在时为null), 缓存中没有全部需要的字段时返回null
+     */
+    public synchronized Map<String, String> get(String docid, String... fields) {
+        CachedDocument document = documents.get(docid);
+        if (null == document || document.expires < System.currentTimeMillis()) {
+            misses++;
+            return null;
+        }
+        if (fields.length == 0) {
+            if (!document.complete) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return Maps.newHashMap(document.fields);
+        }
+        Map<String, String> projection = Maps.newLinkedHashMap();
+        for (String field : fields) {
+            if (!document.complete && !document.fields.containsKey(field)) {
+                misses++;
+                return null;
+            }
+            projection.put(field, document.fields.get(field));
+        }
+        hits++;
+        return projection;
+    }
+
+    /**
+     * 缓存读取到的文档字段
+     * 与缓存中仍然有效的字段合并,有效期从这一次读取开始重新计算
+     *
+     * @param docid    文档id
+     * @param fields   字段 -> 字段值(字段不存在时为null)
+     * @param complete 是否是文档的全部字段
+     */
+    public synchronized void put(String docid, Map<String, String> fields, boolean complete) {
+        CachedDocument old = documents.get(docid);
+        Map<String, String> merged = Maps.newHashMap();
+        if (!complete && null != old && old.expires >= System.currentTimeMillis()) {
+            merged.putAll(old.fields);
+        }
+        merged.putAll(fields);
+        documents.put(docid, new CachedDocument(merged, complete, System.currentTimeMillis() + ttl));
+    }
+
+    /**
+     * 使文档失效
+     *
+     * @param docids 文档id
+     */
+    public synchronized void invalidate(Collection<String> docids) {
+        documents.keySet().removeAll(docids);
+    }
+
+    /**
+     * 使文档失效
+     *
+     * @param docid 文档id
+     */
+    public synchronized void invalidate(String docid) {
+        documents.remove(docid);
+    }
+
+    //命中次数
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    //没有命中的次数
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * 缓存的文档
+     */
+    @AllArgsConstructor
+    private static class CachedDocument {
+        //读取过的字段
+        final Map<String, String> fields;
+        //是否包含文档的全部字段
+        final boolean complete;
+        //过期时间
+        final long expires;
+    }
+
+}
@@ -0,0 +1,129 @@
+package org.demo.chapter07;
+
+import com.google.common.collect.Lists;
+import lombok.Getter;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 使用HdrHistogram记录查询指标
+ * <p>
+ * 查询总耗时和每个阶段的耗时各自使用一个直方图(单位为微秒,3位有效数字),通信往返次数也使用一个直方图,
+ * 可以随时读取任意百分位数.直方图只会增长不会重置,需要按时间窗口统计时可以定期创建新的实例.
+ * <p>
+ * 总耗时超过slowThreshold的查询会被记录到慢查询日志里面,日志中保存完整的执行记录(查询对象、查询计划以及各个阶段),
+ * 只保留最近的slowLogSize条.
+ */
+public class HistogramMetrics implements SearchMetrics {
+
+    //总耗时的直方图名字
+    public final static String TOTAL = "total";
+
+    //阶段名字 -> 耗时直方图
+    private final ConcurrentMap<String, Histogram> latencies = new ConcurrentHashMap<String, Histogram>();
+    //通信往返次数
+    @Getter
+    private final Histogram roundTrips = new ConcurrentHistogram(3);
+
+    //慢查询阈值(微秒)
+    private final long slowThreshold;
+    //慢查询日志的长度
+    private final int slowLogSize;
+    //慢查询日志,最近的在最前面
+    private final LinkedList<QueryTrace> slowLog = new LinkedList<QueryTrace>();
+
+    /**
+     * @param slowThreshold 慢查询阈值
+     * @param unit          阈值的时间单位
+     * @param slowLogSize   慢查询日志的长度
+     */
+    public HistogramMetrics(long slowThreshold, TimeUnit unit, int slowLogSize) {
+        this.slowThreshold = unit.toMicros(slowThreshold);
+        this.slowLogSize = slowLogSize;
+    }
+
+    @Override
+    public void record(QueryTrace trace) {
+        long elapsed = TimeUnit.NANOSECONDS.toMicros(trace.getElapsed());
+        histogram(TOTAL).recordValue(elapsed);
+        for (QueryTrace.Stage stage : trace.getStages()) {
+            histogram(stage.name).recordValue(TimeUnit.NANOSECONDS.toMicros(stage.elapsed));
+        }
+        roundTrips.recordValue(trace.getRoundTrips());
+        if (elapsed >= slowThreshold) {
+            synchronized (slowLog) {
+                slowLog.addFirst(trace);
+                if (slowLog.size() > slowLogSize) {
+                    slowLog.removeLast();
+                }
+            }
+        }
+    }
+
+    //获取阶段的直方图,直方图会自动扩大范围
+    private Histogram histogram(String name) {
+        Histogram histogram = latencies.get(name);
+        if (null == histogram) {
+            latencies.putIfAbsent(name, new ConcurrentHistogram(3));
+            histogram = latencies.get(name);
+        }
+        return histogram;
+    }
+
+    /**
+     * 获取耗时的百分位数
+     *
+     * @param name       阶段名字, 总耗时为TOTAL
+     * @param percentile 百分位, 例如99.9
+     * @return 耗时(微秒), 没有记录时返回0
+     */
+    public long percentile(String name, double percentile) {
+        Histogram histogram = latencies.get(name);
+        return null == histogram ? 0 : histogram.getValueAtPercentile(percentile);
+    }
+
+    /**
+     * 获取各个阶段的耗时直方图
+     *
+     * @return 阶段名字 -> 耗时直方图(微秒)
+     */
+    public Map<String, Histogram> getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * 获取慢查询日志
+     *
+     * @return 慢查询的执行记录, 最近的在最前面
+     */
+    public List<QueryTrace> getSlowQueries() {
+        synchronized (slowLog) {
+            return Lists.newArrayList(slowLog);
+        }
+    }
+
+    /**
+     * 各个阶段耗时的摘要,每个阶段一行:次数、p50、p99、p99.9以及最大值
+     *
+     * @return 摘要
+     */
+    public String summary() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Histogram> entry : latencies.entrySet()) {
+            Histogram histogram = entry.getValue();
+            builder.append(String.format("%-12s count=%d p50=%dus p99=%dus p99.9=%dus max=%dus%n", entry.getKey(),
+                    histogram.getTotalCount(), histogram.getValueAtPercentile(50),
+                    histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9),
+                    histogram.getMaxValue()));
+        }
+        return builder.toString();
+    }
+
+}
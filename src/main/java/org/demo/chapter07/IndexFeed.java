@@ -0,0 +1,256 @@
+package org.demo.chapter07;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import lombok.AllArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Tuple;
+import redis.clients.util.SafeEncoder;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 索引变更记录
+ * <p>
+ * 查询结果缓存和副本之类的下游并不知道哪些文档的索引发生了变化,只能等待缓存过期或者全部清空.
+ * 开启之后,MyES每次修改文档的索引都会在同一个事务(批量创建索引时为同一个流水线)里面追加一条记录:
+ * 文档id、新增的单词以及删除的单词,下游按照序号分批读取这些记录,只让受影响的查询失效.
+ * <p>
+ * 记录保存在以序号为分值的有序集合里面,序号由计数器分配,所以记录的顺序与索引修改的顺序相同.
+ * 有序集合只保留最近的maxLength条记录,消费者落后太多时会发现记录已经被删除(truncated),
+ * 这时只能退回到全部清空的方式.
+ * 消费者处理到的位置保存在一个散列里面,每个消费者独立地读取,互不影响.
+ * 也可以由消费者自己保存处理到的位置,通过read(client, after, count)读取.
+ * <p>
+ * 下面是默认的key,其他类型的变更(比如广告索引)可以使用不同的前缀.
+ * 变更记录结构
+ * idx:feed:----------zset
+ * 序号:["文档id",[新增的单词],[删除的单词]] | 序号
+ * <p>
+ * 序号计数器
+ * idx:feed:seq:----------string
+ * 最近一次分配的序号
+ * <p>
+ * 消费位置结构
+ * idx:feed:offsets:----------hash
+ * 消费者 | 已经处理的最大序号
+ */
+public class IndexFeed {
+
+    private final String feedKey;
+    private final String seqKey;
+    private final String offsetsKey;
+
+    /**
+     * 追加一条记录,并删除超出长度的旧记录
+     * KEYS[1]为变更记录,KEYS[2]为序号计数器,ARGV[1]为记录,ARGV[2]为最多保留的记录数量.
+     * 脚本会在事务里面执行,Jedis要求事务中的脚本返回字符串
+     */
+    private final static String APPEND_SOURCE =
+            "local seq = redis.call('INCR', KEYS[2])\n" +
+            "redis.call('ZADD', KEYS[1], seq, seq .. ':' .. ARGV[1])\n" +
+            "local max = tonumber(ARGV[2])\n" +
+            "if max > 0 then\n" +
+            "    redis.call('ZREMRANGEBYRANK', KEYS[1], 0, -max - 1)\n" +
+            "end\n" +
+            "return tostring(seq)\n";
+    private final static byte[] APPEND_SCRIPT = SafeEncoder.encode(APPEND_SOURCE);
+
+    @Setter
+    private Jedis conn;
+
+    //最多保留的记录数量, 0表示不限制
+    private final int maxLength;
+
+    public IndexFeed(int maxLength) {
+        this("idx:feed:", maxLength);
+    }
+
+    /**
+     * @param prefix    变更记录的key, 序号计数器和消费位置的key在它后面加上seq:和offsets:
+     * @param maxLength 最多保留的记录数量, 0表示不限制
+     */
+    public IndexFeed(String prefix, int maxLength) {
+        this.feedKey = prefix;
+        this.seqKey = prefix + "seq:";
+        this.offsetsKey = prefix + "offsets:";
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * 在事务中追加一条记录
+     *
+     * @param trans   事务对象
+     * @param docid   文档id
+     * @param added   新增的单词
+     * @param removed 删除的单词
+     */
+    public void append(Transaction trans, String docid, Collection<String> added, Collection<String> removed) {
+        trans.eval(APPEND_SOURCE, Lists.newArrayList(feedKey, seqKey),
+                Lists.newArrayList(encode(docid, added, removed), String.valueOf(maxLength)));
+    }
+
+    /**
+     * 在流水线中追加一条记录
+     *
+     * @param pipeline 流水线
+     * @param docid    文档id
+     * @param added    新增的单词
+     * @param removed  删除的单词
+     */
+    public void append(Pipeline pipeline, String docid, Collection<String> added, Collection<String> removed) {
+        pipeline.eval(APPEND_SCRIPT, Lists.newArrayList(SafeEncoder.encode(feedKey), SafeEncoder.encode(seqKey)),
+                Lists.newArrayList(SafeEncoder.encode(encode(docid, added, removed)),
+                        SafeEncoder.encode(String.valueOf(maxLength))));
+    }
+
+    //记录使用JSON数组,比对象格式少了字段名
+    private static String encode(String docid, Collection<String> added, Collection<String> removed) {
+        return JSON.toJSONString(Lists.newArrayList(docid, added, removed));
+    }
+
+    /**
+     * 读取序号大于after的记录
+     *
+     * @param after 已经处理的最大序号
+     * @param count 最多读取的数量
+     * @return 按照序号排列的记录
+     */
+    public List<IndexChange> read(long after, int count) {
+        return decode(conn.zrangeByScoreWithScores(feedKey, "(" + after, "+inf", 0, count));
+    }
+
+    /**
+     * 读取消费者还没有处理的下一批记录
+     * 处理完成之后需要调用ack记录消费位置,否则下一次会读到相同的记录.
+     *
+     * @param consumer 消费者名字
+     * @param count    最多读取的数量
+     * @return 一批记录
+     */
+    public Batch poll(String consumer, int count) {
+        String value = conn.hget(offsetsKey, consumer);
+        return read(conn, null == value ? 0 : Long.parseLong(value), count);
+    }
+
+    /**
+     * 读取序号大于after的一批记录,并检查需要的记录是否已经被删除
+     * 供自己保存消费位置的消费者在后台线程中使用
+     *
+     * @param client 连接
+     * @param after  已经处理的最大序号
+     * @param count  最多读取的数量
+     * @return 一批记录
+     */
+    public Batch read(Jedis client, long after, int count) {
+        Pipeline pipeline = client.pipelined();
+        Response<Set<Tuple>> oldest = pipeline.zrangeWithScores(feedKey, 0, 0);
+        Response<Set<Tuple>> records = pipeline.zrangeByScoreWithScores(feedKey, "(" + after, "+inf", 0, count);
+        pipeline.sync();
+        //下一条需要的记录已经被删除
+        boolean truncated = false;
+        for (Tuple tuple : oldest.get()) {
+            truncated = (long) tuple.getScore() > after + 1;
+        }
+        return new Batch(decode(records.get()), truncated);
+    }
+
+    /**
+     * 最近一次分配的序号
+     * 消费者从快照开始时,先读取这个序号再读取快照,之后从这个序号开始读取变更记录,
+     * 读取快照期间发生的变更可能会被处理两次,所以对记录的处理需要是幂等的.
+     *
+     * @param client 连接
+     * @return 最近一次分配的序号, 还没有任何记录时为0
+     */
+    public long lastSeq(Jedis client) {
+        String seq = client.get(seqKey);
+        return null == seq ? 0 : Long.parseLong(seq);
+    }
+
+    /**
+     * 记录消费者已经处理的最大序号
+     *
+     * @param consumer 消费者名字
+     * @param seq      已经处理的最大序号
+     */
+    public void ack(String consumer, long seq) {
+        conn.hset(offsetsKey, consumer, String.valueOf(seq));
+    }
+
+    //解析记录
+    private static List<IndexChange> decode(Set<Tuple> tuples) {
+        List<IndexChange> changes = Lists.newArrayListWithCapacity(tuples.size());
+        for (Tuple tuple : tuples) {
+            String member = tuple.getElement();
+            JSONArray record = JSON.parseArray(member.substring(member.indexOf(':') + 1));
+            changes.add(new IndexChange((long) tuple.getScore(), record.getString(0),
+                    words(record.getJSONArray(1)), words(record.getJSONArray(2))));
+        }
+        return changes;
+    }
+
+    private static Set<String> words(JSONArray array) {
+        Set<String> words = Sets.newHashSetWithExpectedSize(array.size());
+        for (int i = 0; i < array.size(); i++) {
+            words.add(array.getString(i));
+        }
+        return words;
+    }
+
+    /**
+     * 一条变更记录
+     */
+    @AllArgsConstructor
+    @ToString
+    public static class IndexChange {
+        //序号
+        public final long seq;
+        //文档id
+        public final String docid;
+        //新增的单词
+        public final Set<String> added;
+        //删除的单词
+        public final Set<String> removed;
+    }
+
+    /**
+     * 一批变更记录
+     */
+    @AllArgsConstructor
+    public static class Batch {
+        //按照序号排列的记录
+        public final List<IndexChange> changes;
+        //需要的记录是否已经被删除,这时应该全部清空下游的缓存
+        public final boolean truncated;
+
+        //这一批中最大的序号,没有记录时返回-1
+        public long lastSeq() {
+            return changes.isEmpty() ? -1 : changes.get(changes.size() - 1).seq;
+        }
+
+        //这一批记录涉及的全部单词
+        public Set<String> words() {
+            if (changes.isEmpty()) {
+                return Collections.emptySet();
+            }
+            Set<String> words = Sets.newHashSet();
+            for (IndexChange change : changes) {
+                words.addAll(change.added);
+                words.addAll(change.removed);
+            }
+            return words;
+        }
+    }
+
+}
@@ -0,0 +1,54 @@
+package org.demo.chapter07;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.List;
+
+/**
+ * Lua脚本
+ * <p>
+ * 第一次执行时使用SCRIPT LOAD把脚本载入Redis,之后只通过EVALSHA发送
+ * 脚本的SHA1校验和,不必在每次调用的时候都传输整个脚本.
+ * 如果Redis因为重启或者执行了SCRIPT FLUSH而丢失了脚本,那么程序会在
+ * 收到NOSCRIPT错误之后重新载入脚本,然后再执行一次.
+ * <p>
+ * 脚本在执行期间会阻塞Redis,所以只适合放入那些本来就需要在一次通信往返
+ * 里面完成的、执行时间较短的命令.
+ */
+public class LuaScript {
+
+    //脚本内容
+    private final String source;
+    //脚本的SHA1校验和
+    private volatile String sha;
+
+    public LuaScript(String source) {
+        this.source = source;
+    }
+
+    /**
+     * 执行脚本
+     *
+     * @param conn 连接
+     * @param keys 脚本用到的键
+     * @param args 脚本参数
+     * @return 脚本返回值
+     */
+    public Object eval(Jedis conn, List<String> keys, List<String> args) {
+        if (null == sha) {
+            sha = conn.scriptLoad(source);
+        }
+        try {
+            return conn.evalsha(sha, keys, args);
+        } catch (JedisDataException e) {
+            //脚本已经从Redis中丢失,重新载入之后再执行一次
+            if (null == e.getMessage() || !e.getMessage().startsWith("NOSCRIPT")) {
+                throw e;
+            }
+            sha = conn.scriptLoad(source);
+            return conn.evalsha(sha, keys, args);
+        }
+    }
+
+}
@@ -1,25 +1,46 @@
 package org.demo.chapter07;
 
-import com.alibaba.fastjson.JSON;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
 import lombok.AllArgsConstructor;
 import lombok.EqualsAndHashCode;
 import lombok.Setter;
 import lombok.ToString;
 import org.apache.commons.lang3.StringUtils;
 import org.demo.commons.Page;
+import org.javatuples.Pair;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
 import redis.clients.jedis.SortingParams;
 import redis.clients.jedis.Transaction;
 import redis.clients.jedis.ZParams;
+import redis.clients.util.SafeEncoder;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * 需求描述
@@ -54,27 +75,59 @@ import java.util.regex.Pattern;
  * 对搜索结果进行评分和排序
  * <p>
  * 反向索引结构
- * idx:单词----------set
+ * idx:单词(设置了单词字典时为单词编号,见TermDictionary)----------set
  * 文档id
  * <p>
  * 文档所含索引结构
  * content:word:文档id----------string
- * JSON格式索引集合字符串
+ * 编码之后的单词(或单词编号)列表(JSON格式字符串数组或者紧凑的二进制格式,见WordListCodecs)
  * <p>
- * 文档结构
+ * 文档结构(searchAndFetch通过fetchDocuments批量读取,可以使用DocumentCache缓存在本地)
  * kb:doc:文档id----------hash
  * 文档字段     | 字段值
  * <p>
  * 排序集合结构
  * idx:sort:字段----------zset
  * 文档id | 字段值
+ * <p>
+ * 词频结构(开启indexTermFrequency之后)
+ * idx:tf:单词----------zset
+ * 文档id | 按照BM25归一化之后的词频
+ * <p>
+ * 文档长度结构
+ * idx:doclen:----------hash
+ * 文档id | 文档包含的单词数量(包括重复的单词)
+ * <p>
+ * 语料统计信息结构
+ * idx:corpus:----------hash
+ * docs | 文档数量
+ * length | 文档长度之和
+ * <p>
+ * 单词表结构(开启indexLexicon之后)
+ * idx:lexicon:----------zset
+ * 单词 | 0
+ * <p>
+ * 单词位置结构(开启indexPositions之后,见Proximity)
+ * content:pos:文档id----------hash
+ * 单词(或单词编号) | 编码之后的位置列表
+ * <p>
+ * 设置了indexFeed之后,每次修改索引都会同时追加一条变更记录,见IndexFeed
  */
 public class MyES {
 
-    //用于查找需要的单词、不需要的单词以及同义词的正则表达式
-    private final static Pattern QUERY_RE = Pattern.compile("[+-]?[a-z']{2,}");
-    //根据定义提取单词的正则表达式
-    private final static Pattern WORDS_RE = Pattern.compile("[a-z']{2,}");
+    //用于查找需要的单词、不需要的单词以及同义词的正则表达式,以*结尾的单词表示前缀
+    private final static Pattern QUERY_RE = Pattern.compile("[+-]?[a-z']{2,}\\*?");
+    //短语"exact phrase"以及邻近查询a NEAR/3 b NEAR/2 c
+    private final static Pattern PROXIMITY_RE = Pattern.compile("\"([^\"]*)\"|[a-z']{2,}(\\s+near/\\d+\\s+[a-z']{2,})+");
+    //tempId分配的临时结果id: UUID,设置了临时结果管理时带有保留前缀
+    private final static Pattern TEMP_ID_RE =
+            Pattern.compile("(.+:)?[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+    //searchAndRank生成的排序结果id: 查询结果id:by:排序字段
+    private final static Pattern RANKED_ID_RE = Pattern.compile("(.+):by:[^:]+");
+    //单词或者单词编号,只有一个单词的查询结果就是单词本身的索引集合
+    private final static Pattern WORD_ID_RE = Pattern.compile("[a-z']+|\\d+");
+    //本地缓存的前缀数量超过这个值时清空缓存
+    private final static int PREFIX_CACHE_SIZE = 10000;
     //预先定义好从http://www.textfixer.com/resources获取的非用词
     //对于文档的用途不同,常用词会不同,所有费非用词也会不同,所以移除非用
     //词的关键是找出合适的非用词清单.所以这里需要扩展,最好抽象出接口对象.
@@ -97,8 +150,204 @@ public class MyES {
         }
     }
 
+    //分词器,按照[a-z']{2,}的规则逐个扫描字符提取单词,并排除非用词
+    private final static Tokenizer TOKENIZER = new Tokenizer(STOP_WORDS);
+
+    /**
+     * 在一次通信往返里面完成整个查询的脚本
+     * KEYS[1]为结果集合,之后依次是各个同义词列表包含的单词的索引集合,
+     * 最后是不需要的单词的索引集合.
+     * ARGV[1]为结果的缓存时间,ARGV[2]为同义词列表的数量,之后依次是各个同义词列表包含的单词数量.
+     * 并集计算产生的中间结果只在脚本内部使用,脚本返回之前就会被删除.
+     */
+    private final static LuaScript SEARCH_SCRIPT = new LuaScript(
+            "local dest = KEYS[1]\n" +
+            "local groups = tonumber(ARGV[2])\n" +
+            "local k = 2\n" +
+            "local inter = {}\n" +
+            "local temps = {}\n" +
+            //对包含多个单词的同义词列表执行并集计算
+            "for g = 1, groups do\n" +
+            "    local size = tonumber(ARGV[2 + g])\n" +
+            "    if size > 1 then\n" +
+            "        local tmp = dest .. ':' .. g\n" +
+            "        redis.call('SUNIONSTORE', tmp, unpack(KEYS, k, k + size - 1))\n" +
+            "        table.insert(temps, tmp)\n" +
+            "        table.insert(inter, tmp)\n" +
+            "    else\n" +
+            "        table.insert(inter, KEYS[k])\n" +
+            "    end\n" +
+            "    k = k + size\n" +
+            "end\n" +
+            //对各个同义词列表的结果执行交集计算
+            "redis.call('SINTERSTORE', dest, unpack(inter))\n" +
+            //移除包含不需要的单词的文档
+            "if k <= #KEYS then\n" +
+            "    redis.call('SDIFFSTORE', dest, dest, unpack(KEYS, k, #KEYS))\n" +
+            "end\n" +
+            "if #temps > 0 then\n" +
+            "    redis.call('DEL', unpack(temps))\n" +
+            "end\n" +
+            "redis.call('EXPIRE', dest, ARGV[1])\n" +
+            "return redis.call('SCARD', dest)\n");
+
+    //BM25参数,k1控制词频的饱和速度,b控制文档长度的影响
+    private final static double BM25_K1 = 1.2;
+    private final static double BM25_B = 0.75;
+
+    /**
+     * 在一次通信往返里面完成查询和BM25评分的脚本
+     * KEYS[1]为排好序的结果,KEYS[2]为语料统计信息,之后依次是各个同义词列表包含的单词的
+     * 索引集合和词频有序集合(成对出现),最后是不需要的单词的索引集合.
+     * ARGV[1]为结果的缓存时间,ARGV[2]为第一页的文档数量,ARGV[3]为同义词列表的数量,
+     * 之后依次是各个同义词列表包含的单词数量.
+     * 文档是否满足查询条件仍然通过索引集合计算,评分则是以每个单词的IDF为权重,
+     * 对单词的词频有序集合执行ZUNIONSTORE,最后通过ZINTERSTORE(满足条件的文档权重为0)
+     * 只保留满足条件的文档的分值.
+     */
+    private final static LuaScript SEARCH_RANKED_SCRIPT = new LuaScript(
+            "local dest = KEYS[1]\n" +
+            "local n = tonumber(redis.call('HGET', KEYS[2], 'docs')) or 0\n" +
+            "local groups = tonumber(ARGV[3])\n" +
+            "local k = 3\n" +
+            "local inter = {}\n" +
+            "local temps = {}\n" +
+            "local tfs = {}\n" +
+            "local weights = {}\n" +
+            "for g = 1, groups do\n" +
+            "    local size = tonumber(ARGV[3 + g])\n" +
+            "    local sets = {}\n" +
+            "    for i = 1, size do\n" +
+            "        table.insert(sets, KEYS[k])\n" +
+            //IDF = ln(1 + (N - df + 0.5) / (df + 0.5))
+            "        local df = redis.call('ZCARD', KEYS[k + 1])\n" +
+            "        table.insert(tfs, KEYS[k + 1])\n" +
+            "        table.insert(weights, math.log(1 + (n - df + 0.5) / (df + 0.5)))\n" +
+            "        k = k + 2\n" +
+            "    end\n" +
+            "    if size > 1 then\n" +
+            "        local tmp = dest .. ':' .. g\n" +
+            "        redis.call('SUNIONSTORE', tmp, unpack(sets))\n" +
+            "        table.insert(temps, tmp)\n" +
+            "        table.insert(inter, tmp)\n" +
+            "    else\n" +
+            "        table.insert(inter, sets[1])\n" +
+            "    end\n" +
+            "end\n" +
+            //满足查询条件的文档
+            "local matched = dest .. ':matched'\n" +
+            "redis.call('SINTERSTORE', matched, unpack(inter))\n" +
+            "table.insert(temps, matched)\n" +
+            "if k <= #KEYS then\n" +
+            "    redis.call('SDIFFSTORE', matched, matched, unpack(KEYS, k, #KEYS))\n" +
+            "end\n" +
+            //以IDF为权重计算每个文档的分值
+            "local scores = dest .. ':scores'\n" +
+            "local args = {'ZUNIONSTORE', scores, #tfs}\n" +
+            "for _, key in ipairs(tfs) do table.insert(args, key) end\n" +
+            "table.insert(args, 'WEIGHTS')\n" +
+            "for _, weight in ipairs(weights) do table.insert(args, weight) end\n" +
+            "redis.call(unpack(args))\n" +
+            "table.insert(temps, scores)\n" +
+            "redis.call('ZINTERSTORE', dest, 2, matched, scores, 'WEIGHTS', 0, 1)\n" +
+            "redis.call('DEL', unpack(temps))\n" +
+            "redis.call('EXPIRE', dest, ARGV[1])\n" +
+            "return {redis.call('ZCARD', dest), redis.call('ZREVRANGE', dest, 0, tonumber(ARGV[2]) - 1)}\n");
+
     @Setter
     private Jedis conn;
+    //是否使用Lua脚本在一次通信往返里面执行整个查询
+    @Setter
+    private boolean useScript;
+    //查询结果缓存
+    @Setter
+    private QueryCache queryCache;
+    //文档所含单词列表的编码方式
+    @Setter
+    private WordListCodec wordListCodec = WordListCodecs.JSON_CODEC;
+    //批量创建索引时每一批处理的文档数量
+    @Setter
+    private int indexBatchSize = 1000;
+    //批量创建索引时用于分词的线程池,没有设置时每次批量创建索引都会创建一个临时的线程池
+    @Setter
+    private ExecutorService tokenizeExecutor;
+    //单词字典,设置之后索引集合和文档所含单词的记录都使用单词编号代替单词本身,
+    //已有的索引需要重新创建才能在设置之后继续使用
+    @Setter
+    private TermDictionary termDictionary;
+    //查询计划,设置之后根据索引集合的大小决定查询的执行方式
+    @Setter
+    private QueryPlanner queryPlanner;
+    //是否记录词频以及文档长度,记录之后才能使用searchRanked按照BM25相关度排序
+    @Setter
+    private boolean indexTermFrequency;
+    //是否把新出现的单词记录到单词表里面,记录之后查询语句才能使用前缀
+    @Setter
+    private boolean indexLexicon;
+    //一个前缀最多展开的单词数量
+    @Setter
+    private int prefixExpansionLimit = 100;
+    //前缀展开结果在本地缓存的时间(毫秒)
+    @Setter
+    private long prefixCacheTtl = 60000;
+    //本地缓存,前缀 -> 展开结果
+    private final Map<String, PrefixExpansion> prefixExpansions = new ConcurrentHashMap<String, PrefixExpansion>();
+    //是否记录单词在文档中的位置,记录之后才能使用短语查询和邻近查询
+    @Setter
+    private boolean indexPositions;
+    //检查单词位置时每个流水线处理的候选文档数量
+    @Setter
+    private int verifyBatchSize = 1000;
+    //临时结果管理,设置之后查询内部创建的临时集合会在查询结束时被删除,而不是等待过期
+    @Setter
+    private TempKeyManager tempKeyManager;
+    //文档的本地缓存,设置之后fetchDocuments先从缓存读取文档字段
+    @Setter
+    private DocumentCache documentCache;
+    //索引变更记录,设置之后创建和删除文档索引时追加一条变更,供其他进程增量同步
+    @Setter
+    private IndexFeed indexFeed;
+    //查询指标,设置之后每次查询结束时记录各个阶段的耗时
+    @Setter
+    private SearchMetrics searchMetrics;
+    //当前线程正在记录的查询
+    private final ThreadLocal<QueryTrace> traces = new ThreadLocal<QueryTrace>();
+    //连接池和线程池,同时设置之后多个同义词列表的并集会使用不同的连接同时计算
+    @Setter
+    private JedisPool pool;
+    @Setter
+    private ExecutorService searchExecutor;
+
+    /**
+     * 创建一个使用另一个连接、配置相同的搜索对象,ShardedES用它为每个分片创建搜索对象
+     * 查询结果缓存、查询计划、单词字典、索引变更记录以及连接池都绑定了一个Redis连接,
+     * 不能在不同的分片之间共用,设置了它们时需要通过ShardedES.ShardFactory为每个分片分别创建.
+     *
+     * @param conn 连接
+     * @return 搜索对象
+     */
+    public MyES copy(Jedis conn) {
+        if (null != queryCache || null != queryPlanner || null != termDictionary || null != indexFeed
+                || null != pool) {
+            throw new IllegalStateException("设置了绑定连接的组件,不能复制到其他连接上");
+        }
+        MyES es = new MyES();
+        es.conn = conn;
+        es.useScript = useScript;
+        es.wordListCodec = wordListCodec;
+        es.indexBatchSize = indexBatchSize;
+        es.tokenizeExecutor = tokenizeExecutor;
+        es.indexTermFrequency = indexTermFrequency;
+        es.indexLexicon = indexLexicon;
+        es.prefixExpansionLimit = prefixExpansionLimit;
+        es.prefixCacheTtl = prefixCacheTtl;
+        es.indexPositions = indexPositions;
+        es.verifyBatchSize = verifyBatchSize;
+        es.tempKeyManager = tempKeyManager;
+        es.documentCache = documentCache;
+        es.searchMetrics = searchMetrics;
+        return es;
+    }
 
     /**
      * 分词
@@ -109,22 +358,56 @@ public class MyES {
      * @return 单词集合
      */
     public Set<String> tokenize(String content) {
-        //将文档中包含的单词存储到集合中
-        Set<String> words = Sets.newHashSet();
-        Matcher matcher = WORDS_RE.matcher(content.toLowerCase());
-        //遍历文档中包含的所有单词
-        while (matcher.find()) {
-            String word = matcher.group().trim();
-            //保留那些至少有两个字符长的单词,并排除停用词
-            //剔除所有位于单词前面或后面的单引号
-            word.replace("'", "");
-            if (word.length() >= 2 &&
-                    !STOP_WORDS.contains(word)) {
-                words.add(word);
+        //返回一个集合,集合里面包含了所有被保留的不是非用词的单词
+        return TOKENIZER.tokenize(content);
+    }
+
+    /**
+     * 统计文档中每个单词出现的次数
+     *
+     * @param content 文档内容
+     * @return 单词 -> 出现次数
+     */
+    public Map<String, Integer> termFrequencies(String content) {
+        final Map<String, int[]> counts = Maps.newHashMap();
+        TOKENIZER.tokenize(content, new Tokenizer.TokenCallback() {
+            public void token(char[] buffer, int offset, int length, int position) {
+                String word = new String(buffer, offset, length);
+                int[] count = counts.get(word);
+                if (null == count) {
+                    count = new int[1];
+                    counts.put(word, count);
+                }
+                count[0]++;
             }
+        });
+        Map<String, Integer> frequencies = Maps.newHashMapWithExpectedSize(counts.size());
+        for (Map.Entry<String, int[]> count : counts.entrySet()) {
+            frequencies.put(count.getKey(), count.getValue()[0]);
         }
-        //返回一个集合,集合里面包含了所有被保留的不是非用词的单词
-        return words;
+        return frequencies;
+    }
+
+    /**
+     * 记录文档中每个单词出现的位置
+     *
+     * @param content 文档内容
+     * @return 单词 -> 升序排列的位置
+     */
+    public Map<String, List<Integer>> positions(String content) {
+        final Map<String, List<Integer>> positions = Maps.newHashMap();
+        TOKENIZER.tokenize(content, new Tokenizer.TokenCallback() {
+            public void token(char[] buffer, int offset, int length, int position) {
+                String word = new String(buffer, offset, length);
+                List<Integer> list = positions.get(word);
+                if (null == list) {
+                    list = Lists.newArrayList();
+                    positions.put(word, list);
+                }
+                list.add(position);
+            }
+        });
+        return positions;
     }
 
     /**
@@ -135,21 +418,497 @@ public class MyES {
      * @return 索引个数
      */
     public int indexDocument(String docid, String content) {
-        //删除文档旧的索引
-        deleteIndex(docid);
-        //分词,并返回分词结果
-        Set<String> words = tokenize(content);
-        //将文档添加到正确的反向索引集合里面
-        Transaction trans = conn.multi();
-        for (String word : words) {
-            //这里对索引key的拼接在删除时候也进行了一次,可以在开始时进行一次拼接,
-            //用在这里和删除的时候,节省一些时间.由于这里不需要对集合进行修改,如果
-            //把处理过程分解成不同的步骤,可以利用Java8中并行流带来的性能提升.
-            trans.sadd(idxKey(word), docid);
+        return indexDocument(docid, content, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * 创建索引,同时更新文档排序字段的有序集合
+     * 排序字段与索引在同一个事务里面更新,所以searchAndRank总能看到与索引一致的排序字段.
+     *
+     * @param docid      文档ID
+     * @param content    文档内容
+     * @param sortFields 排序字段 -> 字段值
+     * @return 索引个数
+     */
+    public int indexDocument(String docid, String content, Map<String, String> sortFields) {
+        //分词,并返回分词结果,记录词频时同时统计每个单词出现的次数,记录位置时同时记录每个单词的位置
+        Map<String, Integer> frequencies = indexTermFrequency ? termFrequencies(content) : null;
+        Map<String, List<Integer>> positions = indexPositions ? positions(content) : null;
+        Set<String> words = null != frequencies ? frequencies.keySet()
+                : null != positions ? positions.keySet() : tokenize(content);
+        //使用单词字典时把单词转换为编号
+        Map<String, String> termMap = termMap(words);
+        Set<String> terms = Sets.newHashSet(termMap.values());
+        String wordsKey = wordsKey(docid);
+        while (true) {
+            //监视文档所含单词的key,防止其他客户端在计算差集之后修改了这个文档的索引
+            conn.watch(wordsKey);
+            //获取文档中原有的索引(单词)
+            Set<String> oldWords = Sets.newHashSet(decodeWords(conn.get(SafeEncoder.encode(wordsKey))));
+            //文档更新时大部分单词通常都没有变化,所以只需要删除文档不再包含的单词的索引,
+            //并添加文档新包含的单词的索引,而不必删除全部旧索引之后再重新添加全部新索引
+            Set<String> removed = Sets.difference(oldWords, terms);
+            Set<String> added = Sets.difference(terms, oldWords);
+            //单词没有变化时词频和位置仍然可能变化
+            if (removed.isEmpty() && added.isEmpty() && sortFields.isEmpty()
+                    && null == frequencies && null == positions) {
+                conn.unwatch();
+                break;
+            }
+            //变更记录使用单词而不是单词编号,需要在事务开始之前找出删除的单词编号对应的单词
+            Map<String, String> removedWords = null != indexFeed ? wordsOf(removed) : null;
+            //文档长度只会与文档所含单词的记录一起修改,所以这里读到的是与单词记录一致的长度
+            String oldLength = null;
+            List<String> corpus = null;
+            if (null != frequencies) {
+                oldLength = conn.hget(docLengthKey(), docid);
+                corpus = conn.hmget(corpusKey(), "docs", "length");
+            }
+            Transaction trans = conn.multi();
+            if (null != frequencies) {
+                indexTermFrequencies(trans, docid, removed, frequencies, termMap, oldLength, corpus);
+            }
+            for (Map.Entry<String, String> field : sortFields.entrySet()) {
+                trans.zadd(sortKey(field.getKey()), sortScore(field.getKey(), field.getValue()), docid);
+            }
+            if (indexLexicon && !added.isEmpty()) {
+                Map<String, Double> lexicon = Maps.newHashMap();
+                for (Map.Entry<String, String> term : termMap.entrySet()) {
+                    if (added.contains(term.getValue())) {
+                        lexicon.put(term.getKey(), 0.0);
+                    }
+                }
+                trans.zadd(lexiconKey(), lexicon);
+            }
+            for (String word : removed) {
+                trans.srem(idxKey(word), docid);
+            }
+            //将文档添加到正确的反向索引集合里面
+            for (String word : added) {
+                trans.sadd(idxKey(word), docid);
+            }
+            trans.set(SafeEncoder.encode(wordsKey), wordListCodec.encode(terms));
+            if (null != positions) {
+                indexPositions(trans, docid, positions, termMap);
+            }
+            if (null != removedWords && (!added.isEmpty() || !removed.isEmpty())) {
+                Set<String> addedWords = Sets.newHashSet();
+                for (Map.Entry<String, String> term : termMap.entrySet()) {
+                    if (added.contains(term.getValue())) {
+                        addedWords.add(term.getKey());
+                    }
+                }
+                indexFeed.append(trans, docid, addedWords, removedWords.values());
+            }
+            //有其他客户端修改了这个文档的索引,重试
+            if (null != trans.exec()) {
+                break;
+            }
+        }
+        //重新创建索引说明文档已经发生了变化
+        if (null != documentCache) {
+            documentCache.invalidate(docid);
         }
-        trans.set(wordsKey(docid), JSON.toJSONString(words));
         //计算一下,程序为这个文档添加了多少个独一无二的,不是非用词的单词
-        return trans.exec().size() - 1;
+        return words.size();
+    }
+
+    /**
+     * 在事务中更新文档的词频和长度,以及语料的统计信息
+     * 词频有序集合中保存的是已经按照BM25归一化的词频:
+     * tf * (k1 + 1) / (tf + k1 * (1 - b + b * 文档长度 / 平均文档长度))
+     * 查询时只需要再乘以单词的IDF,就可以通过加权的ZUNIONSTORE得到BM25分值.
+     * 平均文档长度使用创建索引时的统计信息,语料的规模较大时平均长度的变化很小,
+     * 变化较大时可以重建索引刷新分值.
+     *
+     * @param trans       事务对象
+     * @param docid       文档ID
+     * @param removed     文档不再包含的单词
+     * @param frequencies 单词 -> 出现次数
+     * @param termMap     单词 -> 索引使用的单词或者单词编号
+     * @param oldLength   文档原来的长度
+     * @param corpus      语料中的文档数量以及文档长度之和
+     */
+    private void indexTermFrequencies(Transaction trans, String docid, Set<String> removed,
+                                      Map<String, Integer> frequencies, Map<String, String> termMap,
+                                      String oldLength, List<String> corpus) {
+        long length = 0;
+        for (int tf : frequencies.values()) {
+            length += tf;
+        }
+        long old = null == oldLength ? 0 : Long.parseLong(oldLength);
+        long docs = (null == corpus.get(0) ? 0 : Long.parseLong(corpus.get(0))) + (null == oldLength ? 1 : 0);
+        long total = (null == corpus.get(1) ? 0 : Long.parseLong(corpus.get(1))) - old + length;
+        double avgLength = docs > 0 && total > 0 ? (double) total / docs : 1;
+
+        for (String term : removed) {
+            trans.zrem(tfKey(term), docid);
+        }
+        for (Map.Entry<String, Integer> frequency : frequencies.entrySet()) {
+            int tf = frequency.getValue();
+            double score = tf * (BM25_K1 + 1) / (tf + BM25_K1 * (1 - BM25_B + BM25_B * length / avgLength));
+            trans.zadd(tfKey(termMap.get(frequency.getKey())), score, docid);
+        }
+        trans.hset(docLengthKey(), docid, String.valueOf(length));
+        trans.hincrBy(corpusKey(), "length", length - old);
+        if (null == oldLength) {
+            trans.hincrBy(corpusKey(), "docs", 1);
+        }
+    }
+
+    /**
+     * 在事务中替换文档的单词位置
+     *
+     * @param trans     事务对象
+     * @param docid     文档ID
+     * @param positions 单词 -> 升序排列的位置
+     * @param termMap   单词 -> 索引使用的单词或者单词编号
+     */
+    private void indexPositions(Transaction trans, String docid,
+                                Map<String, List<Integer>> positions, Map<String, String> termMap) {
+        byte[] key = SafeEncoder.encode(positionsKey(docid));
+        trans.del(key);
+        if (positions.isEmpty()) {
+            return;
+        }
+        Map<byte[], byte[]> fields = Maps.newHashMapWithExpectedSize(positions.size());
+        for (Map.Entry<String, List<Integer>> entry : positions.entrySet()) {
+            fields.put(SafeEncoder.encode(termMap.get(entry.getKey())), Proximity.encodePositions(entry.getValue()));
+        }
+        trans.hmset(key, fields);
+    }
+
+    /**
+     * 批量创建索引
+     *
+     * @param documents 文档ID -> 文档内容
+     * @return 索引统计信息
+     */
+    public IndexStats indexDocuments(Map<String, String> documents) {
+        return indexDocuments(documents.entrySet().iterator());
+    }
+
+    /**
+     * 批量创建索引
+     * 逐个创建索引时,每个文档都需要一次GET和两个事务,重建大量文档的索引会非常慢.
+     * 这里每次从迭代器中取出indexBatchSize个文档作为一批进行处理:
+     * 1.在线程池中并行地对这批文档进行分词
+     * 2.使用一个MGET取出这批文档原有的单词
+     * 3.计算每个文档删除和新增的单词,并按照单词对文档进行分组,每个索引集合只需要一个SREM和一个SADD,
+     * 所有命令都通过同一个流水线发送
+     * 迭代器可以是流式读取的,任何时候都只有一批文档在内存中.
+     * 与indexDocument不同,这里没有使用事务,一批文档的索引在流水线执行期间可能只有一部分生效.
+     * 记录词频时每个文档的评分依赖于语料的统计信息,记录位置时每个文档本来就需要单独写入一个散列,
+     * 所以这两种情况都会退化为逐个调用indexDocument.
+     *
+     * @param documents 文档迭代器, 文档ID -> 文档内容
+     * @return 索引统计信息
+     */
+    public IndexStats indexDocuments(Iterator<Map.Entry<String, String>> documents) {
+        long start = System.currentTimeMillis();
+        IndexStats stats = new IndexStats();
+        if (indexTermFrequency || indexPositions) {
+            while (documents.hasNext()) {
+                Map.Entry<String, String> document = documents.next();
+                stats.words += indexDocument(document.getKey(), document.getValue());
+                stats.documents++;
+                stats.batches++;
+            }
+            stats.elapsed = System.currentTimeMillis() - start;
+            return stats;
+        }
+        ExecutorService executor = tokenizeExecutor;
+        if (null == executor) {
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        }
+        try {
+            //同一批中重复的文档只保留最后一个
+            Map<String, String> batch = Maps.newLinkedHashMap();
+            while (documents.hasNext()) {
+                Map.Entry<String, String> document = documents.next();
+                batch.put(document.getKey(), document.getValue());
+                if (batch.size() >= indexBatchSize) {
+                    indexBatch(batch, executor, stats);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                indexBatch(batch, executor, stats);
+            }
+        } finally {
+            if (executor != tokenizeExecutor) {
+                executor.shutdown();
+            }
+        }
+        stats.elapsed = System.currentTimeMillis() - start;
+        return stats;
+    }
+
+    /**
+     * 创建一批文档的索引
+     *
+     * @param batch    文档ID -> 文档内容
+     * @param executor 分词线程池
+     * @param stats    索引统计信息
+     */
+    private void indexBatch(Map<String, String> batch, ExecutorService executor, IndexStats stats) {
+        //在线程池中并行地进行分词
+        List<String> docids = Lists.newArrayList(batch.keySet());
+        if (null != documentCache) {
+            documentCache.invalidate(docids);
+        }
+        List<Future<Set<String>>> futures = Lists.newArrayList();
+        for (final String content : batch.values()) {
+            futures.add(executor.submit(new Callable<Set<String>>() {
+                public Set<String> call() {
+                    return tokenize(content);
+                }
+            }));
+        }
+
+        //在分词的同时,一次取出这批文档原有的单词
+        byte[][] wordsKeys = new byte[docids.size()][];
+        for (int i = 0; i < docids.size(); i++) {
+            wordsKeys[i] = SafeEncoder.encode(wordsKey(docids.get(i)));
+        }
+        List<byte[]> oldWordsList = conn.mget(wordsKeys);
+
+        List<Set<String>> wordsList = Lists.newArrayList();
+        for (Future<Set<String>> future : futures) {
+            try {
+                wordsList.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        //使用单词字典时,整批文档的新单词只需要一次通信往返就可以全部分配编号
+        List<Set<String>> termsList = toTerms(wordsList);
+
+        //按照单词对文档进行分组,与indexDocument一样只处理发生了变化的单词
+        Map<String, List<String>> removed = Maps.newHashMap();
+        Map<String, List<String>> added = Maps.newHashMap();
+        List<byte[]> keysValues = Lists.newArrayList();
+        //索引发生了变化的文档包含的单词,ZADD已经存在的单词不会修改单词表
+        Map<String, Double> lexicon = Maps.newHashMap();
+        //索引发生了变化的文档 -> 新增的单词和删除的单词,用于变更记录
+        Map<String, List<Set<String>>> changed = Maps.newLinkedHashMap();
+        for (int i = 0; i < docids.size(); i++) {
+            String docid = docids.get(i);
+            Set<String> oldWords = Sets.newHashSet(decodeWords(oldWordsList.get(i)));
+            Set<String> words = termsList.get(i);
+            stats.documents++;
+            stats.words += words.size();
+            if (oldWords.equals(words)) {
+                continue;
+            }
+            for (String word : Sets.difference(oldWords, words)) {
+                groupByWord(removed, word, docid);
+                stats.changes++;
+            }
+            for (String word : Sets.difference(words, oldWords)) {
+                groupByWord(added, word, docid);
+                stats.changes++;
+            }
+            if (indexLexicon) {
+                for (String word : wordsList.get(i)) {
+                    lexicon.put(word, 0.0);
+                }
+            }
+            if (null != indexFeed) {
+                changed.put(docid, Lists.<Set<String>>newArrayList(
+                        Sets.difference(words, oldWords), Sets.difference(oldWords, words)));
+            }
+            keysValues.add(wordsKeys[i]);
+            keysValues.add(wordListCodec.encode(words));
+        }
+        if (keysValues.isEmpty()) {
+            stats.batches++;
+            return;
+        }
+
+        //先删除旧的索引再添加新的索引,每个索引集合只需要一个命令
+        Pipeline pipeline = conn.pipelined();
+        for (Map.Entry<String, List<String>> entry : removed.entrySet()) {
+            pipeline.srem(idxKey(entry.getKey()), entry.getValue().toArray(new String[entry.getValue().size()]));
+        }
+        for (Map.Entry<String, List<String>> entry : added.entrySet()) {
+            pipeline.sadd(idxKey(entry.getKey()), entry.getValue().toArray(new String[entry.getValue().size()]));
+        }
+        pipeline.mset(keysValues.toArray(new byte[keysValues.size()][]));
+        if (!lexicon.isEmpty()) {
+            pipeline.zadd(lexiconKey(), lexicon);
+            stats.commands++;
+        }
+        if (!changed.isEmpty()) {
+            appendChanges(pipeline, changed);
+            stats.commands += changed.size();
+        }
+        pipeline.sync();
+        stats.batches++;
+        stats.commands += removed.size() + added.size() + 1;
+    }
+
+    /**
+     * 把单词转换为单词编号,没有编号的单词会被分配一个编号
+     * 没有设置单词字典时直接返回单词本身.
+     *
+     * @param words 单词集合
+     * @return 单词编号集合
+     */
+    public Set<String> terms(Set<String> words) {
+        return toTerms(Collections.singletonList(words)).get(0);
+    }
+
+    //把多个单词集合转换为单词编号集合,所有单词只需要一次查找
+    private List<Set<String>> toTerms(List<Set<String>> wordsList) {
+        if (null == termDictionary) {
+            return wordsList;
+        }
+        Set<String> all = Sets.newHashSet();
+        for (Set<String> words : wordsList) {
+            all.addAll(words);
+        }
+        Map<String, String> termMap = termMap(all);
+        List<Set<String>> termsList = Lists.newArrayListWithCapacity(wordsList.size());
+        for (Set<String> words : wordsList) {
+            Set<String> terms = Sets.newHashSetWithExpectedSize(words.size());
+            for (String word : words) {
+                terms.add(termMap.get(word));
+            }
+            termsList.add(terms);
+        }
+        return termsList;
+    }
+
+    //单词 -> 索引使用的单词或者单词编号,没有编号的单词会被分配一个编号
+    private Map<String, String> termMap(Collection<String> words) {
+        Map<String, String> termMap = Maps.newHashMapWithExpectedSize(words.size());
+        Map<String, Integer> ids = null == termDictionary
+                ? Collections.<String, Integer>emptyMap() : termDictionary.ids(words);
+        for (String word : words) {
+            termMap.put(word, null == termDictionary ? word : String.valueOf(ids.get(word)));
+        }
+        return termMap;
+    }
+
+    /**
+     * 查找单词的编号,用于查询,不会为单词分配编号
+     * 没有编号的单词不会出现在任何文档里面,这里直接返回单词本身:
+     * 单词只包含字母和单引号,永远不会与编号冲突,所以它的索引集合一定是空的.
+     * 没有设置单词字典时直接返回单词本身.
+     *
+     * @param words 单词集合
+     * @return 单词 -> 单词编号
+     */
+    public Map<String, String> lookupTerms(Collection<String> words) {
+        Map<String, String> terms = Maps.newHashMapWithExpectedSize(words.size());
+        Map<String, Integer> ids = null == termDictionary
+                ? Collections.<String, Integer>emptyMap() : termDictionary.lookup(words);
+        for (String word : words) {
+            Integer id = ids.get(word);
+            terms.put(word, null == id ? word : String.valueOf(id));
+        }
+        return terms;
+    }
+
+    //展开查询对象中的前缀,再把单词转换为单词编号
+    private Query toTerms(Query query) {
+        query = expandPrefixes(query);
+        if (null == termDictionary) {
+            return query;
+        }
+        Set<String> words = Sets.newHashSet(query.unwanted);
+        for (List<String> syn : query.all) {
+            words.addAll(syn);
+        }
+        for (Proximity proximity : query.proximities) {
+            words.addAll(proximity.words);
+        }
+        long start = System.nanoTime();
+        int roundTrips = termDictionary.isCached(words) ? 0 : 1;
+        Map<String, String> terms = lookupTerms(words);
+        stage("terms", start, roundTrips, -1);
+        Query result = new Query();
+        for (Proximity proximity : query.proximities) {
+            result.proximities.add(proximity.map(terms));
+        }
+        for (List<String> syn : query.all) {
+            List<String> termSyn = Lists.newArrayListWithCapacity(syn.size());
+            for (String word : syn) {
+                termSyn.add(terms.get(word));
+            }
+            result.all.add(termSyn);
+        }
+        for (String word : query.unwanted) {
+            result.unwanted.add(terms.get(word));
+        }
+        return result;
+    }
+
+    /**
+     * 在流水线中追加一批文档的变更记录
+     *
+     * @param pipeline 流水线
+     * @param changed  文档id -> 新增的单词编号和删除的单词编号
+     */
+    private void appendChanges(Pipeline pipeline, Map<String, List<Set<String>>> changed) {
+        Set<String> terms = Sets.newHashSet();
+        for (List<Set<String>> change : changed.values()) {
+            terms.addAll(change.get(0));
+            terms.addAll(change.get(1));
+        }
+        Map<String, String> words = wordsOf(terms);
+        for (Map.Entry<String, List<Set<String>>> change : changed.entrySet()) {
+            List<String> added = Lists.newArrayList();
+            for (String term : change.getValue().get(0)) {
+                added.add(words.get(term));
+            }
+            List<String> removed = Lists.newArrayList();
+            for (String term : change.getValue().get(1)) {
+                removed.add(words.get(term));
+            }
+            indexFeed.append(pipeline, change.getKey(), added, removed);
+        }
+    }
+
+    /**
+     * 查找单词编号对应的单词
+     * 没有设置单词字典时单词编号就是单词本身,字典中找不到的编号保持原样
+     *
+     * @param terms 单词编号
+     * @return 单词编号 -> 单词
+     */
+    private Map<String, String> wordsOf(Collection<String> terms) {
+        Map<String, String> words = Maps.newHashMapWithExpectedSize(terms.size());
+        if (null == termDictionary) {
+            for (String term : terms) {
+                words.put(term, term);
+            }
+            return words;
+        }
+        List<String> termList = Lists.newArrayList(terms);
+        int[] ids = new int[termList.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = Integer.parseInt(termList.get(i));
+        }
+        List<String> found = termDictionary.terms(ids);
+        for (int i = 0; i < ids.length; i++) {
+            words.put(termList.get(i), null == found.get(i) ? termList.get(i) : found.get(i));
+        }
+        return words;
+    }
+
+    //把文档添加到单词对应的分组里面
+    private static void groupByWord(Map<String, List<String>> groups, String word, String docid) {
+        List<String> docids = groups.get(word);
+        if (null == docids) {
+            docids = Lists.newArrayList();
+            groups.put(word, docids);
+        }
+        docids.add(docid);
     }
 
     /**
@@ -160,19 +919,91 @@ public class MyES {
      */
     public void deleteIndex(String docid) {
         //获取文档中原有的索引(单词),如果不为空,则删除原有的索引
-        String oldWordsStr = conn.get(wordsKey(docid));
-        if (StringUtils.isNotEmpty(oldWordsStr)) {
-            List<String> oldWords = JSON.parseArray(oldWordsStr, String.class);
-            if (null != oldWords && oldWords.size() > 0) {
-                Transaction trans = conn.multi();
-                //循环删除各个索引中存放的文档id,(这里对所有的索引进行了的删除,如果用在重建索引之前
-                //可以优化一下,先求出现在在文档用户的单词和原有文档中的差集,然后只需要对差集进行删除就可以了)
+        String wordsKey = wordsKey(docid);
+        List<String> oldWords = decodeWords(conn.get(SafeEncoder.encode(wordsKey)));
+        if (oldWords.size() > 0) {
+            String oldLength = indexTermFrequency ? conn.hget(docLengthKey(), docid) : null;
+            Map<String, String> removedWords = null != indexFeed ? wordsOf(oldWords) : null;
+            Transaction trans = conn.multi();
+            //循环删除各个索引中存放的文档id
+            for (String word : oldWords) {
+                trans.srem(idxKey(word), docid);
+            }
+            //同时删除词频和文档长度,并更新语料的统计信息
+            if (null != oldLength) {
                 for (String word : oldWords) {
-                    trans.srem(idxKey(word), docid);
+                    trans.zrem(tfKey(word), docid);
                 }
-                trans.exec();
+                trans.hdel(docLengthKey(), docid);
+                trans.hincrBy(corpusKey(), "length", -Long.parseLong(oldLength));
+                trans.hincrBy(corpusKey(), "docs", -1);
             }
+            //同时删除文档所含单词的记录,否则再次创建索引时会认为这些单词的索引仍然存在
+            trans.del(wordsKey);
+            trans.del(positionsKey(docid));
+            if (null != removedWords) {
+                indexFeed.append(trans, docid, Collections.<String>emptySet(), removedWords.values());
+            }
+            trans.exec();
         }
+        if (null != documentCache) {
+            documentCache.invalidate(docid);
+        }
+    }
+
+    /**
+     * 解析文档所含单词的记录
+     * 自动识别记录使用的编码方式,所以切换编码方式之后旧格式的记录仍然可以读取
+     *
+     * @param data 编码之后的单词列表
+     * @return 单词列表, 没有记录时返回空列表
+     */
+    private List<String> decodeWords(byte[] data) {
+        return WordListCodecs.decode(data);
+    }
+
+    /**
+     * 把文档所含单词的记录全部改写为当前使用的编码方式
+     * 使用SCAN逐步遍历所有记录,每次处理count个,
+     * 改写期间如果有记录被其他客户端修改,那么这一批会被重试.
+     *
+     * @param count 每次处理的记录数量
+     * @return 被改写的记录数量
+     */
+    public long migrateWordLists(int count) {
+        long migrated = 0;
+        ScanParams params = new ScanParams().match(wordsKey("*")).count(count);
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+            ScanResult<String> scan = conn.scan(cursor, params);
+            cursor = scan.getStringCursor();
+            List<String> keys = scan.getResult();
+            if (keys.isEmpty()) {
+                continue;
+            }
+            while (true) {
+                conn.watch(keys.toArray(new String[keys.size()]));
+                byte[][] binaryKeys = new byte[keys.size()][];
+                for (int i = 0; i < keys.size(); i++) {
+                    binaryKeys[i] = SafeEncoder.encode(keys.get(i));
+                }
+                List<byte[]> values = conn.mget(binaryKeys);
+                Transaction trans = conn.multi();
+                int changed = 0;
+                for (int i = 0; i < keys.size(); i++) {
+                    byte[] value = values.get(i);
+                    if (null != value && !wordListCodec.accepts(value)) {
+                        trans.set(binaryKeys[i], wordListCodec.encode(decodeWords(value)));
+                        changed++;
+                    }
+                }
+                if (null != trans.exec()) {
+                    migrated += changed;
+                    break;
+                }
+            }
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+        return migrated;
     }
 
     /**
@@ -191,7 +1022,7 @@ public class MyES {
             keys[i] = idxKey(items[i]);
         }
         //创建一个计算结果集合的临时标识符
-        String id = UUID.randomUUID().toString();
+        String id = tempId();
         try {
             //调用执行的集合操作
             if (method.equals("sinterstore")) {
@@ -235,16 +1066,34 @@ public class MyES {
      * 如果某个单词的前面加上了一个加号,表示这个单词是前一个单词的同义词.
      * 如果带有加号的单词前面有带减号的单词,那么程序会略过那些带减号的单词,
      * 并把最先遇到的不带减号的单词看做是同义词.
+     * 如果某个单词以*结尾,表示以这个单词开头的所有单词,它会保留*原样出现在查询对象中,
+     * 在搜索时由expandPrefixes展开.前缀可以是非用词,例如the*可以找到theory.
+     * 使用双引号括起来的多个单词是一个短语,a NEAR/3 b表示a和b之间的距离不超过3,
+     * 它们包含的单词都是必须满足的条件,搜索时再根据单词位置检查(见Proximity).
+     * 连续的a NEAR/3 b NEAR/2 c被当作a NEAR/3 b和b NEAR/2 c两个独立的条件.
      *
      * @param queryString 查询语句
      * @return 查询对象
      */
     public Query parse(String queryString) {
+        long start = System.nanoTime();
         Query query = new Query();
+        //先取出短语和邻近查询,剩下的部分再按照单词处理
+        StringBuffer rest = new StringBuffer();
+        Matcher proximity = PROXIMITY_RE.matcher(queryString.toLowerCase());
+        while (proximity.find()) {
+            if (null != proximity.group(1)) {
+                parsePhrase(query, proximity.group(1));
+            } else {
+                parseNear(query, proximity.group());
+            }
+            proximity.appendReplacement(rest, " ");
+        }
+        proximity.appendTail(rest);
         //这个集合用于存储目前已经发现的同义词
         Set<String> current = Sets.newHashSet();
         //提取查询语句中的单词
-        Matcher matcher = QUERY_RE.matcher(queryString.toLowerCase());
+        Matcher matcher = QUERY_RE.matcher(rest);
         //遍历搜索查询语句中的所有单词
         while (matcher.find()) {
             String word = matcher.group().trim();
@@ -254,11 +1103,15 @@ public class MyES {
             if (prefix == '+' || prefix == '-') {
                 word = word.substring(1);
             }
-            //删除所有位于单词前面或后面的单引号,并忽略所有非用词
-            word.replace("'", "");
-            if (word.length() < 2 || STOP_WORDS.contains(word)) {
+            //去掉前缀的*,删除所有位于单词前面或后面的单引号,并忽略所有非用词
+            boolean isPrefix = word.endsWith("*");
+            word = StringUtils.strip(StringUtils.removeEnd(word, "*"), "'");
+            if (word.length() < 2 || (!isPrefix && STOP_WORDS.contains(word))) {
                 continue;
             }
+            if (isPrefix) {
+                word += "*";
+            }
             //如果这是一个不需要的单词,那么将它添加到存储不需要单词的集合里面
             if (prefix == '-') {
                 query.unwanted.add(word);
@@ -272,65 +1125,753 @@ public class MyES {
                 //清空同义词集合
                 current.clear();
             }
-            //将正在处理的单词添加到同义词集合里面
-            current.add(word);
-        }
-        //把所有剩余的单词都放到最后的交集集合里面进行处理
-        if (!current.isEmpty()) {
-            query.all.add(Lists.newArrayList(current));
+            //将正在处理的单词添加到同义词集合里面
+            current.add(word);
+        }
+        //把所有剩余的单词都放到最后的交集集合里面进行处理
+        if (!current.isEmpty()) {
+            query.all.add(Lists.newArrayList(current));
+        }
+        stage("parse", start, 0, -1);
+        return query;
+    }
+
+    /**
+     * 分析短语,短语中的单词以及它们的相对位置与创建索引时的分词结果一致
+     *
+     * @param query  查询对象
+     * @param phrase 双引号中的内容
+     */
+    private void parsePhrase(Query query, String phrase) {
+        final List<String> words = Lists.newArrayList();
+        final List<Integer> positions = Lists.newArrayList();
+        TOKENIZER.tokenize(phrase, new Tokenizer.TokenCallback() {
+            public void token(char[] buffer, int offset, int length, int position) {
+                words.add(new String(buffer, offset, length));
+                positions.add(position);
+            }
+        });
+        if (words.size() > 1) {
+            int[] offsets = new int[words.size()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = positions.get(i) - positions.get(0);
+            }
+            query.proximities.add(Proximity.phrase(words, offsets));
+        }
+        addRequired(query, words);
+    }
+
+    /**
+     * 分析邻近查询,非用词不会出现在索引中,与非用词相邻的条件只保留另一个单词
+     *
+     * @param query 查询对象
+     * @param near  形如a near/3 b near/2 c的查询
+     */
+    private void parseNear(Query query, String near) {
+        String[] parts = near.trim().split("\\s+");
+        List<String> words = Lists.newArrayList();
+        for (int i = 0; i < parts.length; i += 2) {
+            String word = StringUtils.strip(parts[i], "'");
+            words.add(word.length() < 2 || STOP_WORDS.contains(word) ? null : word);
+        }
+        for (int i = 0; i + 1 < words.size(); i++) {
+            if (null != words.get(i) && null != words.get(i + 1)) {
+                int distance = Integer.parseInt(parts[i * 2 + 1].substring("near/".length()));
+                query.proximities.add(Proximity.near(words.get(i), words.get(i + 1), distance));
+            }
+        }
+        words.removeAll(Collections.singleton((String) null));
+        addRequired(query, words);
+    }
+
+    //把单词作为必须满足的条件添加到查询对象中
+    private static void addRequired(Query query, Collection<String> words) {
+        for (String word : Sets.newLinkedHashSet(words)) {
+            List<String> syn = Lists.newArrayList(word);
+            if (!query.all.contains(syn)) {
+                query.all.add(syn);
+            }
+        }
+    }
+
+    /**
+     * 把查询对象中的前缀展开为单词表中以它开头的单词
+     * 单词表是一个所有成员分值都为0的有序集合,ZRANGEBYLEX可以直接按照字节顺序取出一个前缀范围内的单词,
+     * 不像stringToScore那样只能区分前6个字符.
+     * 每个前缀最多展开为prefixExpansionLimit个单词(按照字母顺序),这些单词被当作同义词计算并集;
+     * 不需要的前缀展开之后的单词都是不需要的单词.
+     * 展开结果在本地缓存prefixCacheTtl毫秒,这段时间内新出现的单词不会被查询到.
+     * 没有任何单词的前缀保留原样,它的索引集合是空的,所以包含它的同义词列表不会匹配任何文档.
+     * 展开之后可能只剩下一个单词(例如redi* -zzz*),这时查询结果就是这个单词的索引集合,见isTempResult.
+     *
+     * @param query 查询对象
+     * @return 不包含前缀的查询对象, 查询对象中没有前缀时返回它本身
+     */
+    public Query expandPrefixes(Query query) {
+        if (!hasPrefix(query)) {
+            return query;
+        }
+        Query result = new Query();
+        result.proximities.addAll(query.proximities);
+        for (List<String> syn : query.all) {
+            Set<String> expanded = Sets.newLinkedHashSet();
+            for (String word : syn) {
+                if (isPrefix(word)) {
+                    expanded.addAll(expandPrefix(word));
+                } else {
+                    expanded.add(word);
+                }
+            }
+            //只有一个没有任何单词的前缀
+            if (expanded.isEmpty()) {
+                expanded.add(syn.get(0));
+            }
+            result.all.add(Lists.newArrayList(expanded));
+        }
+        for (String word : query.unwanted) {
+            if (isPrefix(word)) {
+                result.unwanted.addAll(expandPrefix(word));
+            } else {
+                result.unwanted.add(word);
+            }
+        }
+        return result;
+    }
+
+    //查询对象中是否包含前缀
+    private static boolean hasPrefix(Query query) {
+        for (List<String> syn : query.all) {
+            for (String word : syn) {
+                if (isPrefix(word)) {
+                    return true;
+                }
+            }
+        }
+        for (String word : query.unwanted) {
+            if (isPrefix(word)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isPrefix(String word) {
+        return word.endsWith("*");
+    }
+
+    /**
+     * 从单词表中取出以前缀开头的单词
+     *
+     * @param word 以*结尾的前缀
+     * @return 单词列表
+     */
+    private List<String> expandPrefix(String word) {
+        String prefix = word.substring(0, word.length() - 1);
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        PrefixExpansion cached = prefixExpansions.get(prefix);
+        if (null != cached && cached.expires > now) {
+            stage("prefix", start, 0, cached.words.size());
+            return cached.words;
+        }
+        //单词只包含小写字母和单引号,'{'是排在'z'之后的第一个字符
+        List<String> words = Lists.newArrayList(
+                conn.zrangeByLex(lexiconKey(), "[" + prefix, "(" + prefix + "{", 0, prefixExpansionLimit));
+        stage("prefix", start, 1, words.size());
+        if (prefixExpansions.size() >= PREFIX_CACHE_SIZE) {
+            prefixExpansions.clear();
+        }
+        prefixExpansions.put(prefix, new PrefixExpansion(words, now + prefixCacheTtl));
+        return words;
+    }
+
+    /**
+     * 用于分析查询语句并搜索文档的函数
+     *
+     * @param queryString 查询语句
+     * @param ttl         查询结果缓存的时间
+     * @return 查询结果集合的key
+     */
+    public String parseAndSearch(String queryString, int ttl) {
+        QueryTrace trace = beginTrace(queryString);
+        try {
+            //对查询语句进行语法分析
+            return search(parse(queryString), ttl);
+        } finally {
+            endTrace(trace);
+        }
+    }
+
+    /**
+     * 根据查询对象搜索文档
+     * 查询包含短语或者邻近条件时,先通过索引集合找出候选文档,再检查候选文档的单词位置.
+     *
+     * @param query 查询对象
+     * @param ttl   查询结果缓存的时间
+     * @return 查询结果集合的key, 可能是单词本身的索引集合, 见isTempResult
+     */
+    public String search(Query query, int ttl) {
+        //如果只有反义词,那么这次搜索将没有任何结果
+        if (query.all.isEmpty()) {
+            return null;
+        }
+        //查询结果需要返回给调用者,其余的临时集合在查询结束时删除
+        TempKeyManager.Scope scope = openScope();
+        try {
+            if (null != traces.get()) {
+                traces.get().setQuery(query);
+            }
+            query = toTerms(query);
+            String id = searchTerms(query, ttl);
+            if (!query.proximities.isEmpty()) {
+                id = verifyProximities(id, query.proximities, ttl);
+            }
+            if (null != scope) {
+                scope.keep(idxKey(id));
+            }
+            return id;
+        } finally {
+            if (null != scope) {
+                scope.release(conn);
+            }
+        }
+    }
+
+    /**
+     * 打开一个临时结果作用域,没有设置临时结果管理时返回null
+     * AdvertisingDirected等在同一个事务里面组合多个集合运算的调用者也可以使用这个作用域
+     *
+     * @return 作用域
+     */
+    TempKeyManager.Scope openScope() {
+        return null == tempKeyManager ? null : tempKeyManager.open();
+    }
+
+    /**
+     * 分配一个临时结果id
+     * 设置了临时结果管理时id带有保留前缀,并且会被记录到当前的作用域里面
+     *
+     * @return 临时结果id
+     */
+    String tempId() {
+        if (null == tempKeyManager) {
+            return UUID.randomUUID().toString();
+        }
+        String id = tempKeyManager.newId();
+        tempKeyManager.track(idxKey(id));
+        return id;
+    }
+
+    /**
+     * 查询结果是否是这次查询创建的临时集合
+     * 只剩下一个单词的查询(包括查询计划去掉了索引为空的单词、前缀展开之后只剩一个单词的查询)
+     * 直接返回这个单词的索引集合,调用者不能重命名、删除这样的结果,也不能为它设置生存时间.
+     *
+     * @param id 查询结果id
+     * @return 是否是临时集合
+     */
+    boolean isTempResult(String id) {
+        return null != id && TEMP_ID_RE.matcher(id).matches();
+    }
+
+    /**
+     * 查询结果是否是临时集合或者查询结果缓存中的结果,只有这些结果可以由调用者刷新生存时间
+     *
+     * @param id 查询结果id
+     * @return 是否是查询产生的结果
+     */
+    boolean isQueryResult(String id) {
+        return isTempResult(id) || QueryCache.isCacheId(id);
+    }
+
+    /**
+     * 开始记录一次查询,没有设置searchMetrics或者当前线程已经在记录时返回null
+     * searchAndFetch等调用其他查询方法的方法只会产生一条记录
+     *
+     * @param queryString 查询语句
+     * @return 查询的执行记录
+     */
+    private QueryTrace beginTrace(String queryString) {
+        if (null == searchMetrics || null != traces.get()) {
+            return null;
+        }
+        QueryTrace trace = new QueryTrace(queryString);
+        traces.set(trace);
+        return trace;
+    }
+
+    //结束记录,并交给searchMetrics
+    private void endTrace(QueryTrace trace) {
+        if (null == trace) {
+            return;
+        }
+        traces.remove();
+        trace.finish();
+        searchMetrics.record(trace);
+    }
+
+    //记录查询的一个阶段,当前线程没有在记录时不做任何事情,QueryPlanner和QueryCache也通过它记录自己的阶段
+    void stage(String name, long start, int roundTrips, long cardinality) {
+        QueryTrace trace = traces.get();
+        if (null != trace) {
+            trace.stage(name, System.nanoTime() - start, roundTrips, cardinality);
+        }
+    }
+
+    private void stage(String name, long start, int roundTrips, Response<Long> size) {
+        stage(name, start, roundTrips, null == size ? -1 : size.get());
+    }
+
+    //记录查询时在事务中顺便统计集合运算结果的数量,不会增加通信往返
+    private Response<Long> traceSize(Transaction trans, String id) {
+        return null == traces.get() ? null : trans.scard(idxKey(id));
+    }
+
+    /**
+     * 根据已经转换为单词编号的查询对象,通过索引集合搜索文档
+     *
+     * @param query 查询对象
+     * @param ttl   查询结果缓存的时间
+     * @return 查询结果集合的key
+     */
+    private String searchTerms(Query query, int ttl) {
+        if (null != queryPlanner) {
+            return searchByPlan(query, ttl);
+        }
+        if (useScript) {
+            return searchByScript(query, ttl);
+        }
+
+        List<String> toIntersect;
+        if (null != pool && null != searchExecutor && countUnions(query.all) > 1) {
+            toIntersect = unionInParallel(query.all, ttl);
+        } else {
+            toIntersect = Lists.newArrayList();
+            //遍历各个同义词列表
+            for (List<String> syn : query.all) {
+                //如果同义词列表包含的单词不止一个,那么执行并集计算
+                if (syn.size() > 1) {
+                    long start = System.nanoTime();
+                    Transaction trans = conn.multi();
+                    String id = union(trans, ttl, syn.toArray(new String[syn.size()]));
+                    Response<Long> size = traceSize(trans, id);
+                    trans.exec();
+                    stage("union", start, 1, size);
+                    toIntersect.add(id);
+                } else {
+                    //如果同义词列表只包含一个单词,那么直接使用这个单词
+                    toIntersect.add(syn.get(0));
+                }
+            }
+        }
+
+        String intersectResult = null;
+        //如果单词执行交集计算的结果不止一个,那么执行交集运算
+        if (toIntersect.size() > 1) {
+            long start = System.nanoTime();
+            Transaction trans = conn.multi();
+            intersectResult = intersect(trans, ttl, toIntersect.toArray(new String[toIntersect.size()]));
+            Response<Long> size = traceSize(trans, intersectResult);
+            trans.exec();
+            stage("intersect", start, 1, size);
+        } else {
+            //如果单词执行交集计算的结果只有一个,那么直接使用这个单词
+            intersectResult = toIntersect.get(0);
+        }
+        //如果用户给定了不需要的单词,那么从交集运算结果里面移除包含这些单词的文档,然后返回搜索结果
+        if (!query.unwanted.isEmpty()) {
+            //SDIFFSTORE从第一个集合中移除其余集合的元素,所以交集运算的结果必须放在第一个
+            String[] keys = new String[query.unwanted.size() + 1];
+            keys[0] = intersectResult;
+            int index = 1;
+            for (String word : query.unwanted) {
+                keys[index++] = word;
+            }
+            long start = System.nanoTime();
+            Transaction trans = conn.multi();
+            intersectResult = difference(trans, ttl, keys);
+            Response<Long> size = traceSize(trans, intersectResult);
+            trans.exec();
+            stage("difference", start, 1, size);
+        }
+        //如果用户没有给定不需要的单词,那么直接返回交集计算的结果作为搜索的结果
+        return intersectResult;
+    }
+
+    //需要计算并集的同义词列表数量
+    private static int countUnions(List<List<String>> groups) {
+        int unions = 0;
+        for (List<String> syn : groups) {
+            if (syn.size() > 1) {
+                unions++;
+            }
+        }
+        return unions;
+    }
+
+    /**
+     * 在线程池中同时计算各个同义词列表的并集
+     * 各个并集之间没有依赖关系,每个并集使用从连接池中取出的一个连接,
+     * 所以总耗时取决于最慢的那个并集,而不是所有并集的耗时之和.
+     * Redis在一个线程中执行命令,同一个节点上的并集计算本身仍然是依次执行的,
+     * 节省的是各个并集的通信往返以及等待前一个并集返回的时间.
+     * 临时结果在工作线程中创建,返回之后再记录到当前线程的作用域里面.
+     *
+     * @param groups 同义词列表
+     * @param ttl    结果的缓存时间
+     * @return 与同义词列表顺序相同的并集结果, 只有一个单词的同义词列表直接使用这个单词
+     */
+    private List<String> unionInParallel(List<List<String>> groups, final int ttl) {
+        long start = System.nanoTime();
+        List<Future<String>> futures = Lists.newArrayListWithCapacity(groups.size());
+        for (final List<String> syn : groups) {
+            if (syn.size() == 1) {
+                futures.add(Futures.immediateFuture(syn.get(0)));
+                continue;
+            }
+            futures.add(searchExecutor.submit(new Callable<String>() {
+                public String call() {
+                    Jedis worker = pool.getResource();
+                    try {
+                        Transaction trans = worker.multi();
+                        String id = union(trans, ttl, syn.toArray(new String[syn.size()]));
+                        trans.exec();
+                        return id;
+                    } finally {
+                        worker.close();
+                    }
+                }
+            }));
+        }
+        //等待全部并集完成之后再处理失败,其中一个失败时删除其他已经创建的并集,否则它们要等到过期才会被删除
+        List<String> results = Lists.newArrayListWithCapacity(groups.size());
+        List<String> created = Lists.newArrayList();
+        RuntimeException failure = null;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                String id = futures.get(i).get();
+                if (groups.get(i).size() > 1) {
+                    created.add(idxKey(id));
+                }
+                results.add(id);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = null == failure ? new RuntimeException(e) : failure;
+            } catch (ExecutionException e) {
+                failure = null == failure ? new RuntimeException(e.getCause()) : failure;
+            }
+        }
+        if (null != tempKeyManager) {
+            for (String key : created) {
+                tempKeyManager.track(key);
+            }
+        }
+        if (null != failure) {
+            //记录在作用域中的并集由作用域关闭时删除
+            if (null == tempKeyManager && !created.isEmpty()) {
+                conn.del(created.toArray(new String[created.size()]));
+            }
+            throw failure;
+        }
+        //各个并集同时执行,这里记录的是从提交到全部完成的时间,通信往返次数为并集的数量
+        stage("parallel-union", start, countUnions(groups), -1);
+        return results;
+    }
+
+    /**
+     * 查看查询语句的查询计划
+     *
+     * @param queryString 查询语句
+     * @return 查询计划, 查询语句只包含不需要的单词时返回null
+     */
+    public QueryPlanner.QueryPlan explain(String queryString) {
+        if (null == queryPlanner) {
+            throw new IllegalStateException("没有设置查询计划");
+        }
+        Query query = parse(queryString);
+        if (query.all.isEmpty()) {
+            return null;
+        }
+        return queryPlanner.plan(toTerms(query));
+    }
+
+    /**
+     * 按照查询计划执行查询
+     * 所有的并集、交集和差集计算都放在同一个事务里面,只需要一次通信往返.
+     * 逐个检查不需要的单词时,需要再取出候选文档并通过流水线检查.
+     *
+     * @param query 查询对象
+     * @param ttl   查询结果缓存的时间
+     * @return 查询结果集合的key
+     */
+    private String searchByPlan(Query query, int ttl) {
+        QueryPlanner.QueryPlan plan = queryPlanner.plan(query);
+        if (null != traces.get()) {
+            traces.get().setPlan(plan);
+        }
+        //结果一定为空时不执行任何集合运算,直接返回一个不存在的结果集合
+        if (plan.empty) {
+            return tempId();
+        }
+        if (plan.groups.size() == 1 && plan.groups.get(0).isSingleWord() && plan.unwanted.isEmpty()) {
+            return plan.groups.get(0).words.get(0);
+        }
+
+        long start = System.nanoTime();
+        Transaction trans = conn.multi();
+        //同义词列表已经按照大小从小到大排列
+        List<String> toIntersect = Lists.newArrayList();
+        for (QueryPlanner.Group group : plan.groups) {
+            if (group.isSingleWord()) {
+                toIntersect.add(group.words.get(0));
+            } else {
+                toIntersect.add(union(trans, ttl, group.words.toArray(new String[group.words.size()])));
+            }
+        }
+        String result = toIntersect.size() > 1
+                ? intersect(trans, ttl, toIntersect.toArray(new String[toIntersect.size()]))
+                : toIntersect.get(0);
+        if (plan.unwanted.isEmpty()) {
+            Response<Long> size = traceSize(trans, result);
+            trans.exec();
+            stage("plan", start, 1, size);
+            return result;
+        }
+        if (!plan.probe) {
+            List<String> keys = Lists.newArrayList(result);
+            keys.addAll(plan.unwanted);
+            result = difference(trans, ttl, keys.toArray(new String[keys.size()]));
+            Response<Long> size = traceSize(trans, result);
+            trans.exec();
+            stage("plan", start, 1, size);
+            return result;
+        }
+        Response<Set<String>> candidates = trans.smembers(idxKey(result));
+        trans.exec();
+        stage("plan", start, 1, candidates.get().size());
+        return probe(candidates.get(), plan.unwanted, ttl);
+    }
+
+    /**
+     * 逐个检查候选文档是否包含不需要的单词
+     * 候选文档很少而不需要的单词的索引很大时,这比SDIFFSTORE遍历所有索引集合要快得多.
+     * 候选文档可能就是某个单词本身的索引集合,不能直接修改,所以剩下的文档会被写入一个新的集合.
+     *
+     * @param candidates 候选文档
+     * @param unwanted   不需要的单词
+     * @param ttl        查询结果缓存的时间
+     * @return 查询结果集合的key
+     */
+    private String probe(Set<String> candidates, List<String> unwanted, int ttl) {
+        long start = System.nanoTime();
+        List<String> docids = Lists.newArrayList(candidates);
+        List<Response<Boolean>> members = Lists.newArrayListWithCapacity(docids.size() * unwanted.size());
+        Pipeline pipeline = conn.pipelined();
+        for (String docid : docids) {
+            for (String word : unwanted) {
+                members.add(pipeline.sismember(idxKey(word), docid));
+            }
+        }
+        pipeline.sync();
+
+        List<String> kept = Lists.newArrayList();
+        for (int i = 0; i < docids.size(); i++) {
+            boolean matched = false;
+            for (int j = 0; j < unwanted.size() && !matched; j++) {
+                matched = members.get(i * unwanted.size() + j).get();
+            }
+            if (!matched) {
+                kept.add(docids.get(i));
+            }
+        }
+        String id = store(kept, ttl);
+        stage("probe", start, kept.isEmpty() ? 1 : 2, kept.size());
+        return id;
+    }
+
+    /**
+     * 检查候选文档的单词位置是否满足短语和邻近条件
+     * 每次通过一个流水线取出verifyBatchSize个候选文档中相关单词的位置,没有记录位置的文档不会满足条件.
+     *
+     * @param id          候选文档集合的id
+     * @param proximities 短语和邻近条件, 单词已经转换为单词编号
+     * @param ttl         查询结果缓存的时间
+     * @return 查询结果集合的key
+     */
+    private String verifyProximities(String id, List<Proximity> proximities, int ttl) {
+        long start = System.nanoTime();
+        int roundTrips = 1;
+        Set<String> words = Sets.newLinkedHashSet();
+        for (Proximity proximity : proximities) {
+            words.addAll(proximity.words);
+        }
+        List<String> fields = Lists.newArrayList(words);
+        byte[][] binaryFields = new byte[fields.size()][];
+        for (int i = 0; i < fields.size(); i++) {
+            binaryFields[i] = SafeEncoder.encode(fields.get(i));
+        }
+
+        List<String> kept = Lists.newArrayList();
+        for (List<String> docids : Lists.partition(Lists.newArrayList(conn.smembers(idxKey(id))), verifyBatchSize)) {
+            List<Response<List<byte[]>>> responses = Lists.newArrayListWithCapacity(docids.size());
+            Pipeline pipeline = conn.pipelined();
+            for (String docid : docids) {
+                responses.add(pipeline.hmget(SafeEncoder.encode(positionsKey(docid)), binaryFields));
+            }
+            pipeline.sync();
+            roundTrips++;
+            for (int i = 0; i < docids.size(); i++) {
+                List<byte[]> values = responses.get(i).get();
+                Map<String, int[]> positions = Maps.newHashMapWithExpectedSize(fields.size());
+                for (int j = 0; j < fields.size(); j++) {
+                    positions.put(fields.get(j), Proximity.decodePositions(values.get(j)));
+                }
+                boolean matched = true;
+                for (int j = 0; j < proximities.size() && matched; j++) {
+                    matched = proximities.get(j).matches(positions);
+                }
+                if (matched) {
+                    kept.add(docids.get(i));
+                }
+            }
+        }
+        String result = store(kept, ttl);
+        stage("verify", start, kept.isEmpty() ? roundTrips : roundTrips + 1, kept.size());
+        return result;
+    }
+
+    //把文档写入一个新的查询结果集合
+    private String store(List<String> docids, int ttl) {
+        String id = tempId();
+        if (!docids.isEmpty()) {
+            Pipeline pipeline = conn.pipelined();
+            pipeline.sadd(idxKey(id), docids.toArray(new String[docids.size()]));
+            pipeline.expire(idxKey(id), ttl);
+            pipeline.sync();
+        }
+        return id;
+    }
+
+    /**
+     * 先从查询结果缓存中查找结果,找不到时再执行搜索,并把搜索结果放入缓存
+     * 只包含一个单词的查询直接使用单词的索引集合,不需要缓存
+     *
+     * @param queryString 查询语句
+     * @param ttl         查询结果缓存的时间
+     * @return 查询结果集合的key
+     */
+    private String parseAndSearchCached(String queryString, int ttl) {
+        return searchCached(parse(queryString), ttl);
+    }
+
+    /**
+     * 搜索文档,设置了查询结果缓存时使用缓存的查询结果
+     *
+     * @param query 查询对象
+     * @param ttl   查询结果缓存的时间
+     * @return 查询结果集合的key
+     */
+    private String searchCached(Query query, int ttl) {
+        if (null == queryCache || query.isSingleWord()) {
+            return search(query, ttl);
+        }
+        String id = queryCache.get(query, ttl);
+        if (null != id) {
+            return id;
+        }
+        id = search(query, ttl);
+        //结果是单词本身的索引集合时不能缓存,缓存会把索引集合重命名
+        if (!isTempResult(id)) {
+            return id;
+        }
+        return queryCache.put(query, id, ttl);
+    }
+
+    /**
+     * 搜索文档并返回遍历全部结果的迭代器
+     * 迭代器每次通过SSCAN读取count个左右的文档id,并在读取时刷新结果的生存时间,
+     * 所以不管结果有多大,客户端都只需要保存一批文档id.
+     * 结果是单词本身的索引集合时(例如只有一个单词的查询)直接遍历它,不会修改它的生存时间.
+     *
+     * @param queryString 查询语句
+     * @param ttl         查询结果缓存的时间, 迭代期间每次读取都会刷新
+     * @param count       每次读取的数量
+     * @return 文档id迭代器, 迭代期间不能在同一个连接上使用流水线或者事务
+     */
+    public Iterator<String> searchStream(String queryString, int ttl, int count) {
+        QueryTrace trace = beginTrace(queryString);
+        try {
+            Query query = parse(queryString);
+            String id = searchCached(query, ttl);
+            if (null == id) {
+                return Collections.<String>emptyList().iterator();
+            }
+            //查询计划或者前缀展开之后也可能只剩一个单词,是否刷新生存时间由返回的结果决定
+            return new ResultIterator(conn, idxKey(id), isQueryResult(id) ? ttl : 0, count);
+        } finally {
+            endTrace(trace);
         }
-        return query;
     }
 
     /**
-     * 用于分析查询语句并搜索文档的函数
+     * 与searchStream相同,但是返回顺序的Stream.查询立即执行,结果在流的终止操作中分批读取
      *
      * @param queryString 查询语句
-     * @param ttl         查询结果缓存的时间
+     * @param ttl         查询结果缓存的时间, 迭代期间每次读取都会刷新
+     * @param count       每次读取的数量
+     * @return 文档id流
+     */
+    public Stream<String> searchAsStream(String queryString, int ttl, int count) {
+        Iterator<String> iterator = searchStream(queryString, ttl, count);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * 遍历已有的查询结果
+     * 可以用于searchAndSort、searchAndZsort等方法返回的结果id,有序集合结果按照SCAN的顺序而不是分值的顺序返回.
+     *
+     * @param id    查询结果id
+     * @param ttl   每次读取时刷新的生存时间, 0表示不刷新
+     * @param count 每次读取的数量
+     * @return 文档id迭代器
+     */
+    public Iterator<String> scanResult(String id, int ttl, int count) {
+        return new ResultIterator(conn, idxKey(id), ttl, count);
+    }
+
+    /**
+     * 使用Lua脚本执行查询
+     * 上面的查询方式每计算一次并集、交集或者差集都需要一次通信往返,并且每次都会留下一个临时集合,
+     * 而这里把整个"并集->交集->差集"的计算过程都放到脚本里面执行,只需要一次通信往返,
+     * 并且只会留下存储查询结果的那一个集合.
+     *
+     * @param query 查询对象
+     * @param ttl   查询结果缓存的时间
      * @return 查询结果集合的key
      */
-    public String parseAndSearch(String queryString, int ttl) {
-        //对查询语句进行语法分析
-        Query query = parse(queryString);
-        //如果只有反义词,那么这次搜索将没有任何结果
-        if (query.all.isEmpty()) {
-            return null;
+    private String searchByScript(Query query, int ttl) {
+        //如果只有一个单词并且没有不需要的单词,那么直接使用这个单词的索引集合
+        if (query.isSingleWord()) {
+            return query.all.get(0).get(0);
         }
 
-        List<String> toIntersect = Lists.newArrayList();
-        //遍历各个同义词列表
+        String id = tempId();
+        List<String> keys = Lists.newArrayList(idxKey(id));
+        List<String> args = Lists.newArrayList(String.valueOf(ttl), String.valueOf(query.all.size()));
         for (List<String> syn : query.all) {
-            //如果同义词列表包含的单词不止一个,那么执行并集计算
-            if (syn.size() > 1) {
-                Transaction trans = conn.multi();
-                toIntersect.add(union(trans, ttl, syn.toArray(new String[syn.size()])));
-                trans.exec();
-            } else {
-                //如果同义词列表只包含一个单词,那么直接使用这个单词
-                toIntersect.add(syn.get(0));
+            args.add(String.valueOf(syn.size()));
+            for (String word : syn) {
+                keys.add(idxKey(word));
             }
         }
-
-        String intersectResult = null;
-        //如果单词执行交集计算的结果不止一个,那么执行交集运算
-        if (toIntersect.size() > 1) {
-            Transaction trans = conn.multi();
-            intersectResult = intersect(trans, ttl, toIntersect.toArray(new String[toIntersect.size()]));
-            trans.exec();
-        } else {
-            //如果单词执行交集计算的结果只有一个,那么直接使用这个单词
-            intersectResult = toIntersect.get(0);
-        }
-        //如果用户给定了不需要的单词,那么从交集运算结果里面移除包含这些单词的文档,然后返回搜索结果
-        if (!query.unwanted.isEmpty()) {
-            String[] keys = query.unwanted.toArray(new String[query.unwanted.size() + 1]);
-            keys[keys.length - 1] = intersectResult;
-            Transaction trans = conn.multi();
-            intersectResult = difference(trans, ttl, keys);
-            trans.exec();
+        for (String word : query.unwanted) {
+            keys.add(idxKey(word));
         }
-        //如果用户没有给定不需要的单词,那么直接返回交集计算的结果作为搜索的结果
-        return intersectResult;
+        long start = System.nanoTime();
+        SEARCH_SCRIPT.eval(conn, keys, args);
+        stage("script", start, 1, -1);
+        return id;
     }
 
     /**
@@ -347,6 +1888,17 @@ public class MyES {
      */
     public SearchResult searchAndSort(String queryString, String id,
                                       int ttl, String sort, Page page) {
+        QueryTrace trace = beginTrace(queryString);
+        try {
+            return searchAndSortTraced(queryString, id, ttl, sort, page);
+        } finally {
+            endTrace(trace);
+        }
+    }
+
+    //在当前查询的记录中执行searchAndSort
+    private SearchResult searchAndSortTraced(String queryString, String id,
+                                             int ttl, String sort, Page page) {
         boolean desc = false;
         boolean alpha = false;
         if (StringUtils.isNotEmpty(sort)) {
@@ -356,7 +1908,7 @@ public class MyES {
                 sort = sort.substring(1);
             }
             //告诉Redis,排序是以数值方式进行还是字母方式进行
-            alpha = !"updated".equals(sort) && !"id".equals(sort);
+            alpha = isAlpha(sort);
         } else {
             sort = "id";
         }
@@ -365,15 +1917,18 @@ public class MyES {
         String by = contentKey("*->") + sort;
 
         //如果用户给定了已有的搜索结果,并且这个结果仍然存在的话,那么延长它的生存时间
+        long start = System.nanoTime();
         if (conn.expire(id, ttl) < 1) {
             id = null;
         }
+        stage("refresh", start, 1, -1);
         //如果用户没有给定已有的搜索结果,或者给定的搜索结果已经过期,
         //那么执行一次新的搜索操作
         if (StringUtils.isEmpty(id)) {
-            id = parseAndSearch(queryString, ttl);
+            id = parseAndSearchCached(queryString, ttl);
         }
 
+        start = System.nanoTime();
         Transaction trans = conn.multi();
         //获取结果集合的元素数量
         trans.scard(idxKey(id));
@@ -391,12 +1946,369 @@ public class MyES {
         //根据指定的属性对结果进行排序,并且只获取用户指定的那一部分结果
         trans.sort(idxKey(id), params);
         List<Object> results = trans.exec();
+        stage("sort", start, 1, (Long) results.get(0));
         //返回搜索结果包含的元素数量、搜索结果本身以及搜索结果的ID,
         //其中搜索结果的ID可以用于在之后再次获取本次搜索的结果
         return new SearchResult(id, ((Long) results.get(0)).longValue(),
                 (List<String>) results.get(1));
     }
 
+    /**
+     * 搜索并排序,同时取出这一页文档的字段
+     * searchAndSort只返回文档id,调用者还要逐个HGETALL文档散列,一页20个文档就需要20次通信往返.
+     * 这里在排序之后通过fetchDocuments使用一个流水线取出整页文档需要的字段.
+     *
+     * @param queryString 查询语句
+     * @param id          搜索结果标识
+     * @param ttl         排序结果缓存时间
+     * @param sort        指定搜索结果的排序方式
+     * @param page        对结果进行分页
+     * @param fields      需要的文档字段, 为空时取出全部字段
+     * @return 搜索结果
+     */
+    public FetchResult searchAndFetch(String queryString, String id, int ttl,
+                                      String sort, Page page, String... fields) {
+        QueryTrace trace = beginTrace(queryString);
+        try {
+            SearchResult result = searchAndSort(queryString, id, ttl, sort, page);
+            return new FetchResult(result.id, result.total, fetchDocuments(result.results, fields));
+        } finally {
+            endTrace(trace);
+        }
+    }
+
+    /**
+     * 批量取出文档的字段
+     * 设置了documentCache时先从本地缓存中查找,其余文档的HMGET(没有指定字段时为HGETALL)通过同一个流水线发送,
+     * 所以不管一页有多少个文档,最多只需要一次通信往返.
+     * 文档散列不存在(或者需要的字段全部不存在)的文档不会出现在结果里面,例如已经被删除的文档.
+     *
+     * @param docids 文档id
+     * @param fields 需要的文档字段, 为空时取出全部字段
+     * @return 文档id -> (字段 -> 字段值), 按照docids的顺序排列
+     */
+    public Map<String, Map<String, String>> fetchDocuments(Collection<String> docids, String... fields) {
+        long start = System.nanoTime();
+        Map<String, Map<String, String>> documents = Maps.newLinkedHashMap();
+        Map<String, Response<List<String>>> projected = Maps.newHashMap();
+        Map<String, Response<Map<String, String>>> whole = Maps.newHashMap();
+        Pipeline pipeline = null;
+        for (String docid : docids) {
+            Map<String, String> cached = null == documentCache ? null : documentCache.get(docid, fields);
+            //先占住位置,保证结果按照docids的顺序排列
+            documents.put(docid, cached);
+            if (null != cached) {
+                continue;
+            }
+            if (null == pipeline) {
+                pipeline = conn.pipelined();
+            }
+            if (fields.length == 0) {
+                whole.put(docid, pipeline.hgetAll(contentKey(docid)));
+            } else {
+                projected.put(docid, pipeline.hmget(contentKey(docid), fields));
+            }
+        }
+        if (null != pipeline) {
+            pipeline.sync();
+        }
+
+        Iterator<Map.Entry<String, Map<String, String>>> iterator = documents.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Map<String, String>> document = iterator.next();
+            Map<String, String> values = document.getValue();
+            if (null == values) {
+                if (fields.length == 0) {
+                    values = whole.get(document.getKey()).get();
+                } else {
+                    List<String> list = projected.get(document.getKey()).get();
+                    values = Maps.newLinkedHashMap();
+                    for (int i = 0; i < fields.length; i++) {
+                        values.put(fields[i], list.get(i));
+                    }
+                }
+                if (null != documentCache) {
+                    documentCache.put(document.getKey(), values, fields.length == 0);
+                }
+            }
+            if (!exists(values)) {
+                iterator.remove();
+            } else {
+                document.setValue(values);
+            }
+        }
+        stage("fetch", start, null == pipeline ? 0 : 1, documents.size());
+        return documents;
+    }
+
+    //文档散列是否存在,HMGET对不存在的散列返回全部为null的字段值
+    private static boolean exists(Map<String, String> values) {
+        for (String value : values.values()) {
+            if (null != value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 排序字段是以数值方式还是字母方式进行排序
+     *
+     * @param field 排序字段
+     * @return 是否以字母方式排序
+     */
+    static boolean isAlpha(String field) {
+        return !"updated".equals(field) && !"id".equals(field);
+    }
+
+    /**
+     * 计算排序字段的分值
+     * 数值字段直接使用字段值,字母字段使用stringToScore转换,与searchAndSort的排序方式保持一致
+     *
+     * @param field 排序字段
+     * @param value 字段值
+     * @return 分值
+     */
+    private double sortScore(String field, String value) {
+        return isAlpha(field) ? stringToScore(value) : Double.parseDouble(value);
+    }
+
+    /**
+     * 更新文档排序字段的有序集合
+     *
+     * @param docid      文档ID
+     * @param sortFields 排序字段 -> 字段值
+     */
+    public void indexSortFields(String docid, Map<String, String> sortFields) {
+        Pipeline pipeline = conn.pipelined();
+        for (Map.Entry<String, String> field : sortFields.entrySet()) {
+            pipeline.zadd(sortKey(field.getKey()), sortScore(field.getKey(), field.getValue()), docid);
+        }
+        pipeline.sync();
+    }
+
+    /**
+     * 从排序字段的有序集合中删除文档
+     *
+     * @param docid  文档ID
+     * @param fields 排序字段
+     */
+    public void deleteSortFields(String docid, String... fields) {
+        Pipeline pipeline = conn.pipelined();
+        for (String field : fields) {
+            pipeline.zrem(sortKey(field), docid);
+        }
+        pipeline.sync();
+    }
+
+    /**
+     * 搜索并排序,返回排名前count的结果
+     * searchAndSort每次翻页都要对整个结果执行SORT,每个文档都需要一次散列查找以及O(N log N)的排序.
+     * 这里使用indexDocument或者indexSortFields维护的排序字段有序集合:
+     * 第一次查询时通过ZINTERSTORE(结果集合的权重为0)得到已经排好序的结果,并缓存在一个固定名字的有序集合里面,
+     * 之后同一个查询结果和排序字段的请求只需要一次O(log N + count)的ZRANGE.
+     * 返回的游标记录了已经排好序的结果以及下一页的位置,深度翻页时使用游标继续读取,不会再次排序.
+     * 只有当查询结果来自查询结果缓存时,不同用户的相同查询才能共用排好序的结果.
+     *
+     * @param queryString 查询语句
+     * @param cursor      上一页返回的游标, 第一页为null
+     * @param ttl         排序结果缓存时间
+     * @param sort        排序字段, 以减号开头表示降序
+     * @param count       每页的文档数量
+     * @return 搜索结果
+     */
+    public RankedResult searchAndRank(String queryString, String cursor, int ttl, String sort, int count) {
+        QueryTrace trace = beginTrace(queryString);
+        try {
+            return searchAndRankTraced(queryString, cursor, ttl, sort, count);
+        } finally {
+            endTrace(trace);
+        }
+    }
+
+    //在当前查询的记录中执行searchAndRank
+    private RankedResult searchAndRankTraced(String queryString, String cursor, int ttl, String sort, int count) {
+        boolean desc = sort.startsWith("-");
+        String field = desc ? sort.substring(1) : sort;
+
+        String ranked = null;
+        long offset = 0;
+        //游标中的排序结果仍然存在时,延长它的生存时间并从游标记录的位置继续读取
+        Pair<String, Long> position = parseCursor(cursor);
+        if (null != position) {
+            ranked = position.getValue0();
+            offset = position.getValue1();
+            long start = System.nanoTime();
+            if (conn.expire(idxKey(ranked), ttl) < 1) {
+                ranked = null;
+            }
+            stage("refresh", start, 1, -1);
+        }
+        if (null == ranked) {
+            String id = parseAndSearchCached(queryString, ttl);
+            if (null == id) {
+                return new RankedResult(null, 0, Collections.<String>emptyList(), null);
+            }
+            ranked = id + ":by:" + field;
+            //相同的查询结果已经按照这个字段排过序
+            long start = System.nanoTime();
+            int roundTrips = 1;
+            if (conn.expire(idxKey(ranked), ttl) < 1) {
+                Transaction trans = conn.multi();
+                trans.zinterstore(idxKey(ranked), new ZParams().weightsByDouble(0, 1), idxKey(id), sortKey(field));
+                trans.expire(idxKey(ranked), ttl);
+                trans.exec();
+                roundTrips++;
+            }
+            stage("rank", start, roundTrips, -1);
+        }
+
+        return rankedPage(ranked, offset, count, desc);
+    }
+
+    /**
+     * 按照BM25相关度对搜索结果排序,返回相关度最高的count个结果
+     * 需要开启indexTermFrequency之后创建的索引.
+     * 第一页的查询、评分和排序都在同一个脚本里面完成,只需要一次通信往返,
+     * 之后的翻页与searchAndRank一样通过游标读取已经排好序的结果.
+     *
+     * @param queryString 查询语句
+     * @param cursor      上一页返回的游标, 第一页为null
+     * @param ttl         排序结果缓存时间
+     * @param count       每页的文档数量
+     * @return 搜索结果
+     */
+    public RankedResult searchRanked(String queryString, String cursor, int ttl, int count) {
+        QueryTrace trace = beginTrace(queryString);
+        try {
+            return searchRankedTraced(queryString, cursor, ttl, count);
+        } finally {
+            endTrace(trace);
+        }
+    }
+
+    //在当前查询的记录中执行searchRanked
+    private RankedResult searchRankedTraced(String queryString, String cursor, int ttl, int count) {
+        Pair<String, Long> position = parseCursor(cursor);
+        if (null != position) {
+            long start = System.nanoTime();
+            boolean alive = conn.expire(idxKey(position.getValue0()), ttl) > 0;
+            stage("refresh", start, 1, -1);
+            if (alive) {
+                return rankedPage(position.getValue0(), position.getValue1(), count, true);
+            }
+        }
+
+        Query query = parse(queryString);
+        //如果只有反义词,那么这次搜索将没有任何结果
+        if (query.all.isEmpty()) {
+            return new RankedResult(null, 0, Collections.<String>emptyList(), null);
+        }
+        query = toTerms(query);
+        //满足短语和邻近条件的文档作为一个额外的必须满足的条件,它没有词频,所以不影响评分
+        String verified = null;
+        if (!query.proximities.isEmpty()) {
+            TempKeyManager.Scope scope = openScope();
+            try {
+                verified = verifyProximities(searchTerms(query, ttl), query.proximities, ttl);
+                if (null != scope) {
+                    scope.keep(idxKey(verified));
+                }
+            } finally {
+                if (null != scope) {
+                    scope.release(conn);
+                }
+            }
+            query.all.add(Lists.newArrayList(verified));
+        }
+        String id = tempId();
+        List<String> keys = Lists.newArrayList(idxKey(id), corpusKey());
+        List<String> args = Lists.newArrayList(String.valueOf(ttl), String.valueOf(count),
+                String.valueOf(query.all.size()));
+        for (List<String> syn : query.all) {
+            args.add(String.valueOf(syn.size()));
+            for (String word : syn) {
+                keys.add(idxKey(word));
+                keys.add(tfKey(word));
+            }
+        }
+        for (String word : query.unwanted) {
+            keys.add(idxKey(word));
+        }
+        long start = System.nanoTime();
+        List<Object> result = (List<Object>) SEARCH_RANKED_SCRIPT.eval(conn, keys, args);
+        long total = (Long) result.get(0);
+        stage("score", start, 1, total);
+        if (null != verified) {
+            conn.del(idxKey(verified));
+        }
+        return new RankedResult(id, total, (List<String>) result.get(1), count < total ? id + "@" + count : null);
+    }
+
+    /**
+     * 解析游标: 排好序的结果id@下一页的起始位置
+     * 游标来自客户端,格式不正确或者id不是排好序的结果时返回null,与排序结果已经过期一样重新执行查询,
+     * 否则客户端可以通过游标为单词的索引集合等任意集合设置生存时间.
+     *
+     * @param cursor 游标
+     * @return 排好序的结果id, 起始位置
+     */
+    private Pair<String, Long> parseCursor(String cursor) {
+        if (StringUtils.isEmpty(cursor)) {
+            return null;
+        }
+        int index = cursor.lastIndexOf('@');
+        if (index < 1 || index == cursor.length() - 1 || !isRankedResult(cursor.substring(0, index))) {
+            return null;
+        }
+        try {
+            long offset = Long.parseLong(cursor.substring(index + 1));
+            return offset < 0 ? null : new Pair<String, Long>(cursor.substring(0, index), offset);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 是否是排好序的结果: searchRanked创建的临时结果, 或者searchAndRank生成的"查询结果id:by:排序字段"
+     *
+     * @param id 排好序的结果id
+     * @return 是否是排好序的结果
+     */
+    private boolean isRankedResult(String id) {
+        if (isTempResult(id)) {
+            return true;
+        }
+        Matcher matcher = RANKED_ID_RE.matcher(id);
+        return matcher.matches()
+                && (isQueryResult(matcher.group(1)) || WORD_ID_RE.matcher(matcher.group(1)).matches());
+    }
+
+    /**
+     * 从排好序的结果中读取一页
+     *
+     * @param ranked 排好序的结果id
+     * @param offset 这一页的起始位置
+     * @param count  每页的文档数量
+     * @param desc   是否降序
+     * @return 搜索结果
+     */
+    private RankedResult rankedPage(String ranked, long offset, int count, boolean desc) {
+        long start = System.nanoTime();
+        Transaction trans = conn.multi();
+        trans.zcard(idxKey(ranked));
+        if (desc) {
+            trans.zrevrange(idxKey(ranked), offset, offset + count - 1);
+        } else {
+            trans.zrange(idxKey(ranked), offset, offset + count - 1);
+        }
+        List<Object> results = trans.exec();
+        long total = (Long) results.get(0);
+        stage("page", start, 1, total);
+        String next = offset + count < total ? ranked + "@" + (offset + count) : null;
+        return new RankedResult(ranked, total, Lists.newArrayList((Set<String>) results.get(1)), next);
+    }
+
     /**
      * 辅助函数,处理zset交、并、差集
      *
@@ -415,7 +2327,7 @@ public class MyES {
         }
 
         //创建一个计算结果集合的临时标识符
-        String id = UUID.randomUUID().toString();
+        String id = tempId();
         try {
             //调用执行的集合操作
             if (method.equals("zinterstore")) {
@@ -461,20 +2373,35 @@ public class MyES {
     public SearchResult searchAndZsort(String queryString, String id, int ttl,
                                        boolean desc, Map<String, Integer> weights,
                                        Page page) {
+        QueryTrace trace = beginTrace(queryString);
+        try {
+            return searchAndZsortTraced(queryString, id, ttl, desc, weights, page);
+        } finally {
+            endTrace(trace);
+        }
+    }
+
+    //在当前查询的记录中执行searchAndZsort
+    private SearchResult searchAndZsortTraced(String queryString, String id, int ttl,
+                                              boolean desc, Map<String, Integer> weights,
+                                              Page page) {
         //如果用户给定了已有的搜索结果,并且这个结果仍然存在的话,那么延长它的生存时间
+        long start = System.nanoTime();
         if (conn.expire(id, ttl) < 1) {
             id = null;
         }
+        stage("refresh", start, 1, -1);
         //如果用户没有给定已有的搜索结果,或者给定的搜索结果已经过期,
         //那么执行一次新的搜索操作
         if (StringUtils.isEmpty(id)) {
-            id = parseAndSearch(queryString, ttl);
+            id = parseAndSearchCached(queryString, ttl);
         }
 
         int updateWeight = weights.containsKey("update") ? weights.get("update") : 1;
         int voteWeight = weights.containsKey("vote") ? weights.get("vote") : 1;
 
         String[] keys = new String[]{id, "sort:update", "sort:votes"};
+        start = System.nanoTime();
         Transaction trans = conn.multi();
         //使用辅助函数执行交集运算,新集合的分值默认为各个集合分值的和
         id = zintersect(trans, ttl, new ZParams().weightsByDouble(0, updateWeight, voteWeight), keys);
@@ -487,6 +2414,7 @@ public class MyES {
             trans.zrange(idxKey(id), page.getOffset(), page.getLimit());
         }
         List<Object> results = trans.exec();
+        stage("zsort", start, 1, (Long) results.get(results.size() - 2));
         //返回搜素结果,以及分页用的ID值
         return new SearchResult(id, ((Long) results.get(results.size() - 2)).longValue(),
                 Lists.newArrayList((Set<String>) results.get(results.size() - 1)));
@@ -553,6 +2481,51 @@ public class MyES {
         return "idx:" + word;
     }
 
+    /**
+     * 获取排序字段有序集合的key
+     *
+     * @param field 排序字段
+     * @return 排序字段有序集合的key
+     */
+    public String sortKey(String field) {
+        return idxKey("sort:" + field);
+    }
+
+    /**
+     * 获取单词词频有序集合的key
+     *
+     * @param word 单词
+     * @return 词频有序集合的key
+     */
+    public String tfKey(String word) {
+        return idxKey("tf:" + word);
+    }
+
+    //文档长度散列的key
+    private String docLengthKey() {
+        return "idx:doclen:";
+    }
+
+    //语料统计信息散列的key
+    private String corpusKey() {
+        return "idx:corpus:";
+    }
+
+    //单词表有序集合的key
+    private String lexiconKey() {
+        return "idx:lexicon:";
+    }
+
+    /**
+     * 获取文档单词位置散列的key
+     *
+     * @param docid 文档id
+     * @return 单词位置散列的key
+     */
+    public String positionsKey(String docid) {
+        return "content:pos:" + docid;
+    }
+
     /**
      * 获取文档所含单词的key
      *
@@ -581,6 +2554,47 @@ public class MyES {
         public final List<List<String>> all = Lists.newArrayList();
         //用于存储不需要的单词
         public final Set<String> unwanted = Sets.newHashSet();
+        //短语和邻近条件,其中的单词同时也是all中必须满足的单词
+        public final List<Proximity> proximities = Lists.newArrayList();
+
+        /**
+         * 是否只包含一个单词并且没有不需要的单词以及短语条件,
+         * 这种查询的结果就是单词本身的索引集合
+         */
+        public boolean isSingleWord() {
+            return all.size() == 1 && all.get(0).size() == 1 && unwanted.isEmpty() && proximities.isEmpty();
+        }
+
+        /**
+         * 查询对象的规范形式
+         * 同义词列表内部以及各个同义词列表之间都按照字母顺序排列,不需要的单词也按照字母顺序排列,
+         * 这样单词顺序不同但含义相同的查询语句会得到相同的规范形式.
+         * 例如"b +a c -e -d"的规范形式为"a+b c -d -e",短语和邻近条件按照规范形式排序之后放在最后
+         */
+        public String canonical() {
+            List<String> groups = Lists.newArrayList();
+            for (List<String> syn : all) {
+                List<String> sorted = Lists.newArrayList(syn);
+                Collections.sort(sorted);
+                groups.add(StringUtils.join(sorted, '+'));
+            }
+            Collections.sort(groups);
+            List<String> unwantedSorted = Lists.newArrayList(unwanted);
+            Collections.sort(unwantedSorted);
+            StringBuilder builder = new StringBuilder(StringUtils.join(groups, ' '));
+            for (String word : unwantedSorted) {
+                builder.append(" -").append(word);
+            }
+            List<String> proximitySorted = Lists.newArrayList();
+            for (Proximity proximity : proximities) {
+                proximitySorted.add(proximity.canonical());
+            }
+            Collections.sort(proximitySorted);
+            for (String proximity : proximitySorted) {
+                builder.append(' ').append(proximity);
+            }
+            return builder.toString();
+        }
     }
 
     /**
@@ -596,6 +2610,68 @@ public class MyES {
         public final List<String> results;
     }
 
+    /**
+     * 带有文档字段的查询结果对象
+     */
+    @AllArgsConstructor
+    public class FetchResult {
+        //查询结果id
+        public final String id;
+        //文档数量
+        public final long total;
+        //这一页的文档, 文档id -> (字段 -> 字段值)
+        public final Map<String, Map<String, String>> documents;
+    }
+
+    /**
+     * 排序之后的查询结果对象
+     */
+    @AllArgsConstructor
+    public class RankedResult {
+        //排好序的结果id
+        public final String id;
+        //文档数量
+        public final long total;
+        //这一页的文档
+        public final List<String> results;
+        //读取下一页的游标,没有下一页时为null
+        public final String cursor;
+    }
+
+    /**
+     * 前缀的展开结果
+     */
+    @AllArgsConstructor
+    private static class PrefixExpansion {
+        final List<String> words;
+        //过期时间
+        final long expires;
+    }
+
+    /**
+     * 批量创建索引的统计信息
+     */
+    @ToString
+    public static class IndexStats {
+        //处理的文档数量
+        public long documents;
+        //文档包含的不重复单词数量之和
+        public long words;
+        //实际删除和添加的索引数量
+        public long changes;
+        //处理的批次数量
+        public long batches;
+        //发送给Redis的命令数量
+        public long commands;
+        //耗时(毫秒)
+        public long elapsed;
+
+        //每秒处理的文档数量
+        public double documentsPerSecond() {
+            return elapsed > 0 ? documents * 1000.0 / elapsed : documents;
+        }
+    }
+
     @AllArgsConstructor
     @EqualsAndHashCode
     @ToString
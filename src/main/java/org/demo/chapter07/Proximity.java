@@ -0,0 +1,188 @@
+package org.demo.chapter07;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 单词位置条件
+ * <p>
+ * 索引集合只记录了文档包含哪些单词,短语查询"exact phrase"和邻近查询a NEAR/3 b还需要单词在文档中的位置.
+ * 开启MyES.indexPositions之后,每个文档的单词位置保存在一个散列里面:
+ * content:pos:文档id----------hash
+ * 单词(或单词编号) | 单词在文档中的位置(升序,相邻位置的差值使用varint编码)
+ * 查询时先通过索引集合计算出同时包含这些单词的候选文档,再只取出候选文档的单词位置,在客户端检查是否满足条件.
+ * <p>
+ * 位置由Tokenizer给出,停用词也会占用位置,所以短语中的停用词会被当作一个任意单词的占位符,
+ * 例如"redis is fast"可以匹配"redis was fast".
+ */
+public class Proximity {
+
+    //单词
+    public final List<String> words;
+    //短语中每个单词相对于第一个单词的位置, NEAR条件为null
+    public final int[] offsets;
+    //NEAR条件两个单词的最大距离
+    public final int distance;
+
+    private Proximity(List<String> words, int[] offsets, int distance) {
+        this.words = words;
+        this.offsets = offsets;
+        this.distance = distance;
+    }
+
+    /**
+     * 短语条件,单词必须按照给定的相对位置出现
+     *
+     * @param words   单词
+     * @param offsets 每个单词相对于第一个单词的位置
+     * @return 短语条件
+     */
+    public static Proximity phrase(List<String> words, int[] offsets) {
+        return new Proximity(words, offsets, 0);
+    }
+
+    /**
+     * 邻近条件,两个单词的位置之差不超过distance,与单词的先后顺序无关
+     *
+     * @param first    第一个单词
+     * @param second   第二个单词
+     * @param distance 最大距离, 相邻的两个单词距离为1
+     * @return 邻近条件
+     */
+    public static Proximity near(String first, String second, int distance) {
+        return new Proximity(Lists.newArrayList(first, second), null, distance);
+    }
+
+    public boolean isPhrase() {
+        return null != offsets;
+    }
+
+    /**
+     * 把条件中的单词替换为索引使用的单词或者单词编号
+     *
+     * @param terms 单词 -> 索引使用的单词或者单词编号
+     * @return 新的条件
+     */
+    public Proximity map(Map<String, String> terms) {
+        List<String> mapped = Lists.newArrayListWithCapacity(words.size());
+        for (String word : words) {
+            mapped.add(terms.containsKey(word) ? terms.get(word) : word);
+        }
+        return new Proximity(mapped, offsets, distance);
+    }
+
+    /**
+     * 检查文档中单词的位置是否满足条件
+     *
+     * @param positions 单词 -> 单词在文档中的位置(升序), 文档不包含的单词可以没有对应的值
+     * @return 是否满足条件
+     */
+    public boolean matches(Map<String, int[]> positions) {
+        if (isPhrase()) {
+            int[] first = positions.get(words.get(0));
+            if (null == first) {
+                return false;
+            }
+            //以第一个单词的每个位置作为短语的起点,检查其余单词是否出现在对应的位置上
+            for (int start : first) {
+                boolean matched = true;
+                for (int i = 1; i < words.size() && matched; i++) {
+                    int[] other = positions.get(words.get(i));
+                    matched = null != other && Arrays.binarySearch(other, start + offsets[i]) >= 0;
+                }
+                if (matched) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        int[] a = positions.get(words.get(0));
+        int[] b = positions.get(words.get(1));
+        if (null == a || null == b) {
+            return false;
+        }
+        //两个位置列表都是升序的,每次移动位置较小的那一个就能找到最近的一对位置
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] != b[j] && Math.abs(a[i] - b[j]) <= distance) {
+                return true;
+            }
+            if (a[i] < b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 条件的规范形式,用于查询结果缓存
+     * 短语中停用词的位置使用_表示,NEAR条件的两个单词按照字母顺序排列
+     */
+    public String canonical() {
+        if (isPhrase()) {
+            List<String> parts = Lists.newArrayList();
+            for (int i = 0; i < words.size(); i++) {
+                while (parts.size() < offsets[i]) {
+                    parts.add("_");
+                }
+                parts.add(words.get(i));
+            }
+            return '"' + StringUtils.join(parts, ' ') + '"';
+        }
+        List<String> sorted = Lists.newArrayList(words);
+        Collections.sort(sorted);
+        return sorted.get(0) + " NEAR/" + distance + " " + sorted.get(1);
+    }
+
+    @Override
+    public String toString() {
+        return canonical();
+    }
+
+    /**
+     * 编码单词在文档中的位置
+     *
+     * @param positions 升序排列的位置
+     * @return 编码之后的数据
+     */
+    public static byte[] encodePositions(List<Integer> positions) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(positions.size() + 4);
+        int previous = 0;
+        for (int position : positions) {
+            WordListCodecs.writeVarint(out, position - previous);
+            previous = position;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 解码单词在文档中的位置
+     *
+     * @param data 编码之后的数据
+     * @return 升序排列的位置, 没有数据时返回null
+     */
+    public static int[] decodePositions(byte[] data) {
+        if (null == data) {
+            return null;
+        }
+        int[] positions = new int[data.length];
+        int size = 0;
+        int[] offset = {0};
+        int previous = 0;
+        while (offset[0] < data.length) {
+            previous += WordListCodecs.readVarint(data, offset);
+            positions[size++] = previous;
+        }
+        return Arrays.copyOf(positions, size);
+    }
+
+}
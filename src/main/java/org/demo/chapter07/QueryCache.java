@@ -0,0 +1,246 @@
+package org.demo.chapter07;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import lombok.Setter;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.params.sortedset.ZAddParams;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * 查询结果缓存
+ * <p>
+ * 大量用户输入相同的查询语句时,没有必要每次都重新执行并集、交集和差集计算.
+ * 这里使用查询对象的规范形式(排序之后的同义词列表以及排序之后的不需要的单词)
+ * 计算出一个固定的结果标识,查询结果集合会被重命名为这个标识对应的key,
+ * 之后相同的查询只需要执行一次EXPIRE刷新结果的生存时间就可以直接使用.
+ * <p>
+ * 为了防止缓存的结果无限增长,使用一个有序集合记录每个结果最近一次被使用的时间,
+ * 缓存的数量超过上限时,删除最久没有被使用的结果(LRU).
+ * <p>
+ * 在Redis前面还有一层很小的本地缓存,热门查询在本地缓存有效期内可以完全不访问Redis.
+ * 本地缓存的有效期只有结果生存时间的一半,所以本地缓存返回的结果不会因为过期而消失,
+ * 但是可能已经被其他客户端按照LRU淘汰,所以本地缓存的容量应该远小于Redis中缓存的容量.
+ * <p>
+ * 缓存的结果在生存时间之内不会感知到文档索引的变化,除非通过invalidate让包含发生了变化的单词的结果失效,
+ * 例如消费IndexFeed的变更记录.为此每个缓存的结果都会按照查询中的单词(前缀查询为"前缀*")进行登记,
+ * 登记集合的生存时间与结果相同.
+ * <p>
+ * 结果最近使用时间结构
+ * query:cache:lru:----------zset
+ * 结果标识     | 最近一次使用的时间
+ * <p>
+ * 单词登记结构
+ * query:cache:word:单词----------set
+ * 包含这个单词的查询的结果标识
+ */
+public class QueryCache {
+
+    //记录结果最近使用时间的有序集合
+    private final static String LRU_KEY = "query:cache:lru:";
+    //单词登记集合的前缀
+    private final static String WORD_KEY = "query:cache:word:";
+    //cacheId计算出的结果标识
+    private final static Pattern CACHE_ID_RE = Pattern.compile("query:[0-9a-f]{32}");
+
+    @Setter
+    private Jedis conn;
+    @Setter
+    private MyES es;
+
+    //Redis中缓存结果的最大数量
+    private final int capacity;
+    //本地缓存,结果标识 -> 本地缓存的过期时间
+    private final Map<String, Long> local;
+
+    public QueryCache(int capacity, final int localCapacity) {
+        this.capacity = capacity;
+        //按照访问顺序排列,超过容量之后移除最久没有被访问的结果
+        this.local = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > localCapacity;
+            }
+        };
+    }
+
+    /**
+     * 获取缓存的查询结果
+     *
+     * @param query 查询对象
+     * @param ttl   查询结果缓存的时间
+     * @return 查询结果标识, 没有缓存时返回null
+     */
+    public String get(MyES.Query query, int ttl) {
+        long start = System.nanoTime();
+        String id = cacheId(query);
+        long now = System.currentTimeMillis();
+        synchronized (local) {
+            Long expireAt = local.get(id);
+            if (null != expireAt && expireAt > now) {
+                es.stage("cache-get", start, 0, -1);
+                return id;
+            }
+        }
+
+        Pipeline pipeline = conn.pipelined();
+        //如果结果仍然存在,那么延长它的生存时间
+        Response<Long> alive = pipeline.expire(es.idxKey(id), ttl);
+        //只更新已经存在的结果的使用时间
+        pipeline.zadd(LRU_KEY, now, id, ZAddParams.zAddParams().xx());
+        //登记集合与结果一起延长生存时间
+        for (String word : words(query)) {
+            pipeline.expire(WORD_KEY + word, ttl);
+        }
+        pipeline.sync();
+        es.stage("cache-get", start, 1, -1);
+        if (alive.get() < 1) {
+            return null;
+        }
+        keepLocal(id, now, ttl);
+        return id;
+    }
+
+    /**
+     * 缓存查询结果
+     *
+     * @param query    查询对象
+     * @param resultId 查询结果标识, 只有这次查询创建的临时结果才会被缓存
+     * @param ttl      查询结果缓存的时间
+     * @return 缓存之后的查询结果标识
+     */
+    public String put(MyES.Query query, String resultId, int ttl) {
+        //单词本身的索引集合等不是查询创建的集合,重命名会让它从索引中消失
+        if (!es.isTempResult(resultId)) {
+            return resultId;
+        }
+        long start = System.nanoTime();
+        String id = cacheId(query);
+        long now = System.currentTimeMillis();
+        try {
+            //RENAME会保留结果原有的生存时间
+            conn.rename(es.idxKey(resultId), es.idxKey(id));
+        } catch (JedisDataException e) {
+            //查询结果为空时Redis不会创建结果集合,这种结果无法缓存
+            es.stage("cache-put", start, 1, -1);
+            return resultId;
+        }
+
+        Pipeline pipeline = conn.pipelined();
+        pipeline.zadd(LRU_KEY, now, id);
+        for (String word : words(query)) {
+            pipeline.sadd(WORD_KEY + word, id);
+            pipeline.expire(WORD_KEY + word, ttl);
+        }
+        Response<Long> size = pipeline.zcard(LRU_KEY);
+        pipeline.sync();
+        keepLocal(id, now, ttl);
+
+        //缓存数量超过上限,删除最久没有被使用的结果
+        long overflow = size.get() - capacity;
+        if (overflow > 0) {
+            evict(conn.zrange(LRU_KEY, 0, overflow - 1));
+        }
+        es.stage("cache-put", start, overflow > 0 ? 4 : 2, -1);
+        return id;
+    }
+
+    /**
+     * 让包含这些单词的缓存结果失效
+     * 单词可能匹配前缀查询,所以单词的每一个前缀(至少两个字母,包括单词本身)对应的前缀查询也会失效.
+     *
+     * @param words 发生了变化的单词, 例如IndexFeed.Batch.words()
+     * @return 失效的结果数量
+     */
+    public int invalidate(Collection<String> words) {
+        if (words.isEmpty()) {
+            return 0;
+        }
+        Set<String> keys = Sets.newHashSet();
+        for (String word : words) {
+            keys.add(WORD_KEY + word);
+            for (int i = 2; i <= word.length(); i++) {
+                keys.add(WORD_KEY + word.substring(0, i) + '*');
+            }
+        }
+        //在同一个事务里面读取并删除登记集合,两个命令之间登记的结果才不会丢失
+        String[] keyArray = keys.toArray(new String[keys.size()]);
+        Transaction trans = conn.multi();
+        Response<Set<String>> ids = trans.sunion(keyArray);
+        trans.del(keyArray);
+        trans.exec();
+        evict(ids.get());
+        return ids.get().size();
+    }
+
+    //查询中的单词,包括不需要的单词,结果的变化可能来自其中任何一个单词
+    private static Set<String> words(MyES.Query query) {
+        Set<String> words = Sets.newHashSet(query.unwanted);
+        for (List<String> syn : query.all) {
+            words.addAll(syn);
+        }
+        return words;
+    }
+
+    /**
+     * 删除缓存的查询结果
+     *
+     * @param ids 查询结果标识
+     */
+    private void evict(Set<String> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        List<String> keys = Lists.newArrayList();
+        for (String id : ids) {
+            keys.add(es.idxKey(id));
+        }
+        Pipeline pipeline = conn.pipelined();
+        pipeline.del(keys.toArray(new String[keys.size()]));
+        pipeline.zrem(LRU_KEY, ids.toArray(new String[ids.size()]));
+        pipeline.sync();
+        synchronized (local) {
+            local.keySet().removeAll(ids);
+        }
+    }
+
+    //记录到本地缓存,有效期为结果生存时间的一半
+    private void keepLocal(String id, long now, int ttl) {
+        synchronized (local) {
+            local.put(id, now + ttl * 500L);
+        }
+    }
+
+    /**
+     * 根据查询对象的规范形式计算结果标识
+     *
+     * @param query 查询对象
+     * @return 结果标识
+     */
+    public String cacheId(MyES.Query query) {
+        return "query:" + Hashing.murmur3_128().hashString(query.canonical(), Charsets.UTF_8);
+    }
+
+    /**
+     * 是否是cacheId计算出的结果标识
+     *
+     * @param id 查询结果标识
+     * @return 是否是缓存的结果
+     */
+    static boolean isCacheId(String id) {
+        return null != id && CACHE_ID_RE.matcher(id).matches();
+    }
+
+}
@@ -0,0 +1,197 @@
+package org.demo.chapter07;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import lombok.Setter;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 查询计划
+ * <p>
+ * MyES.search总是按照查询语句中的顺序先计算同义词的并集,再计算交集,最后计算差集,不考虑集合的大小.
+ * 这里先通过一个流水线取出每个单词的索引集合的大小(SCARD,结果会在本地缓存一小段时间),然后:
+ * 1.从同义词列表中去掉索引为空的单词,如果某个同义词列表的单词全部为空,那么整个查询的结果一定为空,
+ * 不需要执行任何集合运算
+ * 2.按照并集大小的上限(同义词索引大小之和)从小到大排列交集的顺序
+ * 3.去掉索引为空的不需要的单词,如果交集大小的上限乘以不需要的单词数量小于这些单词的索引大小之和,
+ * 并且不超过probeLimit,那么逐个检查候选文档是否包含不需要的单词(SISMEMBER),
+ * 否则使用SDIFFSTORE,SDIFFSTORE需要遍历所有参与计算的集合.
+ * <p>
+ * 使用explain可以查看一个查询语句会被如何执行.
+ */
+public class QueryPlanner {
+
+    @Setter
+    private Jedis conn;
+    @Setter
+    private MyES es;
+    //候选文档数量不超过这个值时才会考虑逐个检查不需要的单词
+    @Setter
+    private int probeLimit = 1000;
+
+    //索引大小在本地缓存的时间(毫秒)
+    private final long cardinalityTtl;
+    //本地缓存,索引集合key -> 索引大小以及过期时间
+    private final Map<String, long[]> cardinalities = new ConcurrentHashMap<String, long[]>();
+
+    public QueryPlanner(long cardinalityTtl) {
+        this.cardinalityTtl = cardinalityTtl;
+    }
+
+    /**
+     * 为查询对象生成查询计划
+     *
+     * @param query 查询对象, 其中的单词应该已经转换为索引使用的形式(单词或者单词编号)
+     * @return 查询计划
+     */
+    public QueryPlan plan(MyES.Query query) {
+        List<String> words = Lists.newArrayList(query.unwanted);
+        for (List<String> syn : query.all) {
+            words.addAll(syn);
+        }
+        Map<String, Long> sizes = cardinalities(words);
+
+        QueryPlan plan = new QueryPlan();
+        for (List<String> syn : query.all) {
+            Group group = new Group();
+            for (String word : syn) {
+                long size = sizes.get(word);
+                //索引为空的单词对并集没有任何贡献
+                if (size > 0 && !group.words.contains(word)) {
+                    group.words.add(word);
+                    group.estimate += size;
+                }
+            }
+            //必须满足的条件没有任何文档,整个查询的结果为空
+            if (group.words.isEmpty()) {
+                plan.empty = true;
+                return plan;
+            }
+            plan.groups.add(group);
+        }
+        Collections.sort(plan.groups, new Comparator<Group>() {
+            public int compare(Group o1, Group o2) {
+                return o1.estimate < o2.estimate ? -1 : o1.estimate > o2.estimate ? 1 : 0;
+            }
+        });
+        //交集的大小不会超过最小的那个并集
+        plan.estimate = plan.groups.get(0).estimate;
+
+        long unwantedSize = 0;
+        for (String word : query.unwanted) {
+            long size = sizes.get(word);
+            if (size > 0) {
+                plan.unwanted.add(word);
+                unwantedSize += size;
+            }
+        }
+        plan.probe = !plan.unwanted.isEmpty()
+                && plan.estimate <= probeLimit
+                && plan.estimate * plan.unwanted.size() < unwantedSize;
+        return plan;
+    }
+
+    /**
+     * 获取单词索引集合的大小
+     * 本地缓存中找不到或者已经过期的单词通过一个流水线获取,正在记录查询时作为estimate阶段记录
+     *
+     * @param words 单词
+     * @return 单词 -> 索引大小
+     */
+    private Map<String, Long> cardinalities(Collection<String> words) {
+        long start = System.nanoTime();
+        Map<String, Long> result = Maps.newHashMap();
+        Map<String, Response<Long>> missing = Maps.newHashMap();
+        long now = System.currentTimeMillis();
+        Pipeline pipeline = null;
+        for (String word : words) {
+            long[] cached = cardinalities.get(es.idxKey(word));
+            if (null != cached && cached[1] > now) {
+                result.put(word, cached[0]);
+            } else if (!missing.containsKey(word)) {
+                if (null == pipeline) {
+                    pipeline = conn.pipelined();
+                }
+                missing.put(word, pipeline.scard(es.idxKey(word)));
+            }
+        }
+        if (null == pipeline) {
+            es.stage("estimate", start, 0, -1);
+            return result;
+        }
+        pipeline.sync();
+        es.stage("estimate", start, 1, -1);
+        for (Map.Entry<String, Response<Long>> entry : missing.entrySet()) {
+            long size = entry.getValue().get();
+            cardinalities.put(es.idxKey(entry.getKey()), new long[]{size, now + cardinalityTtl});
+            result.put(entry.getKey(), size);
+        }
+        return result;
+    }
+
+    /**
+     * 查询计划
+     */
+    public static class QueryPlan {
+        //按照大小排列之后的同义词列表,依次计算交集
+        public final List<Group> groups = Lists.newArrayList();
+        //索引不为空的不需要的单词
+        public final List<String> unwanted = Lists.newArrayList();
+        //查询结果是否一定为空
+        public boolean empty;
+        //是否逐个检查候选文档是否包含不需要的单词
+        public boolean probe;
+        //交集大小的上限
+        public long estimate;
+
+        /**
+         * 以文本的形式描述查询计划
+         */
+        public String explain() {
+            if (empty) {
+                return "empty: a required term has no documents";
+            }
+            StringBuilder builder = new StringBuilder();
+            builder.append("intersect ").append(groups.size()).append(" group(s), at most ")
+                    .append(estimate).append(" document(s)\n");
+            for (Group group : groups) {
+                builder.append("  ").append(group.words.size() > 1 ? "union " : "term ")
+                        .append(group.words).append(" ~").append(group.estimate).append('\n');
+            }
+            if (!unwanted.isEmpty()) {
+                builder.append(probe ? "probe " : "sdiffstore ").append(unwanted).append('\n');
+            }
+            return builder.toString();
+        }
+
+        @Override
+        public String toString() {
+            return explain();
+        }
+    }
+
+    /**
+     * 同义词列表
+     */
+    public static class Group {
+        //索引不为空的同义词
+        public final List<String> words = Lists.newArrayList();
+        //并集大小的上限
+        public long estimate;
+
+        //是否为单独一个单词,单独的单词可以直接使用它的索引集合
+        public boolean isSingleWord() {
+            return words.size() == 1;
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+package org.demo.chapter07;
+
+import com.google.common.collect.Lists;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一次查询的执行记录
+ * <p>
+ * 设置了MyES.searchMetrics之后,每次查询都会记录各个阶段的耗时、通信往返次数以及结果的数量,查询结束之后交给SearchMetrics.
+ * 记录的阶段包括语法分析(parse)、前缀展开(prefix)、查找单词编号(terms)、查询计划获取索引大小(estimate)、
+ * 查询结果缓存(cache-get, cache-put)、每一次集合运算、排序(sort, zsort, rank, score)、读取一页(page)以及取出文档(fetch)等.
+ * 记录结果数量的集合运算会在同一个事务中多执行一个SCARD,不会增加通信往返.
+ */
+public class QueryTrace {
+
+    //查询语句
+    @Getter
+    private final String queryString;
+    //语法分析之后的查询对象
+    @Getter
+    @Setter
+    private MyES.Query query;
+    //查询计划, 没有设置QueryPlanner时为null
+    @Getter
+    @Setter
+    private QueryPlanner.QueryPlan plan;
+
+    private final List<Stage> stages = Lists.newArrayList();
+    private final long start = System.nanoTime();
+    //查询的总耗时(纳秒)
+    @Getter
+    private long elapsed = -1;
+
+    public QueryTrace(String queryString) {
+        this.queryString = queryString;
+    }
+
+    /**
+     * 记录一个阶段
+     *
+     * @param name        阶段名字
+     * @param elapsed     耗时(纳秒)
+     * @param roundTrips  通信往返次数
+     * @param cardinality 结果数量, 不知道时为-1
+     */
+    public void stage(String name, long elapsed, int roundTrips, long cardinality) {
+        stages.add(new Stage(name, elapsed, roundTrips, cardinality));
+    }
+
+    //结束记录
+    void finish() {
+        elapsed = System.nanoTime() - start;
+    }
+
+    public List<Stage> getStages() {
+        return Collections.unmodifiableList(stages);
+    }
+
+    //所有阶段的通信往返次数之和
+    public int getRoundTrips() {
+        int roundTrips = 0;
+        for (Stage stage : stages) {
+            roundTrips += stage.roundTrips;
+        }
+        return roundTrips;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(queryString).append(" ").append(TimeUnit.NANOSECONDS.toMicros(elapsed)).append("us ")
+                .append(getRoundTrips()).append(" round trips");
+        if (null != query) {
+            builder.append(" query=[").append(query.canonical()).append(']');
+        }
+        if (null != plan) {
+            builder.append(" plan=").append(plan);
+        }
+        for (Stage stage : stages) {
+            builder.append("\n  ").append(stage);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 查询的一个阶段
+     */
+    @AllArgsConstructor
+    public static class Stage {
+        //阶段名字
+        public final String name;
+        //耗时(纳秒)
+        public final long elapsed;
+        //通信往返次数
+        public final int roundTrips;
+        //结果数量, 不知道时为-1
+        public final long cardinality;
+
+        @Override
+        public String toString() {
+            return name + " " + TimeUnit.NANOSECONDS.toMicros(elapsed) + "us " + roundTrips + " round trips"
+                    + (cardinality >= 0 ? " " + cardinality + " results" : "");
+        }
+    }
+
+}
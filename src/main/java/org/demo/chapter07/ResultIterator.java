@@ -0,0 +1,119 @@
+package org.demo.chapter07;
+
+import com.google.common.collect.Lists;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.ScanParams;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * 查询结果迭代器
+ * <p>
+ * 导出和重新排序之类的任务需要查询的全部结果,而Page每页最多只有30个文档,
+ * 一次SMEMBERS取出全部结果又会让客户端的内存随结果的大小增长.
+ * 这里通过SSCAN(有序集合为ZSCAN)每次取出大约count个文档id,用完之后再取下一批,
+ * 所以任何时候客户端只保存一批文档id.
+ * <p>
+ * 每次取下一批的同时刷新结果的生存时间,只要两次读取的间隔小于ttl,结果就不会在迭代期间过期.
+ * 取一批、刷新生存时间以及判断结果的类型都在同一个脚本中完成,每一批只需要一次通信往返.
+ * <p>
+ * 与SCAN一样,迭代期间一直存在的文档id至少会被返回一次,集合在迭代期间扩容或者缩容时同一个id可能被返回多次.
+ */
+public class ResultIterator implements Iterator<String> {
+
+    /**
+     * 刷新生存时间并且取出一批元素
+     * 结果不存在时返回nil,否则返回{下一个游标, 元素列表},有序集合只返回成员不返回分值.
+     * EXPIRE是写命令,必须在SSCAN和ZSCAN这些不确定的命令之前执行
+     */
+    private final static LuaScript SCAN_SCRIPT = new LuaScript(
+            "local kind = redis.call('TYPE', KEYS[1])['ok']\n" +
+            "if kind == 'none' then\n" +
+            "    return false\n" +
+            "end\n" +
+            "if tonumber(ARGV[3]) > 0 then\n" +
+            "    redis.call('EXPIRE', KEYS[1], ARGV[3])\n" +
+            "end\n" +
+            "if kind ~= 'zset' then\n" +
+            "    return redis.call('SSCAN', KEYS[1], ARGV[1], 'COUNT', ARGV[2])\n" +
+            "end\n" +
+            "local scan = redis.call('ZSCAN', KEYS[1], ARGV[1], 'COUNT', ARGV[2])\n" +
+            "local members = {}\n" +
+            "for i = 1, #scan[2], 2 do\n" +
+            "    members[#members + 1] = scan[2][i]\n" +
+            "end\n" +
+            "return {scan[1], members}\n");
+
+    private final Jedis conn;
+    //结果集合的key
+    private final String key;
+    //每次刷新的生存时间, 0表示不刷新
+    private final int ttl;
+    //每次SCAN的数量
+    private final int count;
+
+    //当前这一批还没有返回的元素
+    private final LinkedList<String> buffer = new LinkedList<String>();
+    private String cursor = ScanParams.SCAN_POINTER_START;
+    private boolean started;
+    private boolean finished;
+
+    /**
+     * @param conn  连接, 迭代期间不能在同一个连接上使用流水线或者事务
+     * @param key   结果集合(或有序集合)的key
+     * @param ttl   每次读取时刷新的生存时间, 单词的索引集合等没有生存时间的key应该使用0
+     * @param count 每次SCAN的数量
+     */
+    public ResultIterator(Jedis conn, String key, int ttl, int count) {
+        this.conn = conn;
+        this.key = key;
+        this.ttl = ttl;
+        this.count = count;
+    }
+
+    @Override
+    public boolean hasNext() {
+        //SCAN的一次调用可能没有返回任何元素,所以需要一直读取到有元素或者游标回到0为止
+        while (buffer.isEmpty() && !finished) {
+            fetch();
+        }
+        return !buffer.isEmpty();
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return buffer.removeFirst();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    //读取下一批元素
+    @SuppressWarnings("unchecked")
+    private void fetch() {
+        List<Object> scan = (List<Object>) SCAN_SCRIPT.eval(conn, Collections.singletonList(key),
+                Lists.newArrayList(cursor, String.valueOf(count), String.valueOf(ttl)));
+        if (null == scan) {
+            //查询结果为空时Redis不会创建结果集合
+            if (started && ttl > 0) {
+                throw new IllegalStateException("查询结果在迭代期间过期或者被删除: " + key);
+            }
+            finished = true;
+            return;
+        }
+        started = true;
+        cursor = (String) scan.get(0);
+        buffer.addAll((List<String>) scan.get(1));
+        finished = ScanParams.SCAN_POINTER_START.equals(cursor);
+    }
+
+}
@@ -0,0 +1,402 @@
+package org.demo.chapter07;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import lombok.Setter;
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.buffer.BufferFastAggregation;
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
+import org.roaringbitmap.buffer.MutableRoaringBitmap;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Transaction;
+import redis.clients.util.SafeEncoder;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * 基于RoaringBitmap的反向索引
+ * <p>
+ * 使用集合保存反向索引时,交集、并集和差集都在Redis里面计算,常见单词的索引集合可能包含上百万个文档,
+ * 计算期间单线程的Redis无法处理其他客户端的命令.
+ * 这里把每个单词的索引保存为一个序列化之后的RoaringBitmap字符串,集合运算全部在客户端完成:
+ * Redis只需要执行一次MGET取出查询涉及的全部位图,各个同义词列表的并集在线程池中并行计算.
+ * RoaringBitmap把整数按照高16位分块,每一块根据密度选择使用数组、位图或者行程编码存储,
+ * 通常比Redis集合小得多,计算交集时也只需要比较对应的块.
+ * 读取的位图直接包装在取回的字节数组上,不需要反序列化.
+ * <p>
+ * 位图只能保存整数,所以文档id需要是非负整数,或者设置一个文档字典为文档id分配编号.
+ * 单词与MyES使用相同的分词器以及单词字典.
+ * 为了与MyES.parseAndSearch保持相同的调用方式,parseAndSearch会把计算结果写入一个
+ * 临时的索引集合并返回它的标识,只需要结果位图的调用者可以直接使用evaluate,省去写回结果的开销.
+ * <p>
+ * 更新位图需要读取整个位图,修改之后再写回,所以这里使用WATCH防止并发的更新相互覆盖.
+ * 频繁更新索引时常见单词的位图会成为冲突的热点,这种情况下应该尽量批量地创建索引.
+ * <p>
+ * 单词位图结构
+ * bm:idx:单词----------string
+ * 序列化之后的RoaringBitmap
+ * <p>
+ * 文档所含单词结构
+ * bm:word:文档id----------string
+ * 编码之后的单词列表
+ */
+public class RoaringIndex {
+
+    @Setter
+    private Jedis conn;
+    @Setter
+    private MyES es;
+    //文档字典,没有设置时文档id必须是非负整数
+    @Setter
+    private TermDictionary docDictionary;
+    //计算同义词并集的线程池,没有设置时在调用线程中依次计算
+    @Setter
+    private ExecutorService executor;
+    //把查询结果写入临时集合时,每个SADD命令包含的文档数量
+    @Setter
+    private int materializeBatchSize = 10000;
+
+    /**
+     * 创建索引
+     *
+     * @param docid   文档ID
+     * @param content 文档内容
+     * @return 索引个数
+     */
+    public int indexDocument(String docid, String content) {
+        Set<String> words = es.tokenize(content);
+        update(Collections.singletonMap(docid, es.terms(words)));
+        return words.size();
+    }
+
+    /**
+     * 批量创建索引
+     * 同一批文档中多个文档包含的单词,它的位图只需要读取和写回一次.
+     *
+     * @param documents 文档ID -> 文档内容
+     */
+    public void indexDocuments(Map<String, String> documents) {
+        Map<String, Set<String>> terms = Maps.newLinkedHashMap();
+        for (Map.Entry<String, String> document : documents.entrySet()) {
+            terms.put(document.getKey(), es.terms(es.tokenize(document.getValue())));
+        }
+        update(terms);
+    }
+
+    /**
+     * 删除文档的索引
+     *
+     * @param docid 文档id
+     */
+    public void deleteIndex(String docid) {
+        update(Collections.singletonMap(docid, Collections.<String>emptySet()));
+    }
+
+    /**
+     * 更新文档的索引
+     * 与MyES.indexDocument一样只修改那些发生了变化的单词的位图
+     *
+     * @param documents 文档ID -> 文档包含的单词, 没有单词表示删除文档的索引
+     */
+    private void update(Map<String, Set<String>> documents) {
+        List<String> docids = Lists.newArrayList(documents.keySet());
+        int[] ids = docIds(docids);
+        String[] wordsKeys = new String[docids.size()];
+        byte[][] binaryWordsKeys = new byte[docids.size()][];
+        for (int i = 0; i < docids.size(); i++) {
+            wordsKeys[i] = wordsKey(docids.get(i));
+            binaryWordsKeys[i] = SafeEncoder.encode(wordsKeys[i]);
+        }
+
+        while (true) {
+            //监视文档所含单词的key,防止其他客户端在计算差集之后修改了这些文档的索引
+            conn.watch(wordsKeys);
+            List<byte[]> oldWordsList = conn.mget(binaryWordsKeys);
+            //按照单词对需要删除和添加的文档进行分组
+            Map<String, MutableRoaringBitmap> removed = Maps.newHashMap();
+            Map<String, MutableRoaringBitmap> added = Maps.newHashMap();
+            List<Integer> changed = Lists.newArrayList();
+            for (int i = 0; i < docids.size(); i++) {
+                Set<String> oldWords = Sets.newHashSet(WordListCodecs.decode(oldWordsList.get(i)));
+                Set<String> words = documents.get(docids.get(i));
+                if (oldWords.equals(words)) {
+                    continue;
+                }
+                changed.add(i);
+                for (String word : Sets.difference(oldWords, words)) {
+                    groupByWord(removed, word, ids[i]);
+                }
+                for (String word : Sets.difference(words, oldWords)) {
+                    groupByWord(added, word, ids[i]);
+                }
+            }
+            if (changed.isEmpty()) {
+                conn.unwatch();
+                return;
+            }
+
+            //同样需要监视将要修改的位图
+            List<String> words = Lists.newArrayList(Sets.union(removed.keySet(), added.keySet()));
+            String[] keys = new String[words.size()];
+            byte[][] binaryKeys = new byte[words.size()][];
+            for (int i = 0; i < words.size(); i++) {
+                keys[i] = bitmapKey(words.get(i));
+                binaryKeys[i] = SafeEncoder.encode(keys[i]);
+            }
+            conn.watch(keys);
+            List<byte[]> bitmaps = conn.mget(binaryKeys);
+
+            Transaction trans = conn.multi();
+            for (int i = 0; i < words.size(); i++) {
+                MutableRoaringBitmap bitmap = bitmap(bitmaps.get(i)).toMutableRoaringBitmap();
+                if (removed.containsKey(words.get(i))) {
+                    bitmap.andNot(removed.get(words.get(i)));
+                }
+                if (added.containsKey(words.get(i))) {
+                    bitmap.or(added.get(words.get(i)));
+                }
+                //不再包含任何文档的位图直接删除
+                if (bitmap.isEmpty()) {
+                    trans.del(binaryKeys[i]);
+                } else {
+                    trans.set(binaryKeys[i], serialize(bitmap));
+                }
+            }
+            for (int i : changed) {
+                Set<String> newWords = documents.get(docids.get(i));
+                if (newWords.isEmpty()) {
+                    trans.del(binaryWordsKeys[i]);
+                } else {
+                    trans.set(binaryWordsKeys[i], WordListCodecs.FRONT_CODED.encode(newWords));
+                }
+            }
+            //有其他客户端修改了这些文档或者位图,重试
+            if (null != trans.exec()) {
+                return;
+            }
+        }
+    }
+
+    //把文档添加到单词对应的分组里面
+    private static void groupByWord(Map<String, MutableRoaringBitmap> groups, String word, int docid) {
+        MutableRoaringBitmap bitmap = groups.get(word);
+        if (null == bitmap) {
+            bitmap = new MutableRoaringBitmap();
+            groups.put(word, bitmap);
+        }
+        bitmap.add(docid);
+    }
+
+    /**
+     * 用于分析查询语句并搜索文档的函数
+     * 与MyES.parseAndSearch的返回值相同
+     *
+     * @param queryString 查询语句
+     * @param ttl         查询结果缓存的时间
+     * @return 查询结果集合的key
+     */
+    public String parseAndSearch(String queryString, int ttl) {
+        MyES.Query query = es.parse(queryString);
+        //如果只有反义词,那么这次搜索将没有任何结果
+        if (query.all.isEmpty()) {
+            return null;
+        }
+        String id = es.tempId();
+        materialize(id, evaluate(query), ttl);
+        return id;
+    }
+
+    /**
+     * 在客户端计算查询结果
+     *
+     * @param query 查询对象
+     * @return 查询结果位图, 位图中的整数为文档id或者文档编号
+     */
+    public ImmutableRoaringBitmap evaluate(MyES.Query query) {
+        //位图索引没有记录单词的位置
+        if (!query.proximities.isEmpty()) {
+            throw new IllegalArgumentException("位图索引不支持短语查询和邻近查询");
+        }
+        query = es.expandPrefixes(query);
+        //通过一次MGET取出查询涉及的全部位图
+        Set<String> words = Sets.newHashSet(query.unwanted);
+        for (List<String> syn : query.all) {
+            words.addAll(syn);
+        }
+        Map<String, String> terms = es.lookupTerms(words);
+        List<String> wordList = Lists.newArrayList(words);
+        byte[][] keys = new byte[wordList.size()][];
+        for (int i = 0; i < wordList.size(); i++) {
+            keys[i] = SafeEncoder.encode(bitmapKey(terms.get(wordList.get(i))));
+        }
+        List<byte[]> values = conn.mget(keys);
+        final Map<String, ImmutableRoaringBitmap> bitmaps = Maps.newHashMap();
+        for (int i = 0; i < wordList.size(); i++) {
+            bitmaps.put(wordList.get(i), bitmap(values.get(i)));
+        }
+
+        //并行地计算各个同义词列表的并集
+        List<Future<ImmutableRoaringBitmap>> futures = Lists.newArrayList();
+        for (final List<String> syn : query.all) {
+            Callable<ImmutableRoaringBitmap> task = new Callable<ImmutableRoaringBitmap>() {
+                public ImmutableRoaringBitmap call() {
+                    return union(bitmaps, syn);
+                }
+            };
+            if (null != executor && syn.size() > 1) {
+                futures.add(executor.submit(task));
+            } else {
+                futures.add(Futures.immediateFuture(union(bitmaps, syn)));
+            }
+        }
+        ImmutableRoaringBitmap[] groups = new ImmutableRoaringBitmap[futures.size()];
+        for (int i = 0; i < groups.length; i++) {
+            try {
+                groups[i] = futures.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        //对各个同义词列表的并集执行交集运算,然后移除包含不需要的单词的文档
+        ImmutableRoaringBitmap result = groups.length > 1 ? BufferFastAggregation.and(groups) : groups[0];
+        if (!query.unwanted.isEmpty() && !result.isEmpty()) {
+            result = ImmutableRoaringBitmap.andNot(result, union(bitmaps, query.unwanted));
+        }
+        return result;
+    }
+
+    //计算多个单词的位图的并集
+    private static ImmutableRoaringBitmap union(Map<String, ImmutableRoaringBitmap> bitmaps, Iterable<String> words) {
+        List<ImmutableRoaringBitmap> toUnion = Lists.newArrayList();
+        for (String word : words) {
+            toUnion.add(bitmaps.get(word));
+        }
+        if (toUnion.size() == 1) {
+            return toUnion.get(0);
+        }
+        return BufferFastAggregation.or(toUnion.toArray(new ImmutableRoaringBitmap[toUnion.size()]));
+    }
+
+    /**
+     * 把查询结果写入临时的索引集合
+     * 所有SADD命令都通过同一个流水线发送,结果为空时Redis不会创建集合
+     *
+     * @param id     查询结果标识
+     * @param result 查询结果位图
+     * @param ttl    查询结果缓存的时间
+     */
+    private void materialize(String id, ImmutableRoaringBitmap result, int ttl) {
+        if (result.isEmpty()) {
+            return;
+        }
+        String key = es.idxKey(id);
+        Pipeline pipeline = conn.pipelined();
+        int[] batch = new int[Math.min(materializeBatchSize, result.getCardinality())];
+        int size = 0;
+        IntIterator iterator = result.getIntIterator();
+        while (iterator.hasNext()) {
+            batch[size++] = iterator.next();
+            if (size == batch.length || !iterator.hasNext()) {
+                List<String> docids = docIds(batch, size);
+                pipeline.sadd(key, docids.toArray(new String[docids.size()]));
+                size = 0;
+            }
+        }
+        pipeline.expire(key, ttl);
+        pipeline.sync();
+    }
+
+    /**
+     * 把文档id转换为位图使用的整数
+     * 使用文档字典时,没有编号的文档会被分配一个编号
+     *
+     * @param docids 文档id
+     * @return 整数文档id
+     */
+    private int[] docIds(List<String> docids) {
+        int[] ids = new int[docids.size()];
+        if (null == docDictionary) {
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = Integer.parseInt(docids.get(i));
+                if (ids[i] < 0) {
+                    throw new IllegalArgumentException("文档id必须是非负整数: " + docids.get(i));
+                }
+            }
+            return ids;
+        }
+        Map<String, Integer> assigned = docDictionary.ids(docids);
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = assigned.get(docids.get(i));
+        }
+        return ids;
+    }
+
+    //把位图中的整数转换回文档id
+    private List<String> docIds(int[] ids, int size) {
+        if (size < ids.length) {
+            int[] part = new int[size];
+            System.arraycopy(ids, 0, part, 0, size);
+            ids = part;
+        }
+        if (null != docDictionary) {
+            return docDictionary.terms(ids);
+        }
+        List<String> docids = Lists.newArrayListWithCapacity(ids.length);
+        for (int id : ids) {
+            docids.add(String.valueOf(id));
+        }
+        return docids;
+    }
+
+    //直接在取回的字节数组上读取位图,位图不存在时返回空位图
+    private static ImmutableRoaringBitmap bitmap(byte[] data) {
+        if (null == data) {
+            return new MutableRoaringBitmap();
+        }
+        return new ImmutableRoaringBitmap(ByteBuffer.wrap(data));
+    }
+
+    //序列化位图,序列化之前先尝试使用行程编码压缩连续的文档id
+    private static byte[] serialize(MutableRoaringBitmap bitmap) {
+        bitmap.runOptimize();
+        ByteBuffer buffer = ByteBuffer.allocate(bitmap.serializedSizeInBytes());
+        bitmap.serialize(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * 获取单词位图的key
+     *
+     * @param word 单词(设置了单词字典时为单词编号)
+     * @return 单词位图的key
+     */
+    public String bitmapKey(String word) {
+        return "bm:idx:" + word;
+    }
+
+    /**
+     * 获取文档所含单词的key
+     *
+     * @param docid 文档id
+     * @return 文档所含单词的key
+     */
+    public String wordsKey(String docid) {
+        return "bm:word:" + docid;
+    }
+
+}
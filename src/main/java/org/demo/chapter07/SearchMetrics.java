@@ -0,0 +1,18 @@
+package org.demo.chapter07;
+
+/**
+ * 查询指标
+ * <p>
+ * MyES在每次查询结束之后调用record,实现可以把各个阶段的耗时写入直方图、监控系统或者日志.
+ * record在执行查询的线程中同步调用,实现必须是线程安全的,并且不应该执行耗时的操作.
+ */
+public interface SearchMetrics {
+
+    /**
+     * 记录一次查询
+     *
+     * @param trace 查询的执行记录
+     */
+    void record(QueryTrace trace);
+
+}
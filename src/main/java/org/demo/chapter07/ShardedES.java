@@ -0,0 +1,333 @@
+package org.demo.chapter07;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import lombok.AllArgsConstructor;
+import org.apache.commons.lang3.StringUtils;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.SortingParams;
+import redis.clients.jedis.Transaction;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * 按文档分片的反向索引
+ * <p>
+ * 所有索引集合都保存在同一个Redis里面时,索引的大小受限于一台机器的内存,
+ * 查询时的集合运算也只能使用Redis的一个CPU核心.
+ * 这里按照文档id把文档分散到多个Redis上:文档保存在第hash(文档id) % N个分片里面,
+ * 文档的索引集合、单词记录以及文档散列都只保存在这个分片上,所以每个分片都是一个完整的、
+ * 只包含部分文档的MyES索引,查询时在线程池中同时向所有分片发送查询,再在客户端合并结果.
+ * <p>
+ * 排序时每个分片通过SORT ... GET取出排在前面的文档以及它们的排序字段,
+ * 客户端对各个分片已经排好序的结果执行多路归并,文档总数为各个分片的文档数量之和.
+ * 读取第offset页时每个分片都需要返回offset + count个文档,所以深度翻页的代价会随着分片数量增加.
+ * <p>
+ * 分片的数量在创建索引之后不能改变,否则文档会被路由到错误的分片.
+ * <p>
+ * 每个分片的搜索对象由ShardFactory创建,所有分片应该使用相同的配置(单词字典、词频和位置索引、查询方式等),
+ * 否则分片索引与单节点索引的行为会不一致.只需要复制简单配置时可以传入一个模板MyES.
+ */
+public class ShardedES {
+
+    //每个分片的连接池
+    private final List<JedisPool> shards;
+    //向各个分片发送查询的线程池
+    private final ExecutorService executor;
+    //为每个分片的连接创建搜索对象
+    private final ShardFactory factory;
+
+    public ShardedES(List<JedisPool> shards, ExecutorService executor) {
+        this(shards, executor, new MyES());
+    }
+
+    /**
+     * @param shards   每个分片的连接池
+     * @param executor 向各个分片发送查询的线程池
+     * @param template 配置模板, 每个分片使用它的一个复制, 不能设置绑定连接的组件
+     */
+    public ShardedES(List<JedisPool> shards, ExecutorService executor, final MyES template) {
+        this(shards, executor, new ShardFactory() {
+            public MyES create(Jedis conn, int shard) {
+                return template.copy(conn);
+            }
+        });
+        //提前检查模板能否复制
+        template.copy(null);
+    }
+
+    public ShardedES(List<JedisPool> shards, ExecutorService executor, ShardFactory factory) {
+        this.shards = shards;
+        this.executor = executor;
+        this.factory = factory;
+    }
+
+    /**
+     * 计算文档所在的分片
+     *
+     * @param docid 文档id
+     * @return 分片序号
+     */
+    public int shard(String docid) {
+        int hash = Hashing.murmur3_32().hashString(docid, Charsets.UTF_8).asInt();
+        return (hash & 0x7fffffff) % shards.size();
+    }
+
+    /**
+     * 获取文档所在分片的连接池,用于在同一个分片上保存文档散列等数据
+     *
+     * @param docid 文档id
+     * @return 连接池
+     */
+    public JedisPool pool(String docid) {
+        return shards.get(shard(docid));
+    }
+
+    /**
+     * 创建索引
+     *
+     * @param docid   文档ID
+     * @param content 文档内容
+     * @return 索引个数
+     */
+    public int indexDocument(String docid, String content) {
+        Jedis conn = pool(docid).getResource();
+        try {
+            return es(conn, shard(docid)).indexDocument(docid, content);
+        } finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * 删除文档的索引
+     *
+     * @param docid 文档id
+     */
+    public void deleteIndex(String docid) {
+        Jedis conn = pool(docid).getResource();
+        try {
+            es(conn, shard(docid)).deleteIndex(docid);
+        } finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * 在所有分片上分析查询语句并搜索文档
+     *
+     * @param queryString 查询语句
+     * @param ttl         查询结果缓存的时间
+     * @return 每个分片的查询结果集合的key, 与分片的顺序相同
+     */
+    public List<String> parseAndSearch(final String queryString, final int ttl) {
+        return fanOut(new ShardTask<String>() {
+            public String call(MyES es, Jedis conn, int shard) {
+                return es.parseAndSearch(queryString, ttl);
+            }
+        });
+    }
+
+    /**
+     * 在所有分片上搜索并排序,然后合并出全局的一页结果
+     *
+     * @param queryString 查询语句
+     * @param ids         上一次搜索返回的每个分片的结果标识, 没有时为null
+     * @param ttl         排序结果缓存时间
+     * @param sort        指定搜索结果的排序方式, 与MyES.searchAndSort相同
+     * @param offset      这一页的起始位置
+     * @param count       每页的文档数量
+     * @return 搜索结果
+     */
+    public ShardedResult searchAndSort(final String queryString, final List<String> ids, final int ttl,
+                                       String sort, final long offset, final long count) {
+        final boolean desc = StringUtils.isNotEmpty(sort) && sort.startsWith("-");
+        final String field = StringUtils.isEmpty(sort) ? "id" : desc ? sort.substring(1) : sort;
+        final boolean alpha = MyES.isAlpha(field);
+
+        //每个分片返回排在最前面的offset + count个文档以及它们的排序字段
+        List<ShardPage> pages = fanOut(new ShardTask<ShardPage>() {
+            public ShardPage call(MyES es, Jedis conn, int shard) {
+                String id = null == ids ? null : ids.get(shard);
+                //结果标识来自客户端,单词本身的索引集合等不是查询结果的集合不能设置生存时间,重新执行查询
+                if (!es.isQueryResult(id) || conn.expire(es.idxKey(id), ttl) < 1) {
+                    id = es.parseAndSearch(queryString, ttl);
+                }
+                if (null == id) {
+                    return new ShardPage(null, 0, Collections.<String>emptyList());
+                }
+                String by = es.contentKey("*->") + field;
+                SortingParams params = new SortingParams().by(by).limit(0, (int) (offset + count)).get("#", by);
+                if (desc) {
+                    params.desc();
+                }
+                if (alpha) {
+                    params.alpha();
+                }
+                Transaction trans = conn.multi();
+                trans.scard(es.idxKey(id));
+                trans.sort(es.idxKey(id), params);
+                List<Object> results = trans.exec();
+                return new ShardPage(id, (Long) results.get(0), (List<String>) results.get(1));
+            }
+        });
+
+        List<String> resultIds = Lists.newArrayList();
+        long total = 0;
+        for (ShardPage page : pages) {
+            resultIds.add(page.id);
+            total += page.total;
+        }
+        return new ShardedResult(resultIds, total, merge(pages, alpha, desc, offset, count));
+    }
+
+    /**
+     * 对各个分片已经排好序的结果执行多路归并
+     *
+     * @param pages  各个分片的结果
+     * @param alpha  是否按照字母排序
+     * @param desc   是否降序
+     * @param offset 这一页的起始位置
+     * @param count  每页的文档数量
+     * @return 这一页的文档
+     */
+    private static List<String> merge(final List<ShardPage> pages, final boolean alpha, final boolean desc,
+                                      long offset, long count) {
+        //队列中的元素为{分片序号, 当前位置}
+        PriorityQueue<int[]> heads = new PriorityQueue<int[]>(Math.max(1, pages.size()), new Comparator<int[]>() {
+            public int compare(int[] o1, int[] o2) {
+                int diff = compareValues(pages.get(o1[0]).value(o1[1]), pages.get(o2[0]).value(o2[1]), alpha);
+                return desc ? -diff : diff;
+            }
+        });
+        for (int i = 0; i < pages.size(); i++) {
+            if (pages.get(i).size() > 0) {
+                heads.add(new int[]{i, 0});
+            }
+        }
+        List<String> results = Lists.newArrayList();
+        for (long position = 0; position < offset + count && !heads.isEmpty(); position++) {
+            int[] head = heads.poll();
+            if (position >= offset) {
+                results.add(pages.get(head[0]).docid(head[1]));
+            }
+            if (++head[1] < pages.get(head[0]).size()) {
+                heads.add(head);
+            }
+        }
+        return results;
+    }
+
+    //按照SORT的规则比较两个排序字段,不存在的字段按照0或者空字符串处理
+    private static int compareValues(String v1, String v2, boolean alpha) {
+        if (alpha) {
+            return StringUtils.defaultString(v1).compareTo(StringUtils.defaultString(v2));
+        }
+        return Double.compare(toNumber(v1), toNumber(v2));
+    }
+
+    private static double toNumber(String value) {
+        return StringUtils.isEmpty(value) ? 0 : Double.parseDouble(value);
+    }
+
+    /**
+     * 在线程池中同时对所有分片执行任务
+     *
+     * @param task 任务
+     * @return 每个分片的执行结果, 与分片的顺序相同
+     */
+    private <T> List<T> fanOut(final ShardTask<T> task) {
+        List<Future<T>> futures = Lists.newArrayList();
+        for (int i = 0; i < shards.size(); i++) {
+            final int shard = i;
+            futures.add(executor.submit(new Callable<T>() {
+                public T call() {
+                    Jedis conn = shards.get(shard).getResource();
+                    try {
+                        return task.call(es(conn, shard), conn, shard);
+                    } finally {
+                        conn.close();
+                    }
+                }
+            }));
+        }
+        List<T> results = Lists.newArrayList();
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    //使用分片连接的搜索对象
+    private MyES es(Jedis conn, int shard) {
+        return factory.create(conn, shard);
+    }
+
+    /**
+     * 为分片创建搜索对象
+     * 每次访问分片都会使用从连接池取出的连接调用create,同一个分片可能同时被多个线程访问,
+     * 所以查询结果缓存、查询计划等绑定了连接的组件需要在create中使用这个连接创建.
+     */
+    public interface ShardFactory {
+        MyES create(Jedis conn, int shard);
+    }
+
+    /**
+     * 在一个分片上执行的任务
+     */
+    private interface ShardTask<T> {
+        T call(MyES es, Jedis conn, int shard);
+    }
+
+    /**
+     * 一个分片排好序的结果, SORT ... GET # GET 排序字段 返回的列表中文档id和排序字段交替出现
+     */
+    @AllArgsConstructor
+    private static class ShardPage {
+        final String id;
+        final long total;
+        final List<String> values;
+
+        int size() {
+            return values.size() / 2;
+        }
+
+        String docid(int index) {
+            return values.get(index * 2);
+        }
+
+        String value(int index) {
+            return values.get(index * 2 + 1);
+        }
+    }
+
+    /**
+     * 合并之后的查询结果
+     */
+    @AllArgsConstructor
+    public static class ShardedResult {
+        //每个分片的查询结果id,与分片的顺序相同,可以在翻页时传回
+        public final List<String> ids;
+        //所有分片的文档数量之和
+        public final long total;
+        //这一页的文档
+        public final List<String> results;
+    }
+
+}
@@ -0,0 +1,220 @@
+package org.demo.chapter07;
+
+import com.google.common.collect.Lists;
+import lombok.Getter;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Transaction;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 临时结果管理
+ * <p>
+ * MyES的每一次交集、并集和差集计算都会创建一个带有生存时间的临时集合,
+ * 一次广告定向操作就会创建3 + 页面单词数量个临时有序集合.这些集合大多只在一次查询内部使用,
+ * 却要等到过期之后才会被Redis删除,负载较高时键空间里面会堆积大量等待过期的临时集合.
+ * <p>
+ * 这里为临时结果分配带有保留前缀的id(对应的key为idx:tmp:随机id),并使用作用域跟踪一次查询内部创建的临时结果:
+ * 1.open打开一个作用域,之后在同一个线程中创建的临时结果都会被记录到这个作用域里面
+ * 2.需要返回给调用者的结果通过keep保留,保留的结果交给外层作用域处理,没有外层作用域时等待过期
+ * 3.release时通过一次UNLINK删除其余的临时结果(可以放在事务的最后执行),UNLINK在后台线程中释放内存,
+ * 不会因为删除较大的集合而阻塞Redis
+ * 作用域保存在线程本地变量中,删除时使用调用者的连接,所以使用不同连接的多个线程可以共用同一个管理器,
+ * 但是一个作用域只能在打开它的线程中使用.
+ * <p>
+ * 计数器记录了创建的临时结果数量、主动删除的数量、仍然被作用域跟踪的数量,
+ * 其余的临时结果都在等待过期,countLive通过SCAN统计键空间里面实际存在的临时结果.
+ */
+public class TempKeyManager {
+
+    /**
+     * 删除临时结果的脚本,Redis 4.0之前没有UNLINK,改用DEL
+     */
+    private final static String UNLINK_SOURCE =
+            "local ok, deleted = pcall(redis.call, 'UNLINK', unpack(KEYS))\n" +
+            "if not ok then\n" +
+            "    deleted = redis.call('DEL', unpack(KEYS))\n" +
+            "end\n" +
+            "return tostring(deleted)\n";
+    private final static LuaScript UNLINK_SCRIPT = new LuaScript(UNLINK_SOURCE);
+
+    //临时结果id的保留前缀,单词中没有冒号,所以不会与单词的索引集合冲突
+    @Getter
+    private final String prefix;
+
+    //创建的临时结果数量
+    private final AtomicLong created = new AtomicLong();
+    //主动删除的临时结果数量
+    private final AtomicLong deleted = new AtomicLong();
+    //仍然被作用域跟踪的临时结果数量
+    private final AtomicLong pending = new AtomicLong();
+
+    //当前线程打开的作用域,最后打开的在最前面
+    private final ThreadLocal<LinkedList<Scope>> scopes = new ThreadLocal<LinkedList<Scope>>() {
+        @Override
+        protected LinkedList<Scope> initialValue() {
+            return new LinkedList<Scope>();
+        }
+    };
+
+    public TempKeyManager() {
+        this("tmp:");
+    }
+
+    public TempKeyManager(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * 分配一个临时结果id
+     *
+     * @return 带有保留前缀的id
+     */
+    public String newId() {
+        created.incrementAndGet();
+        return prefix + UUID.randomUUID().toString();
+    }
+
+    /**
+     * 把临时结果的key记录到当前线程最后打开的作用域里面
+     * 没有打开的作用域时不做任何事情,临时结果等待过期
+     *
+     * @param key 临时结果的key
+     */
+    public void track(String key) {
+        Scope scope = scopes.get().peekFirst();
+        if (null != scope) {
+            scope.keys.add(key);
+            pending.incrementAndGet();
+        }
+    }
+
+    /**
+     * 打开一个作用域
+     *
+     * @return 作用域
+     */
+    public Scope open() {
+        Scope scope = new Scope();
+        scopes.get().addFirst(scope);
+        return scope;
+    }
+
+    //创建的临时结果数量
+    public long getCreated() {
+        return created.get();
+    }
+
+    //主动删除的临时结果数量
+    public long getDeleted() {
+        return deleted.get();
+    }
+
+    //仍然被作用域跟踪、将会被主动删除的临时结果数量
+    public long getPending() {
+        return pending.get();
+    }
+
+    //没有被主动删除、正在等待过期(或者已经过期)的临时结果数量
+    public long getExpiring() {
+        return created.get() - deleted.get() - pending.get();
+    }
+
+    /**
+     * 通过SCAN统计键空间里面实际存在的临时结果数量
+     * 需要遍历整个键空间,只适合用于监控和排查问题
+     *
+     * @param conn    连接
+     * @param pattern 临时结果key的模式, 例如idx:tmp:*
+     * @param count   每次SCAN的数量
+     * @return 临时结果数量
+     */
+    public long countLive(Jedis conn, String pattern, int count) {
+        long live = 0;
+        ScanParams params = new ScanParams().match(pattern).count(count);
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+            ScanResult<String> scan = conn.scan(cursor, params);
+            cursor = scan.getStringCursor();
+            live += scan.getResult().size();
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+        return live;
+    }
+
+    /**
+     * 作用域
+     */
+    public class Scope {
+
+        //需要删除的临时结果的key
+        private final Set<String> keys = new LinkedHashSet<String>();
+        private boolean closed;
+
+        /**
+         * 保留一个临时结果,它会被交给外层作用域,没有外层作用域时等待过期
+         *
+         * @param key 临时结果的key
+         */
+        public void keep(String key) {
+            if (!keys.remove(key)) {
+                return;
+            }
+            pending.decrementAndGet();
+            LinkedList<Scope> opened = scopes.get();
+            int index = opened.indexOf(this);
+            if (index >= 0 && index + 1 < opened.size()) {
+                opened.get(index + 1).keys.add(key);
+                pending.incrementAndGet();
+            }
+        }
+
+        /**
+         * 在事务中删除作用域跟踪的临时结果并关闭作用域
+         * 删除命令在事务的最后执行,所以同一个事务中之前的命令仍然可以读取这些临时结果
+         *
+         * @param trans 事务对象
+         */
+        public void release(Transaction trans) {
+            List<String> released = detach();
+            if (!released.isEmpty()) {
+                trans.eval(UNLINK_SOURCE, released, Collections.<String>emptyList());
+                deleted.addAndGet(released.size());
+            }
+        }
+
+        /**
+         * 删除作用域跟踪的临时结果并关闭作用域
+         *
+         * @param conn 连接
+         */
+        public void release(Jedis conn) {
+            List<String> released = detach();
+            if (!released.isEmpty()) {
+                UNLINK_SCRIPT.eval(conn, released, Collections.<String>emptyList());
+                deleted.addAndGet(released.size());
+            }
+        }
+
+        //关闭作用域,返回需要删除的临时结果
+        private List<String> detach() {
+            if (closed) {
+                return Collections.emptyList();
+            }
+            closed = true;
+            scopes.get().remove(this);
+            List<String> released = Lists.newArrayList(keys);
+            pending.addAndGet(-released.size());
+            keys.clear();
+            return released;
+        }
+    }
+
+}
@@ -0,0 +1,257 @@
+package org.demo.chapter07;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import lombok.Setter;
+import redis.clients.jedis.Jedis;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 单词字典
+ * <p>
+ * 为每个单词分配一个从1开始连续递增的整数编号,之后索引集合的key和文档所含单词的记录
+ * 都可以使用编号代替单词本身,这样可以缩小key和集合成员占用的内存,
+ * 连续的编号也使得在客户端使用位图进行交集计算成为可能.
+ * <p>
+ * 单词与编号的对应关系保存在Redis的散列里面,编号一经分配就不会改变,
+ * 所以可以放心地缓存在本地,本地缓存不设上限,大小与单词表的大小相同.
+ * 新单词的编号由Lua脚本分配,查找和分配在同一个脚本里面完成,
+ * 多个客户端同时分配同一个单词时也只会得到同一个编号.
+ * <p>
+ * 通过不同的命名空间,同一个类也可以用于其他需要整数编号的场合,例如为文档id分配编号.
+ * <p>
+ * 单词编号结构
+ * dict:命名空间:ids:----------hash
+ * 单词     | 编号
+ * <p>
+ * 编号单词结构
+ * dict:命名空间:terms:----------hash
+ * 编号     | 单词
+ * <p>
+ * 编号计数器
+ * dict:命名空间:next:----------string
+ * 最近一次分配的编号
+ */
+public class TermDictionary {
+
+    /**
+     * 查找单词的编号,没有编号的单词分配一个新的编号
+     * KEYS[1]为单词编号散列,KEYS[2]为编号单词散列,KEYS[3]为编号计数器,ARGV为单词.
+     * 返回与ARGV顺序相同的编号列表.
+     */
+    private final static LuaScript ASSIGN_SCRIPT = new LuaScript(
+            "local ids = {} " +
+            "for i, term in ipairs(ARGV) do " +
+            "  local id = redis.call('HGET', KEYS[1], term) " +
+            "  if not id then " +
+            "    id = redis.call('INCR', KEYS[3]) " +
+            "    redis.call('HSET', KEYS[1], term, id) " +
+            "    redis.call('HSET', KEYS[2], id, term) " +
+            "  end " +
+            "  ids[i] = tonumber(id) " +
+            "end " +
+            "return ids");
+
+    @Setter
+    private Jedis conn;
+
+    //命名空间
+    private final String namespace;
+    //本地缓存,单词 -> 编号
+    private final Map<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    //本地缓存,编号 -> 单词
+    private final Map<Integer, String> terms = new ConcurrentHashMap<Integer, String>();
+
+    public TermDictionary(String namespace) {
+        this.namespace = namespace;
+    }
+
+    /**
+     * 获取单词的编号,单词没有编号时为它分配一个
+     *
+     * @param term 单词
+     * @return 编号
+     */
+    public int id(String term) {
+        return ids(Collections.singletonList(term)).get(term);
+    }
+
+    /**
+     * 批量获取单词的编号,没有编号的单词会被分配一个编号
+     * 本地缓存中找不到的单词只需要执行一次脚本.
+     *
+     * @param terms 单词
+     * @return 单词 -> 编号
+     */
+    public Map<String, Integer> ids(Collection<String> terms) {
+        Map<String, Integer> result = Maps.newHashMapWithExpectedSize(terms.size());
+        List<String> missing = Lists.newArrayList();
+        for (String term : terms) {
+            Integer id = ids.get(term);
+            if (null != id) {
+                result.put(term, id);
+            } else if (!result.containsKey(term)) {
+                result.put(term, null);
+                missing.add(term);
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+
+        List<String> keys = Lists.newArrayList(idsKey(), termsKey(), nextKey());
+        List<Long> assigned = (List<Long>) ASSIGN_SCRIPT.eval(conn, keys, missing);
+        for (int i = 0; i < missing.size(); i++) {
+            int id = assigned.get(i).intValue();
+            remember(missing.get(i), id);
+            result.put(missing.get(i), id);
+        }
+        return result;
+    }
+
+    /**
+     * 查找单词的编号,不会为单词分配编号
+     *
+     * @param term 单词
+     * @return 编号, 单词没有编号时返回null
+     */
+    public Integer lookup(String term) {
+        return lookup(Collections.singletonList(term)).get(term);
+    }
+
+    /**
+     * 批量查找单词的编号,不会为单词分配编号
+     * 查询时使用这个方法,避免为那些从来没有出现在任何文档里面的单词分配编号.
+     *
+     * @param terms 单词
+     * @return 单词 -> 编号, 没有编号的单词不会出现在结果里面
+     */
+    public Map<String, Integer> lookup(Collection<String> terms) {
+        Map<String, Integer> result = Maps.newHashMapWithExpectedSize(terms.size());
+        List<String> missing = Lists.newArrayList();
+        for (String term : terms) {
+            Integer id = ids.get(term);
+            if (null != id) {
+                result.put(term, id);
+            } else {
+                missing.add(term);
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+
+        List<String> found = conn.hmget(idsKey(), missing.toArray(new String[missing.size()]));
+        for (int i = 0; i < missing.size(); i++) {
+            if (null != found.get(i)) {
+                int id = Integer.parseInt(found.get(i));
+                remember(missing.get(i), id);
+                result.put(missing.get(i), id);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 这些单词的编号是否都已经在本地缓存中,lookup查找它们时不需要访问Redis
+     *
+     * @param terms 单词
+     * @return 是否都在本地缓存中
+     */
+    boolean isCached(Collection<String> terms) {
+        for (String term : terms) {
+            if (!ids.containsKey(term)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 根据编号查找单词
+     *
+     * @param id 编号
+     * @return 单词, 编号不存在时返回null
+     */
+    public String term(int id) {
+        String term = terms.get(id);
+        if (null == term) {
+            term = conn.hget(termsKey(), String.valueOf(id));
+            if (null != term) {
+                remember(term, id);
+            }
+        }
+        return term;
+    }
+
+    /**
+     * 根据编号批量查找单词
+     * 本地缓存中找不到的编号只需要一次HMGET.
+     *
+     * @param ids 编号
+     * @return 与编号顺序相同的单词列表, 编号不存在时对应的位置为null
+     */
+    public List<String> terms(int[] ids) {
+        List<String> result = Lists.newArrayListWithCapacity(ids.length);
+        List<Integer> missing = Lists.newArrayList();
+        for (int i = 0; i < ids.length; i++) {
+            String term = terms.get(ids[i]);
+            result.add(term);
+            if (null == term) {
+                missing.add(i);
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+
+        String[] fields = new String[missing.size()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = String.valueOf(ids[missing.get(i)]);
+        }
+        List<String> found = conn.hmget(termsKey(), fields);
+        for (int i = 0; i < fields.length; i++) {
+            String term = found.get(i);
+            if (null != term) {
+                int index = missing.get(i);
+                remember(term, ids[index]);
+                result.set(index, term);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 已经分配的编号数量,也是目前最大的编号
+     *
+     * @return 编号数量
+     */
+    public int size() {
+        String next = conn.get(nextKey());
+        return null == next ? 0 : Integer.parseInt(next);
+    }
+
+    //记录到本地缓存
+    private void remember(String term, int id) {
+        ids.put(term, id);
+        terms.put(id, term);
+    }
+
+    private String idsKey() {
+        return "dict:" + namespace + ":ids:";
+    }
+
+    private String termsKey() {
+        return "dict:" + namespace + ":terms:";
+    }
+
+    private String nextKey() {
+        return "dict:" + namespace + ":next:";
+    }
+
+}
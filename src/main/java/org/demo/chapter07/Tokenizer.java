@@ -0,0 +1,263 @@
+package org.demo.chapter07;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 分词器
+ * <p>
+ * 与使用正则表达式分词相比,这里不需要先把整个文档转换为小写的副本,也不会为每个匹配的单词
+ * 创建字符串:程序逐个扫描字符,把组成单词的字符(a-z和单引号,大写字母会被转换为小写)
+ * 写入一个可以重复使用的缓冲区,遇到单词边界时再把缓冲区交给回调函数处理.
+ * 停用词使用字典树(trie)存储,直接在缓冲区上进行判断,同样不需要创建字符串.
+ * <p>
+ * 单词的规则与原来的正则表达式[a-z']{2,}相同,并且会剔除单词前面或后面的单引号,
+ * 剔除之后长度不足两个字符的单词以及停用词都会被忽略.
+ * 目前只处理ASCII字母.
+ */
+public class Tokenizer {
+
+    /**
+     * 单词回调接口
+     */
+    public interface TokenCallback {
+
+        /**
+         * 处理一个单词
+         *
+         * @param buffer   单词所在的缓冲区,只在回调期间有效,需要保留单词时必须自行复制
+         * @param offset   单词在缓冲区中的起始位置
+         * @param length   单词的长度
+         * @param position 单词在文档中的位置,被忽略的停用词和单个字符也会占用位置
+         */
+        void token(char[] buffer, int offset, int length, int position);
+
+    }
+
+    //字典树每个节点的子节点数量:26个字母和单引号
+    private final static int ALPHABET = 27;
+
+    //字典树的子节点,0表示没有子节点(根节点不会成为任何节点的子节点)
+    private final int[][] children;
+    //字典树节点是否为一个停用词的结尾
+    private final boolean[] terminal;
+
+    public Tokenizer(Collection<String> stopWords) {
+        List<int[]> nodes = Lists.newArrayList();
+        List<Boolean> ends = Lists.newArrayList();
+        nodes.add(new int[ALPHABET]);
+        ends.add(false);
+        for (String word : stopWords) {
+            int node = 0;
+            for (int i = 0; i < word.length(); i++) {
+                int index = index(word.charAt(i));
+                if (index < 0) {
+                    throw new IllegalArgumentException("非法的停用词: " + word);
+                }
+                if (nodes.get(node)[index] == 0) {
+                    nodes.get(node)[index] = nodes.size();
+                    nodes.add(new int[ALPHABET]);
+                    ends.add(false);
+                }
+                node = nodes.get(node)[index];
+            }
+            ends.set(node, true);
+        }
+        this.children = nodes.toArray(new int[nodes.size()][]);
+        this.terminal = new boolean[ends.size()];
+        for (int i = 0; i < terminal.length; i++) {
+            terminal[i] = ends.get(i);
+        }
+    }
+
+    /**
+     * 分词,返回文档中所有不重复的单词
+     *
+     * @param content 文档内容
+     * @return 单词集合
+     */
+    public Set<String> tokenize(CharSequence content) {
+        DistinctWords words = new DistinctWords();
+        tokenize(content, 0, content.length(), words);
+        return words.toSet();
+    }
+
+    /**
+     * 分词,处理整个文档
+     *
+     * @param content  文档内容
+     * @param callback 单词回调
+     */
+    public void tokenize(CharSequence content, TokenCallback callback) {
+        tokenize(content, 0, content.length(), callback);
+    }
+
+    /**
+     * 分词,只处理文档中的一部分
+     * 对于char[]可以使用CharBuffer.wrap包装之后再调用,不会复制数组
+     *
+     * @param content  文档内容
+     * @param start    起始位置(包含)
+     * @param end      结束位置(不包含)
+     * @param callback 单词回调
+     */
+    public void tokenize(CharSequence content, int start, int end, TokenCallback callback) {
+        char[] buffer = new char[32];
+        int length = 0;
+        int position = 0;
+        for (int i = start; i < end; i++) {
+            char c = content.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if ((c >= 'a' && c <= 'z') || c == '\'') {
+                //单词超过缓冲区长度时扩大缓冲区
+                if (length == buffer.length) {
+                    char[] larger = new char[buffer.length * 2];
+                    System.arraycopy(buffer, 0, larger, 0, length);
+                    buffer = larger;
+                }
+                buffer[length++] = c;
+                continue;
+            }
+            if (length > 0) {
+                position = emit(buffer, length, position, callback);
+                length = 0;
+            }
+        }
+        if (length > 0) {
+            emit(buffer, length, position, callback);
+        }
+    }
+
+    /**
+     * 处理缓冲区中的一个单词
+     *
+     * @return 下一个单词的位置
+     */
+    private int emit(char[] buffer, int length, int position, TokenCallback callback) {
+        //只有一个字符的不算作单词,但是与停用词一样占用一个位置,短语查询才不会跨过它
+        if (length < 2) {
+            return position + 1;
+        }
+        //剔除所有位于单词前面或后面的单引号
+        int from = 0;
+        int to = length;
+        while (from < to && buffer[from] == '\'') {
+            from++;
+        }
+        while (to > from && buffer[to - 1] == '\'') {
+            to--;
+        }
+        //保留那些至少有两个字符长的单词,并排除停用词
+        if (to - from >= 2 && !isStopWord(buffer, from, to - from)) {
+            callback.token(buffer, from, to - from, position);
+        }
+        return position + 1;
+    }
+
+    /**
+     * 判断缓冲区中的单词是否为停用词
+     *
+     * @param buffer 缓冲区
+     * @param offset 单词的起始位置
+     * @param length 单词的长度
+     * @return 是否为停用词
+     */
+    public boolean isStopWord(char[] buffer, int offset, int length) {
+        int node = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int index = index(buffer[i]);
+            if (index < 0) {
+                return false;
+            }
+            node = children[node][index];
+            if (node == 0) {
+                return false;
+            }
+        }
+        return terminal[node];
+    }
+
+    /**
+     * 收集不重复的单词
+     * 直接在缓冲区上计算散列值并与已有的单词进行比较(开放寻址),
+     * 只有第一次出现的单词才会创建字符串.
+     */
+    private static class DistinctWords implements TokenCallback {
+
+        private String[] table = new String[64];
+        private int size;
+
+        public void token(char[] buffer, int offset, int length, int position) {
+            int hash = 0;
+            for (int i = offset; i < offset + length; i++) {
+                hash = 31 * hash + buffer[i];
+            }
+            int mask = table.length - 1;
+            int index = hash & mask;
+            while (null != table[index]) {
+                if (matches(table[index], buffer, offset, length)) {
+                    return;
+                }
+                index = (index + 1) & mask;
+            }
+            table[index] = new String(buffer, offset, length);
+            //装载因子超过0.5时扩大散列表
+            if (++size * 2 > table.length) {
+                resize();
+            }
+        }
+
+        private static boolean matches(String word, char[] buffer, int offset, int length) {
+            if (word.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (word.charAt(i) != buffer[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void resize() {
+            String[] old = table;
+            table = new String[old.length * 2];
+            int mask = table.length - 1;
+            for (String word : old) {
+                if (null != word) {
+                    //String.hashCode与上面的散列算法相同
+                    int index = word.hashCode() & mask;
+                    while (null != table[index]) {
+                        index = (index + 1) & mask;
+                    }
+                    table[index] = word;
+                }
+            }
+        }
+
+        Set<String> toSet() {
+            Set<String> words = Sets.newHashSetWithExpectedSize(size);
+            for (String word : table) {
+                if (null != word) {
+                    words.add(word);
+                }
+            }
+            return words;
+        }
+    }
+
+    //字符在字典树节点中的下标
+    private static int index(char c) {
+        if (c >= 'a' && c <= 'z') {
+            return c - 'a';
+        }
+        return c == '\'' ? ALPHABET - 1 : -1;
+    }
+
+}
@@ -0,0 +1,37 @@
+package org.demo.chapter07;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 文档所含单词列表的编码方式
+ * 文档所含单词的列表会在每次重建索引的时候被读取和解析,
+ * 对于大量的文档来说,它的编码方式会影响Redis的内存占用以及重建索引时的解析开销.
+ */
+public interface WordListCodec {
+
+    /**
+     * 编码单词列表
+     *
+     * @param words 单词列表
+     * @return 编码之后的数据
+     */
+    byte[] encode(Collection<String> words);
+
+    /**
+     * 解码单词列表
+     *
+     * @param data 编码之后的数据
+     * @return 单词列表
+     */
+    List<String> decode(byte[] data);
+
+    /**
+     * 判断数据是否为这种编码方式编码的
+     *
+     * @param data 编码之后的数据
+     * @return 是否为这种编码方式
+     */
+    boolean accepts(byte[] data);
+
+}
@@ -0,0 +1,134 @@
+package org.demo.chapter07;
+
+import com.alibaba.fastjson.JSON;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 单词列表的编码方式
+ * <p>
+ * JSON: 原来使用的JSON格式字符串数组,例如["content","indexed"]
+ * <p>
+ * FRONT_CODED: 紧凑的二进制格式,单词排序之后,每个单词只存储与前一个单词不同的后缀:
+ * 格式标识(1字节) | 单词数量(varint) | {与前一个单词相同的前缀长度(varint) | 后缀长度(varint) | 后缀(UTF-8)}...
+ * 排序之后相邻的单词通常拥有相同的前缀,长度也都小于128字节,所以除了后缀之外每个单词只需要两个字节.
+ * <p>
+ * 两种格式可以通过第一个字节区分(JSON数组总是以'['开头),
+ * 读取时使用decode自动识别格式,所以切换编码方式之后旧的数据仍然可以正常读取,
+ * 并且会在文档下一次重建索引时被改写为新的格式,也可以使用MyES.migrateWordLists一次性改写.
+ */
+public class WordListCodecs {
+
+    //二进制格式的格式标识
+    private final static byte FRONT_CODED_FORMAT = 1;
+
+    public final static WordListCodec JSON_CODEC = new WordListCodec() {
+
+        public byte[] encode(Collection<String> words) {
+            return JSON.toJSONString(words).getBytes(Charsets.UTF_8);
+        }
+
+        public List<String> decode(byte[] data) {
+            List<String> words = JSON.parseArray(new String(data, Charsets.UTF_8), String.class);
+            return null == words ? Lists.<String>newArrayList() : words;
+        }
+
+        public boolean accepts(byte[] data) {
+            return data.length > 0 && data[0] == '[';
+        }
+    };
+
+    public final static WordListCodec FRONT_CODED = new WordListCodec() {
+
+        public byte[] encode(Collection<String> words) {
+            List<String> sorted = Lists.newArrayList(words);
+            Collections.sort(sorted);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(sorted.size() * 6 + 4);
+            out.write(FRONT_CODED_FORMAT);
+            writeVarint(out, sorted.size());
+            byte[] previous = new byte[0];
+            for (String word : sorted) {
+                byte[] current = word.getBytes(Charsets.UTF_8);
+                int shared = 0;
+                int max = Math.min(previous.length, current.length);
+                while (shared < max && previous[shared] == current[shared]) {
+                    shared++;
+                }
+                writeVarint(out, shared);
+                writeVarint(out, current.length - shared);
+                out.write(current, shared, current.length - shared);
+                previous = current;
+            }
+            return out.toByteArray();
+        }
+
+        public List<String> decode(byte[] data) {
+            int[] offset = {1};
+            int count = readVarint(data, offset);
+            List<String> words = Lists.newArrayListWithCapacity(count);
+            byte[] previous = new byte[0];
+            for (int i = 0; i < count; i++) {
+                int shared = readVarint(data, offset);
+                int suffix = readVarint(data, offset);
+                byte[] current = new byte[shared + suffix];
+                System.arraycopy(previous, 0, current, 0, shared);
+                System.arraycopy(data, offset[0], current, shared, suffix);
+                offset[0] += suffix;
+                words.add(new String(current, Charsets.UTF_8));
+                previous = current;
+            }
+            return words;
+        }
+
+        public boolean accepts(byte[] data) {
+            return data.length > 0 && data[0] == FRONT_CODED_FORMAT;
+        }
+    };
+
+    /**
+     * 自动识别数据的格式并解码
+     *
+     * @param data 编码之后的数据
+     * @return 单词列表, 没有数据时返回空列表
+     */
+    public static List<String> decode(byte[] data) {
+        if (null == data || data.length == 0) {
+            return Lists.newArrayList();
+        }
+        if (FRONT_CODED.accepts(data)) {
+            return FRONT_CODED.decode(data);
+        }
+        if (JSON_CODEC.accepts(data)) {
+            return JSON_CODEC.decode(data);
+        }
+        throw new IllegalArgumentException("无法识别的单词列表格式: " + data[0]);
+    }
+
+    //写入变长整数,每个字节使用低7位存储数据,最高位表示后面是否还有字节
+    static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    //读取变长整数,offset[0]为读取位置,读取之后会被更新
+    static int readVarint(byte[] data, int[] offset) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[offset[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+}
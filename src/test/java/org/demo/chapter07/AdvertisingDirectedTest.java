@@ -1,8 +1,17 @@
 package org.demo.chapter07;
 
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.javatuples.Pair;
 import org.junit.Before;
 import org.junit.Test;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.net.ServerSocket;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by lhqz on 2017/8/12.
@@ -37,4 +46,233 @@ public class AdvertisingDirectedTest {
         ad.indexAd("2",new String[]{"USA","VA"},CONTENT + " wooooo", AdvertisingDirected.Ecpm.CPC,.125);
     }
 
+    @Test
+    public void testUpdateCpms() {
+        System.out.println("\n----- testUpdateCpms -----");
+        ad.indexAd("1", new String[]{"USA", "CA"}, CONTENT, AdvertisingDirected.Ecpm.CPC, .25);
+        ad.indexAd("2", new String[]{"USA", "VA"}, CONTENT + " wooooo", AdvertisingDirected.Ecpm.CPC, .125);
+
+        //一半的页面包含random和look,另一半包含content和indexed
+        Pair<Long, String> result = null;
+        for (int i = 0; i < 100; i++) {
+            String page = i % 2 == 0 ? "content indexed" : "random look";
+            result = ad.targetAds(new String[]{"USA"}, page);
+            assert "1".equals(result.getValue1());
+        }
+        //展示100次之后广告被标记为需要更新,但是展示时并不计算eCPM
+        assert conn.sismember("ads:dirty:", "1");
+        assert conn.zscore("views:1", "random") == 50;
+        assert conn.zscore("views:1", "wooooo") == null;
+        ad.recordClick(result.getValue0(), "1", false);
+
+        //更新失败时广告仍然被标记为需要更新
+        String views = conn.get("type:cpc:views");
+        conn.set("type:cpc:views", "broken");
+        try {
+            ad.updateDirtyCpms(conn, 10);
+            assert false;
+        } catch (NumberFormatException e) {
+            System.out.println("Failed: " + e.getMessage());
+        }
+        assert conn.sismember("ads:dirty:", "1");
+        conn.set("type:cpc:views", views);
+
+        JedisPool pool = new JedisPool(new GenericObjectPoolConfig(), "192.168.1.105", 6379, 2000, "123456", 6);
+        try {
+            CpmUpdater updater = new CpmUpdater(ad, pool, 10);
+            assert updater.drain() == 1;
+        } finally {
+            pool.close();
+        }
+        //eCPM = 1 / 100 * 1000 * 0.25,被点击的页面中的单词的附加值 = 1 / 50 * 1000 * 0.25 - 2.5
+        System.out.println("eCPM: " + conn.zscore("idx:ad:value:", "1") + ", random: " + conn.zscore("idx:random", "1"));
+        assert conn.zscore("idx:ad:value:", "1") == 2.5;
+        assert conn.zscore("idx:random", "1") == 2.5;
+        assert conn.zscore("idx:look", "1") == 2.5;
+        assert conn.zscore("idx:content", "1") == 0;
+        assert conn.scard("ads:dirty:") == 0;
+        System.out.println("Which passed!");
+    }
+
+    @Test
+    public void testTargetAdsWithTempKeys() {
+        System.out.println("\n----- testTargetAdsWithTempKeys -----");
+        TempKeyManager tempKeys = new TempKeyManager();
+        es.setTempKeyManager(tempKeys);
+        ad.indexAd("1", new String[]{"USA", "CA"}, CONTENT, AdvertisingDirected.Ecpm.CPC, .25);
+        ad.indexAd("2", new String[]{"USA", "VA"}, CONTENT + " wooooo", AdvertisingDirected.Ecpm.CPC, .125);
+
+        Pair<Long, String> result = ad.targetAds(new String[]{"USA"}, CONTENT);
+        System.out.println("Targeted: " + result);
+        assert "1".equals(result.getValue1());
+        //定向过程中创建的临时有序集合都已经在事务中删除
+        System.out.println("Created: " + tempKeys.getCreated() + ", deleted: " + tempKeys.getDeleted());
+        assert tempKeys.getCreated() == 2 + 4 + 3;
+        assert tempKeys.getDeleted() == tempKeys.getCreated();
+        assert tempKeys.getPending() == 0;
+        assert tempKeys.countLive(conn, "idx:tmp:*", 100) == 0;
+
+        //定向失败时作用域同样被关闭,临时结果被删除
+        AdvertisingDirected failing = new AdvertisingDirected() {
+            @Override
+            public Pair<Set<String>, String> finishScoring(Transaction trans, String matched, String base,
+                                                          Set<String> words) {
+                throw new IllegalStateException("scoring failed");
+            }
+        };
+        failing.setConn(conn);
+        failing.setEs(es);
+        try {
+            failing.targetAds(new String[]{"USA"}, CONTENT);
+            assert false;
+        } catch (IllegalStateException e) {
+            System.out.println("Expected: " + e.getMessage());
+        }
+        assert tempKeys.getPending() == 0;
+        assert tempKeys.getDeleted() == tempKeys.getCreated();
+        assert "1".equals(ad.targetAds(new String[]{"USA"}, CONTENT).getValue1());
+        assert tempKeys.getPending() == 0;
+        System.out.println("Which passed!");
+    }
+
+    @Test
+    public void testTargetAdsByScript() {
+        System.out.println("\n----- testTargetAdsByScript -----");
+        ad.setUseScript(true);
+        ad.indexAd("1", new String[]{"USA", "CA"}, CONTENT, AdvertisingDirected.Ecpm.CPC, .25);
+        ad.indexAd("2", new String[]{"USA", "VA"}, CONTENT + " wooooo", AdvertisingDirected.Ecpm.CPC, .125);
+
+        Pair<Long, String> result = ad.targetAds(new String[]{"USA"}, CONTENT);
+        System.out.println("Targeted: " + result);
+        assert "1".equals(result.getValue1());
+        assert conn.sismember("terms:matched:" + result.getValue0(), "random");
+        assert conn.ttl("terms:matched:" + result.getValue0()) > 0;
+        assert "1".equals(conn.get("type:cpc:views"));
+        assert conn.zscore("views:1", "random") == 1;
+        assert conn.zscore("views:1", "") == 1;
+        //临时结果在脚本中已经删除
+        assert conn.keys("idx:target:*").isEmpty();
+
+        //与事务方式一样,每展示100次把广告标记为需要更新
+        for (int i = 1; i < 100; i++) {
+            result = ad.targetAds(new String[]{"USA"}, "random look");
+            assert "1".equals(result.getValue1());
+        }
+        assert conn.zscore("views:1", "") == 100;
+        assert conn.sismember("ads:dirty:", "1");
+        //没有广告与位置相匹配
+        result = ad.targetAds(new String[]{"UK"}, CONTENT);
+        assert null == result.getValue1();
+        System.out.println("Which passed!");
+    }
+
+    @Test
+    public void testIndexReplica() {
+        System.out.println("\n----- testIndexReplica -----");
+        IndexFeed feed = new IndexFeed("ads:feed:", 100);
+        ad.setAdFeed(feed);
+        ad.indexAd("1", new String[]{"USA", "CA"}, CONTENT, AdvertisingDirected.Ecpm.CPC, .25);
+        ad.indexAd("2", new String[]{"USA", "VA"}, CONTENT + " wooooo", AdvertisingDirected.Ecpm.CPC, .125);
+
+        JedisPool pool = new JedisPool(new GenericObjectPoolConfig(), "192.168.1.105", 6379, 2000, "123456", 6);
+        try {
+            AdIndexReplica replica = new AdIndexReplica(es, feed, pool);
+            replica.setIdBlockSize(10);
+            replica.load();
+            //与在Redis中定向的结果相同
+            Pair<Long, String> result = replica.targetAds(new String[]{"USA"}, CONTENT);
+            System.out.println("Targeted: " + result);
+            assert "1".equals(result.getValue1());
+            assert "2".equals(replica.targetAds(new String[]{"VA"}, CONTENT).getValue1());
+            assert null == replica.targetAds(new String[]{"UK"}, CONTENT).getValue1();
+            //定向id按块分配
+            assert "10".equals(conn.get("ads:served:"));
+            assert "1".equals(ad.targetAds(new String[]{"USA"}, CONTENT).getValue1());
+            assert "11".equals(conn.get("ads:served:"));
+
+            //展示记录在flush之后才写入
+            assert conn.zscore("views:1", "") == 1;
+            assert replica.flush() == 2;
+            assert conn.zscore("views:1", "") == 2;
+            assert conn.zscore("views:1", "random") == 2;
+            assert conn.zscore("views:2", "") == 1;
+            assert conn.sismember("terms:matched:" + result.getValue0(), "random");
+            assert "3".equals(conn.get("type:cpc:views"));
+
+            //快照之后新增的广告通过变更记录加入副本
+            ad.indexAd("3", new String[]{"UK"}, "wooooo", AdvertisingDirected.Ecpm.CPM, 1);
+            assert null == replica.targetAds(new String[]{"UK"}, CONTENT).getValue1();
+            assert replica.refresh() == 1;
+            assert "3".equals(replica.targetAds(new String[]{"UK"}, CONTENT).getValue1());
+
+            //重新计算eCPM之后副本读取新的附加值
+            conn.zadd("idx:random", 10, "2");
+            ad.updateCpms("2");
+            assert replica.refresh() == 1;
+            assert "1".equals(replica.targetAds(new String[]{"USA"}, "content").getValue1());
+            assert "2".equals(replica.targetAds(new String[]{"USA"}, "random").getValue1());
+        } finally {
+            pool.close();
+        }
+        System.out.println("Which passed!");
+    }
+
+    @Test
+    public void testAdCounters() throws Exception {
+        System.out.println("\n----- testAdCounters -----");
+        ad.indexAd("1", new String[]{"USA", "CA"}, CONTENT, AdvertisingDirected.Ecpm.CPC, .25);
+        ad.indexAd("2", new String[]{"USA", "VA"}, CONTENT + " wooooo", AdvertisingDirected.Ecpm.CPC, .125);
+
+        JedisPool pool = new JedisPool(new GenericObjectPoolConfig(), "192.168.1.105", 6379, 2000, "123456", 6);
+        try {
+            AdCounters counters = new AdCounters(pool, 1000);
+            ad.setCounters(counters);
+            Pair<Long, String> result = null;
+            for (int i = 0; i < 100; i++) {
+                String page = i % 2 == 0 ? "content indexed" : "random look";
+                result = ad.targetAds(new String[]{"USA"}, page);
+                assert "1".equals(result.getValue1());
+            }
+            //写入之前Redis中没有计数
+            assert null == conn.zscore("views:1", "");
+            //写入失败时取出的增量会被放回,下一次写入时不会丢失: 这个端口接受连接但是从不回复
+            ServerSocket dead = new ServerSocket(0);
+            Jedis deadClient = new Jedis("127.0.0.1", dead.getLocalPort(), 200);
+            try {
+                counters.flush(deadClient);
+                assert false;
+            } catch (JedisConnectionException e) {
+                System.out.println("Failed: " + e.getMessage());
+            } finally {
+                deadClient.close();
+                dead.close();
+            }
+            //同一个计数器的100次增量合并为一个命令: type:cpc:views, views:1的空字符串和4个单词
+            assert counters.flush() == 6;
+            assert conn.zscore("views:1", "") == 100;
+            assert conn.zscore("views:1", "random") == 50;
+            assert "100".equals(conn.get("type:cpc:views"));
+            assert conn.sismember("terms:matched:" + result.getValue0(), "look");
+            assert conn.sismember("ads:dirty:", "1");
+            conn.del("ads:dirty:");
+
+            //点击使用写入之后的匹配单词
+            ad.recordClick(result.getValue0(), "1", false);
+            assert null == conn.zscore("clicks:1", "");
+            counters.start(1, TimeUnit.HOURS);
+            ad.targetAds(new String[]{"USA"}, "random");
+            //停止时写入剩余的增量
+            counters.stop();
+            assert conn.zscore("clicks:1", "") == 1;
+            assert conn.zscore("clicks:1", "random") == 1;
+            assert "1".equals(conn.get("type:cpc:clicks:"));
+            assert conn.zscore("views:1", "") == 101;
+            assert conn.sismember("ads:dirty:", "1");
+            assert counters.flush() == 0;
+        } finally {
+            pool.close();
+        }
+        System.out.println("Which passed!");
+    }
+
 }
\ No newline at end of file
@@ -1,15 +1,26 @@
 package org.demo.chapter07;
 
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 import org.demo.commons.Page;
 import org.junit.Before;
 import org.junit.Test;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.Transaction;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by lhqz on 2017/8/12.
@@ -58,6 +69,102 @@ public class MyESTest {
         Set<String> keys = conn.keys("idx:*");
         assert keys.size() == 2;
 
+        System.out.println("And now we are deleting that index...");
+        es.deleteIndex("test");
+        assert conn.keys("idx:*").isEmpty();
+        count = es.indexDocument("test", CONTENT);
+        assert count == 2;
+        assert conn.keys("idx:*").size() == 2;
+
+    }
+
+    @Test
+    public void testIndexDocuments() {
+        System.out.println("\n----- testIndexDocuments -----");
+        Map<String, String> documents = Maps.newLinkedHashMap();
+        documents.put("test", "this is some random content");
+        documents.put("test2", "look at how it is indexed");
+        documents.put("test3", "random look");
+        es.setIndexBatchSize(2);
+        MyES.IndexStats stats = es.indexDocuments(documents);
+        System.out.println("Index stats: " + stats);
+        assert stats.documents == 3;
+        assert stats.batches == 2;
+        assert Sets.newHashSet("test", "test3").equals(conn.smembers("idx:random"));
+        assert Sets.newHashSet("test2", "test3").equals(conn.smembers("idx:look"));
+
+        System.out.println("And now we are rebuild indexing that content...");
+        documents.clear();
+        documents.put("test3", "indexed content");
+        stats = es.indexDocuments(documents);
+        //只有发生变化的单词才会更新索引
+        assert stats.changes == 4;
+        assert Sets.newHashSet("test").equals(conn.smembers("idx:random"));
+        assert Sets.newHashSet("test2").equals(conn.smembers("idx:look"));
+        assert Sets.newHashSet("test2", "test3").equals(conn.smembers("idx:indexed"));
+        assert Sets.newHashSet("test", "test3").equals(conn.smembers("idx:content"));
+    }
+
+    @Test
+    public void testWordListCodec() {
+        System.out.println("\n----- testWordListCodec -----");
+        List<String> words = Lists.newArrayList("indexed", "index", "content", "contents", "random");
+        byte[] data = WordListCodecs.FRONT_CODED.encode(words);
+        System.out.println("json: " + WordListCodecs.JSON_CODEC.encode(words).length + " bytes, front coded: " + data.length + " bytes");
+        assert Sets.newHashSet(words).equals(Sets.newHashSet(WordListCodecs.decode(data)));
+        assert WordListCodecs.decode(new byte[0]).isEmpty();
+
+        //使用JSON格式建立的索引,切换编码方式之后仍然可以正常重建
+        es.indexDocument("test", "this is some random content");
+        es.indexDocument("test2", "look at how it is indexed");
+        es.setWordListCodec(WordListCodecs.FRONT_CODED);
+        es.indexDocument("test", "this is some fresh content");
+        assert conn.smembers("idx:random").isEmpty();
+        assert Sets.newHashSet("test").equals(conn.smembers("idx:fresh"));
+
+        //把剩余的旧格式记录改写为新的格式
+        assert es.migrateWordLists(10) == 1;
+        assert es.migrateWordLists(10) == 0;
+        es.deleteIndex("test2");
+        assert conn.smembers("idx:look").isEmpty();
+    }
+
+    @Test
+    public void testTermDictionary() {
+        System.out.println("\n----- testTermDictionary -----");
+        TermDictionary dictionary = new TermDictionary("term");
+        dictionary.setConn(conn);
+        es.setTermDictionary(dictionary);
+
+        es.indexDocument("test", "this is some random content, look at how it is indexed.");
+        es.indexDocument("test2", "some fresh content");
+        assert dictionary.size() == 5;
+        int content = dictionary.id("content");
+        assert dictionary.lookup("content") == content;
+        assert "content".equals(dictionary.term(content));
+        assert null == dictionary.lookup("missing");
+        //索引集合使用单词编号
+        assert Sets.newHashSet("test", "test2").equals(conn.smembers("idx:" + content));
+        assert !conn.exists("idx:content");
+
+        //其他客户端通过Redis获取到的编号与本地相同
+        TermDictionary other = new TermDictionary("term");
+        other.setConn(conn);
+        assert other.lookup("content") == content;
+        assert other.id("brand") == 6;
+
+        Set<String> test = Sets.newHashSet("test");
+        String id = es.parseAndSearch("content", 30);
+        assert Sets.newHashSet("test", "test2").equals(conn.smembers("idx:" + id));
+        id = es.parseAndSearch("content random +look", 30);
+        assert test.equals(conn.smembers("idx:" + id));
+        es.setUseScript(true);
+        id = es.parseAndSearch("content +missing -fresh", 30);
+        assert test.equals(conn.smembers("idx:" + id));
+
+        es.indexDocument("test", "some fresh content");
+        assert conn.smembers("idx:" + dictionary.id("random")).isEmpty();
+        System.out.println("Which passed!");
     }
 
     @Test
@@ -144,6 +251,81 @@ public class MyESTest {
         System.out.println("Which passed!");
     }
 
+    @Test
+    public void testParseAndSearchByScript() {
+        System.out.println("\n----- testParseAndSearchByScript -----");
+        System.out.println("And now we are testing search with lua script...");
+        es.indexDocument("test", CONTENT);
+        es.setUseScript(true);
+
+        Set<String> test = Sets.newHashSet();
+        test.add("test");
+
+        String id = es.parseAndSearch("content", 30);
+        assert test.equals(conn.smembers("idx:" + id));
+
+        id = es.parseAndSearch("content indexed random", 30);
+        assert test.equals(conn.smembers("idx:" + id));
+
+        id = es.parseAndSearch("content +indexed random", 30);
+        assert test.equals(conn.smembers("idx:" + id));
+
+        id = es.parseAndSearch("content indexed -random", 30);
+        assert conn.smembers("idx:" + id).isEmpty();
+
+        //脚本只会留下存储查询结果的集合
+        id = es.parseAndSearch("content +indexed random +look", 30);
+        assert test.equals(conn.smembers("idx:" + id));
+        assert conn.keys("idx:" + id + ":*").isEmpty();
+
+        System.out.println("Which passed!");
+    }
+
+    @Test
+    public void testQueryPlanner() {
+        System.out.println("\n----- testQueryPlanner -----");
+        es.indexDocument("test", "this is some random content, look at how it is indexed.");
+        es.indexDocument("test2", "some fresh content");
+        es.indexDocument("test3", "fresh random look");
+        es.indexDocument("test4", "random look");
+
+        QueryPlanner planner = new QueryPlanner(0);
+        planner.setConn(conn);
+        planner.setEs(es);
+        es.setQueryPlanner(planner);
+
+        //交集按照大小从小到大排列,索引为空的同义词会被去掉
+        QueryPlanner.QueryPlan plan = es.explain("random content +missing indexed");
+        System.out.print(plan.explain());
+        assert Lists.newArrayList("indexed").equals(plan.groups.get(0).words);
+        assert Lists.newArrayList("content").equals(plan.groups.get(1).words);
+        assert plan.estimate == 1;
+        String id = es.parseAndSearch("random content +missing indexed", 30);
+        assert Sets.newHashSet("test").equals(conn.smembers("idx:" + id));
+
+        //必须满足的单词没有任何文档时不执行任何集合运算
+        assert es.explain("content missing").empty;
+        id = es.parseAndSearch("content missing", 30);
+        assert !conn.exists("idx:" + id);
+
+        //候选文档很少时逐个检查不需要的单词
+        plan = es.explain("indexed -random -fresh");
+        assert plan.probe;
+        id = es.parseAndSearch("indexed -random -fresh", 30);
+        assert !conn.exists("idx:" + id);
+        assert conn.scard("idx:indexed") == 1;
+        id = es.parseAndSearch("look -fresh", 30);
+        assert Sets.newHashSet("test", "test4").equals(conn.smembers("idx:" + id));
+
+        //候选文档较多时使用SDIFFSTORE
+        planner.setProbeLimit(1);
+        plan = es.explain("look -fresh");
+        assert !plan.probe;
+        id = es.parseAndSearch("look -fresh", 30);
+        assert Sets.newHashSet("test", "test4").equals(conn.smembers("idx:" + id));
+        System.out.println("Which passed!");
+    }
+
     @Test
     public void testSearchWithSort() {
         System.out.println("\n----- testSearchWithSort -----");
@@ -170,6 +352,549 @@ public class MyESTest {
         System.out.println("Which passed!");
     }
 
+    @Test
+    public void testSearchAndFetch() {
+        System.out.println("\n----- testSearchAndFetch -----");
+        es.indexDocument("test", CONTENT);
+        es.indexDocument("test2", CONTENT);
+        es.indexDocument("test3", CONTENT);
+        Map<String, String> values = Maps.newHashMap();
+        values.put("updated", "12345");
+        values.put("title", "first");
+        conn.hmset("kb:doc:test", values);
+        values.put("updated", "54321");
+        values.put("title", "second");
+        conn.hmset("kb:doc:test2", values);
+
+        DocumentCache cache = new DocumentCache(100, 60000);
+        es.setDocumentCache(cache);
+        MyES.FetchResult result = es.searchAndFetch("content", "", 300, "-updated", new Page(1, 10), "title");
+        System.out.println(result.documents);
+        //test3没有文档散列,不会出现在结果里面
+        assert result.total == 3;
+        assert Lists.newArrayList("test2", "test").equals(Lists.newArrayList(result.documents.keySet()));
+        assert "second".equals(result.documents.get("test2").get("title"));
+        assert !result.documents.get("test2").containsKey("updated");
+        assert cache.getMisses() == 3;
+
+        //第二次读取全部来自本地缓存
+        result = es.searchAndFetch("content", result.id, 300, "-updated", new Page(1, 10), "title");
+        assert "first".equals(result.documents.get("test").get("title"));
+        assert cache.getHits() == 3;
+
+        //重新创建索引之后文档失效
+        conn.hset("kb:doc:test", "title", "changed");
+        es.indexDocument("test", CONTENT);
+        Map<String, Map<String, String>> documents = es.fetchDocuments(Lists.newArrayList("test", "test2"));
+        assert "changed".equals(documents.get("test").get("title"));
+        assert "12345".equals(documents.get("test").get("updated"));
+        assert "second".equals(documents.get("test2").get("title"));
+        System.out.println("Which passed!");
+    }
+
+    @Test
+    public void testSearchStream() {
+        System.out.println("\n----- testSearchStream -----");
+        Map<String, String> documents = Maps.newHashMap();
+        for (int i = 0; i < 500; i++) {
+            documents.put("doc" + i, i % 2 == 0 ? "random content" : "look content");
+        }
+        es.indexDocuments(documents);
+
+        //只有一个单词时直接遍历索引集合,不会设置生存时间
+        Iterator<String> iterator = es.searchStream("content", 300, 50);
+        Set<String> results = Sets.newHashSet(iterator);
+        assert results.equals(documents.keySet());
+        assert conn.ttl("idx:content") == -1;
+
+        iterator = es.searchStream("random +look content", 300, 50);
+        int count = 0;
+        while (iterator.hasNext()) {
+            results.remove(iterator.next());
+            count++;
+        }
+        System.out.println("Streamed " + count + " results");
+        assert count >= 500 && results.isEmpty();
+
+        assert !es.searchStream("missing", 300, 50).hasNext();
+        assert es.searchAsStream("random +look content", 300, 50).count() == count;
+
+        //前缀展开或者查询计划之后只剩一个单词时同样直接遍历索引集合
+        assert Iterators.size(es.searchStream("content +zzz*", 300, 50)) == 500;
+        QueryPlanner planner = new QueryPlanner(60000);
+        planner.setConn(conn);
+        planner.setEs(es);
+        es.setQueryPlanner(planner);
+        assert Iterators.size(es.searchStream("content -missing", 300, 50)) == 500;
+        es.setQueryPlanner(null);
+        assert conn.ttl("idx:content") == -1;
+
+        //遍历有序集合结果
+        for (String docid : documents.keySet()) {
+            conn.zadd("idx:sort:update", 1, docid);
+            conn.zadd("idx:sort:votes", 1, docid);
+        }
+        MyES.SearchResult zsorted = es.searchAndZsort("content", "", 300, true,
+                Maps.<String, Integer>newHashMap(), new Page(1, 10));
+        assert Sets.newHashSet(es.scanResult(zsorted.id, 300, 100)).equals(documents.keySet());
+        System.out.println("Which passed!");
+    }
+
+    @Test
+    public void testSearchAndRank() {
+        System.out.println("\n----- testSearchAndRank -----");
+        for (int i = 0; i < 5; i++) {
+            Map<String, String> fields = Maps.newHashMap();
+            fields.put("updated", String.valueOf(100 - i));
+            fields.put("title", "title" + (char) ('a' + i));
+            es.indexDocument("test" + i, "some random content", fields);
+        }
+        es.indexDocument("other", "random words");
+        assert conn.zcard("idx:sort:updated") == 5;
+
+        //翻页时使用游标继续读取已经排好序的结果
+        MyES.RankedResult result = es.searchAndRank("random content", null, 300, "updated", 2);
+        assert result.total == 5;
+        assert Lists.newArrayList("test4", "test3").equals(result.results);
+        result = es.searchAndRank("random content", result.cursor, 300, "updated", 2);
+        assert Lists.newArrayList("test2", "test1").equals(result.results);
+        result = es.searchAndRank("random content", result.cursor, 300, "updated", 2);
+        assert Lists.newArrayList("test0").equals(result.results);
+        assert null == result.cursor;
+
+        result = es.searchAndRank("content", null, 300, "-title", 3);
+        assert Lists.newArrayList("test4", "test3", "test2").equals(result.results);
+        //结果不再存在时,根据查询语句重新搜索并从游标的位置继续
+        conn.del("idx:" + result.id);
+        result = es.searchAndRank("content", result.cursor, 300, "-title", 3);
+        assert Lists.newArrayList("test1", "test0").equals(result.results);
+        //格式不正确的游标与过期的游标一样重新搜索
+        //不是排好序的结果的游标同样重新搜索,不会为单词的索引集合或者排序字段设置生存时间
+        for (String cursor : new String[]{"garbage", "@3", result.id + "@", result.id + "@x",
+                "content@0", "sort:title@0", "content:by@0"}) {
+            result = es.searchAndRank("content", cursor, 300, "-title", 3);
+            assert Lists.newArrayList("test4", "test3", "test2").equals(result.results);
+        }
+        assert null != es.searchRanked("content", "garbage@-1", 300, 3);
+        assert null != es.searchRanked("content", "content@0", 300, 3);
+        assert conn.ttl("idx:content") == -1 && conn.ttl("idx:sort:title") == -1;
+
+        es.deleteSortFields("test0", "updated", "title");
+        assert es.searchAndRank("content", null, 300, "updated", 10).total == 4;
+        System.out.println("Which passed!");
+    }
+
+    @Test
+    public void testSearchRanked() {
+        System.out.println("\n----- testSearchRanked -----");
+        es.setIndexTermFrequency(true);
+        es.setIndexPositions(true);
+        es.indexDocument("test", "redis redis redis is fast");
+        es.indexDocument("test2", "redis is an in memory store, memory is fast");
+        es.indexDocument("test3", "a long document that mentions redis only once among many other unrelated words");
+        es.indexDocument("test4", "fast cars");
+        assert "4".equals(conn.hget("idx:corpus:", "docs"));
+        assert "4".equals(conn.hget("idx:doclen:", "test"));
+
+        //词频高并且文档较短的文档相关度更高
+        MyES.RankedResult result = es.searchRanked("redis", null, 300, 2);
+        System.out.println("Ranked results: " + result.results);
+        assert result.total == 3;
+        assert Lists.newArrayList("test", "test2").equals(result.results);
+        result = es.searchRanked("redis", result.cursor, 300, 2);
+        assert Lists.newArrayList("test3").equals(result.results);
+        assert null == result.cursor;
+
+        //同义词和不需要的单词与parseAndSearch的含义相同
+        result = es.searchRanked("memory +cars fast", null, 300, 10);
+        assert Lists.newArrayList("test2", "test4").equals(result.results)
+                || Lists.newArrayList("test4", "test2").equals(result.results);
+        result = es.searchRanked("fast -memory", null, 300, 10);
+        assert Sets.newHashSet("test", "test4").equals(Sets.newHashSet(result.results));
+        assert conn.keys("idx:" + result.id + ":*").isEmpty();
+        result = es.searchRanked("\"redis is fast\"", null, 300, 10);
+        assert Lists.newArrayList("test").equals(result.results);
+
+        //重建索引和删除索引时更新词频以及统计信息
+        es.indexDocument("test", "redis is fast");
+        assert "2".equals(conn.hget("idx:doclen:", "test"));
+        es.deleteIndex("test3");
+        assert "3".equals(conn.hget("idx:corpus:", "docs"));
+        assert null == conn.zscore("idx:tf:redis", "test3");
+        System.out.println("Which passed!");
+    }
+
+    @Test
+    public void testPrefixQuery() {
+        System.out.println("\n----- testPrefixQuery -----");
+        es.setIndexLexicon(true);
+        es.indexDocument("test", "redis replication");
+        es.indexDocument("test2", "redis replica sets");
+        es.indexDocument("test3", "mysql replicated tables");
+        Map<String, String> documents = Maps.newHashMap();
+        documents.put("test4", "theory of relativity");
+        es.indexDocuments(documents);
+        assert conn.zcard("idx:lexicon:") == 9;
+
+        MyES.Query query = es.parse("repl* -table* the*");
+        assert Lists.newArrayList("repl*").equals(query.all.get(0));
+        assert Lists.newArrayList("the*").equals(query.all.get(1));
+        query = es.expandPrefixes(es.parse("repl* -table*"));
+        System.out.println("Expanded: " + query.all + " -" + query.unwanted);
+        assert Sets.newHashSet("replication", "replica", "replicated").equals(Sets.newHashSet(query.all.get(0)));
+        assert Sets.newHashSet("tables").equals(query.unwanted);
+
+        String id = es.parseAndSearch("repl* -table*", 30);
+        assert Sets.newHashSet("test", "test2").equals(conn.smembers("idx:" + id));
+        id = es.parseAndSearch("replica* +the*", 30);
+        assert Sets.newHashSet("test", "test2", "test3", "test4").equals(conn.smembers("idx:" + id));
+        id = es.parseAndSearch("redis nothing*", 30);
+        assert conn.smembers("idx:" + id).isEmpty();
+
+        //展开结果在本地缓存
+        es.setPrefixExpansionLimit(1);
+        id = es.parseAndSearch("repl*", 30);
+        assert conn.scard("idx:" + id) == 3;
+        MyES other = new MyES();
+        other.setConn(conn);
+        other.setPrefixExpansionLimit(1);
+        QueryPlanner planner = new QueryPlanner(0);
+        planner.setConn(conn);
+        planner.setEs(other);
+        other.setQueryPlanner(planner);
+        id = other.parseAndSearch("repl*", 30);
+        assert Sets.newHashSet("test2").equals(conn.smembers("idx:" + id));
+
+        //展开之后只剩一个单词时,结果是单词本身的索引集合,使用缓存或者脚本查询时都不能修改它
+        QueryCache cache = new QueryCache(10, 10);
+        cache.setConn(conn);
+        cache.setEs(es);
+        es.setQueryCache(cache);
+        for (boolean script : new boolean[]{false, true}) {
+            es.setUseScript(script);
+            for (String collapsed : new String[]{"redi* -zzz*", "redis +zzz*"}) {
+                MyES.SearchResult result = es.searchAndSort(collapsed, "", 300, "id", new Page(1, 10));
+                assert "redis".equals(result.id) && result.total == 2;
+                assert conn.ttl("idx:redis") == -1;
+            }
+        }
+        assert conn.zcard("query:cache:lru:") == 0;
+        System.out.println("Which passed!");
+    }
+
+    @Test
+    public void testPhraseQuery() {
+        System.out.println("\n----- testPhraseQuery -----");
+        int[] positions = {3, 4, 200, 70000};
+        byte[] encoded = Proximity.encodePositions(Lists.newArrayList(3, 4, 200, 70000));
+        assert encoded.length == 7;
+        assert Arrays.equals(positions, Proximity.decodePositions(encoded));
+
+        es.setIndexPositions(true);
+        es.indexDocument("test", "redis is a fast in memory store");
+        es.indexDocument("test2", "a fast store for redis data");
+        es.indexDocument("test3", "memory store fast redis was fast");
+        Map<String, String> documents = Maps.newHashMap();
+        documents.put("test4", "is redis fast? redis was fast enough");
+        es.indexDocuments(documents);
+        assert conn.hlen("content:pos:test") == 4;
+
+        MyES.Query query = es.parse("\"redis is fast\" store");
+        assert query.proximities.size() == 1;
+        System.out.println("Canonical: " + query.canonical());
+        assert "fast redis store \"redis _ fast\"".equals(query.canonical());
+
+        //停用词和单个字母都占用一个位置
+        String id = es.parseAndSearch("\"redis is fast\"", 30);
+        assert Sets.newHashSet("test3", "test4").equals(conn.smembers("idx:" + id));
+        id = es.parseAndSearch("\"redis is a fast\"", 30);
+        assert Sets.newHashSet("test").equals(conn.smembers("idx:" + id));
+        id = es.parseAndSearch("\"redis is fast\" -memory", 30);
+        assert Sets.newHashSet("test4").equals(conn.smembers("idx:" + id));
+        id = es.parseAndSearch("\"fast store\"", 30);
+        assert Sets.newHashSet("test2").equals(conn.smembers("idx:" + id));
+
+        //邻近条件与单词的先后顺序无关
+        id = es.parseAndSearch("store NEAR/2 redis", 30);
+        assert Sets.newHashSet("test2", "test3").equals(conn.smembers("idx:" + id));
+        id = es.parseAndSearch("store near/6 redis", 30);
+        assert Sets.newHashSet("test2", "test3", "test").equals(conn.smembers("idx:" + id));
+        id = es.parseAndSearch("memory NEAR/1 store NEAR/3 redis", 30);
+        assert Sets.newHashSet("test3").equals(conn.smembers("idx:" + id));
+
+        //重建索引时替换单词位置
+        es.indexDocument("test4", "redis fast");
+        id = es.parseAndSearch("\"redis fast\"", 30);
+        assert Sets.newHashSet("test4").equals(conn.smembers("idx:" + id));
+        es.deleteIndex("test4");
+        assert !conn.exists("content:pos:test4");
+        System.out.println("Which passed!");
+    }
+
+    @Test
+    public void testTempKeyManager() {
+        System.out.println("\n----- testTempKeyManager -----");
+        TempKeyManager tempKeys = new TempKeyManager();
+        es.setTempKeyManager(tempKeys);
+        es.indexDocument("test", "this is some random content");
+        es.indexDocument("test2", "look at how it is indexed");
+        es.indexDocument("test3", "random content indexed");
+
+        //两个并集和一个交集都是临时结果,只有差集的结果会被保留
+        String id = es.parseAndSearch("random +look content +indexed -look", 30);
+        assert id.startsWith("tmp:");
+        assert Sets.newHashSet("test", "test3").equals(conn.smembers("idx:" + id));
+        assert Sets.newHashSet("idx:" + id).equals(conn.keys("idx:tmp:*"));
+        System.out.println("Created: " + tempKeys.getCreated() + ", deleted: " + tempKeys.getDeleted()
+                + ", expiring: " + tempKeys.getExpiring());
+        assert tempKeys.getCreated() == 4;
+        assert tempKeys.getDeleted() == 3;
+        assert tempKeys.getExpiring() == 1;
+
+        //外层作用域没有保留的结果同样会被删除
+        TempKeyManager.Scope scope = tempKeys.open();
+        String kept = es.parseAndSearch("random content", 30);
+        String dropped = es.parseAndSearch("random indexed", 30);
+        assert tempKeys.getPending() == 2;
+        scope.keep("idx:" + kept);
+        scope.release(conn);
+        assert tempKeys.getPending() == 0;
+        assert conn.exists("idx:" + kept);
+        assert !conn.exists("idx:" + dropped);
+        assert tempKeys.countLive(conn, "idx:tmp:*", 100) == 2;
+        System.out.println("Which passed!");
+    }
+
+    @Test
+    public void testParallelUnion() throws Exception {
+        System.out.println("\n----- testParallelUnion -----");
+        es.indexDocument("test", "this is some random content");
+        es.indexDocument("test2", "look at how it is indexed");
+        es.indexDocument("test3", "random content indexed");
+        es.indexDocument("test4", "other words entirely");
+        String query = "random +look content +indexed indexed +entirely";
+        Set<String> expected = conn.smembers("idx:" + es.parseAndSearch(query, 30));
+
+        JedisPool pool = new JedisPool(new GenericObjectPoolConfig(), "192.168.1.105", 6379, 2000, "123456", 6);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            TempKeyManager tempKeys = new TempKeyManager();
+            es.setTempKeyManager(tempKeys);
+            es.setPool(pool);
+            es.setSearchExecutor(executor);
+            String id = es.parseAndSearch(query, 30);
+            System.out.println("Results: " + conn.smembers("idx:" + id));
+            assert expected.equals(conn.smembers("idx:" + id));
+            assert Sets.newHashSet("test2", "test3").equals(expected);
+            //在工作线程中创建的并集同样会在查询结束时删除
+            assert tempKeys.getCreated() == 4;
+            assert tempKeys.getDeleted() == 3;
+            assert Sets.newHashSet("idx:" + id).equals(conn.keys("idx:tmp:*"));
+            conn.del("idx:" + id);
+
+            //其中一个并集失败时,其他已经完成的并集同样会被删除
+            ExecutorService failing = new ThreadPoolExecutor(4, 4, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>()) {
+                private int submitted;
+
+                @Override
+                protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+                    if (++submitted != 2) {
+                        return super.newTaskFor(callable);
+                    }
+                    return new FutureTask<T>(new Callable<T>() {
+                        public T call() {
+                            throw new IllegalStateException("union failed");
+                        }
+                    });
+                }
+            };
+            try {
+                es.setSearchExecutor(failing);
+                es.parseAndSearch(query, 30);
+                assert false;
+            } catch (RuntimeException e) {
+                System.out.println("Failed: " + e.getMessage());
+                assert e.getCause() instanceof IllegalStateException;
+            } finally {
+                failing.shutdown();
+            }
+            assert tempKeys.getPending() == 0;
+            assert conn.keys("idx:tmp:*").isEmpty();
+        } finally {
+            executor.shutdown();
+            pool.close();
+        }
+        System.out.println("Which passed!");
+    }
+
+    @Test
+    public void testSearchWithQueryCache() {
+        System.out.println("\n----- testSearchWithQueryCache -----");
+        System.out.println("And now let's test searching with query cache...");
+        es.indexDocument("test", CONTENT);
+        es.indexDocument("test2", CONTENT);
+
+        QueryCache cache = new QueryCache(1, 10);
+        cache.setConn(conn);
+        cache.setEs(es);
+        es.setQueryCache(cache);
+
+        //单词顺序不同但含义相同的查询会得到同一个结果
+        assert es.parse("content +random indexed").canonical()
+                .equals(es.parse("indexed random +content").canonical());
+        MyES.SearchResult result = es.searchAndSort("content +random indexed", "", 300, "id", new Page(1, 10));
+        assert result.total == 2;
+        MyES.SearchResult cached = es.searchAndSort("indexed random +content", "", 300, "id", new Page(1, 10));
+        assert result.id.equals(cached.id);
+        assert cached.total == 2;
+
+        //超过缓存容量之后,最久没有被使用的结果会被删除
+        MyES.SearchResult other = es.searchAndSort("content look", "", 300, "id", new Page(1, 10));
+        assert !other.id.equals(result.id);
+        assert !conn.exists("idx:" + result.id);
+        assert conn.zcard("query:cache:lru:") == 1;
+
+        //查询计划去掉索引为空的单词之后只剩一个单词时,结果是单词本身的索引集合,不能被缓存
+        QueryPlanner planner = new QueryPlanner(60000);
+        planner.setConn(conn);
+        planner.setEs(es);
+        es.setQueryPlanner(planner);
+        for (String query : new String[]{"content -missing", "content +missing", "content +content"}) {
+            MyES.SearchResult single = es.searchAndSort(query, "", 300, "id", new Page(1, 10));
+            assert "content".equals(single.id) && single.total == 2;
+            assert conn.exists("idx:content") && conn.ttl("idx:content") == -1;
+        }
+        assert conn.zcard("query:cache:lru:") == 1;
+        System.out.println("Which passed!");
+    }
+
+    @Test
+    public void testIndexFeed() {
+        System.out.println("\n----- testIndexFeed -----");
+        IndexFeed feed = new IndexFeed(3);
+        feed.setConn(conn);
+        es.setIndexFeed(feed);
+        es.setIndexLexicon(true);
+        QueryCache cache = new QueryCache(10, 10);
+        cache.setConn(conn);
+        cache.setEs(es);
+        es.setQueryCache(cache);
+
+        es.indexDocument("test", CONTENT);
+        es.indexDocument("test", "random words");
+        es.deleteIndex("test");
+        IndexFeed.Batch batch = feed.poll("cache", 10);
+        System.out.println(batch.changes);
+        assert !batch.truncated && batch.changes.size() == 3;
+        assert batch.changes.get(0).added.equals(es.tokenize(CONTENT));
+        assert batch.changes.get(1).added.equals(Sets.newHashSet("words"));
+        assert batch.changes.get(1).removed.equals(Sets.newHashSet("content", "look", "indexed"));
+        assert batch.changes.get(2).removed.equals(Sets.newHashSet("random", "words"));
+        feed.ack("cache", batch.lastSeq());
+        assert feed.poll("cache", 10).changes.isEmpty();
+
+        //批量创建索引同样会追加变更记录,超出长度的旧记录被删除
+        Map<String, String> documents = Maps.newLinkedHashMap();
+        documents.put("test", CONTENT);
+        documents.put("test2", "look content");
+        es.indexDocuments(documents);
+        assert feed.read(0, 10).size() == 3;
+        assert feed.poll("late", 10).truncated;
+        feed.ack("cache", feed.poll("cache", 10).lastSeq());
+
+        //只有包含发生了变化的单词的查询结果会失效
+        String indexed = es.searchAndSort("content indexed", "", 300, "id", new Page(1, 10)).id;
+        String prefix = es.searchAndSort("loo* content", "", 300, "id", new Page(1, 10)).id;
+        String random = es.searchAndSort("random +content", "", 300, "id", new Page(1, 10)).id;
+        es.indexDocument("test2", "look content lookup");
+        batch = feed.poll("cache", 10);
+        assert batch.words().equals(Sets.newHashSet("lookup"));
+        assert cache.invalidate(batch.words()) == 1;
+        feed.ack("cache", batch.lastSeq());
+        assert conn.exists("idx:" + indexed) && conn.exists("idx:" + random);
+        assert !conn.exists("idx:" + prefix);
+
+        //与完整单词相同的前缀查询同样会失效
+        String whole = es.searchAndSort("lookup* content", "", 300, "id", new Page(1, 10)).id;
+        assert conn.exists("idx:" + whole);
+        es.indexDocument("test2", "look content");
+        batch = feed.poll("cache", 10);
+        assert cache.invalidate(batch.words()) == 1;
+        feed.ack("cache", batch.lastSeq());
+        assert !conn.exists("idx:" + whole) && conn.exists("idx:" + indexed);
+        System.out.println("Which passed!");
+    }
+
+    @Test
+    public void testSearchMetrics() {
+        System.out.println("\n----- testSearchMetrics -----");
+        es.setIndexLexicon(true);
+        es.indexDocument("test", CONTENT);
+        es.indexDocument("test2", "look content");
+        conn.hset("kb:doc:test", "id", "1");
+        conn.hset("kb:doc:test2", "id", "2");
+        HistogramMetrics metrics = new HistogramMetrics(0, TimeUnit.MILLISECONDS, 2);
+        es.setSearchMetrics(metrics);
+
+        es.searchAndFetch("look +random content -indexed", "", 300, "id", new Page(1, 10), "id");
+        List<QueryTrace> slow = metrics.getSlowQueries();
+        System.out.println(slow.get(0));
+        assert slow.size() == 1;
+        List<String> stages = Lists.newArrayList();
+        for (QueryTrace.Stage stage : slow.get(0).getStages()) {
+            stages.add(stage.name);
+        }
+        //searchAndFetch内部的searchAndSort不会产生另一条记录
+        assert Lists.newArrayList("refresh", "parse", "union", "intersect", "difference", "sort", "fetch")
+                .equals(stages);
+        assert slow.get(0).getStages().get(2).cardinality == 2;
+        assert slow.get(0).getStages().get(4).cardinality == 1;
+        assert slow.get(0).getRoundTrips() == 6;
+        assert "content look+random -indexed".equals(slow.get(0).getQuery().canonical());
+
+        //设置了查询计划时记录查询计划
+        QueryPlanner planner = new QueryPlanner(0);
+        planner.setConn(conn);
+        planner.setEs(es);
+        es.setQueryPlanner(planner);
+        es.parseAndSearch("random content", 30);
+        es.parseAndSearch("look content", 30);
+        slow = metrics.getSlowQueries();
+        assert slow.size() == 2;
+        assert null != slow.get(0).getPlan();
+        assert metrics.getLatencies().get(HistogramMetrics.TOTAL).getTotalCount() == 3;
+        assert metrics.percentile("sort", 99) > 0;
+
+        //前缀展开、获取索引大小、查询结果缓存以及按照字段和相关度排序同样会被记录
+        es.parseAndSearch("loo* content", 30);
+        System.out.println(metrics.getSlowQueries().get(0));
+        assert Lists.newArrayList("parse", "prefix", "estimate", "plan")
+                .equals(stageNames(metrics.getSlowQueries().get(0)));
+        QueryCache cache = new QueryCache(10, 10);
+        cache.setConn(conn);
+        cache.setEs(es);
+        es.setQueryCache(cache);
+        es.searchAndSort("random content", "", 300, "id", new Page(1, 10));
+        List<String> names = stageNames(metrics.getSlowQueries().get(0));
+        assert names.contains("cache-get") && names.contains("cache-put");
+        es.searchAndRank("random content", null, 300, "id", 10);
+        names = stageNames(metrics.getSlowQueries().get(0));
+        assert names.contains("cache-get") && names.contains("rank") && names.contains("page");
+        es.searchRanked("random content", null, 300, 10);
+        assert stageNames(metrics.getSlowQueries().get(0)).contains("score");
+        System.out.print(metrics.summary());
+        System.out.println("Which passed!");
+    }
+
+    private static List<String> stageNames(QueryTrace trace) {
+        List<String> names = Lists.newArrayList();
+        for (QueryTrace.Stage stage : trace.getStages()) {
+            names.add(stage.name);
+        }
+        return names;
+    }
+
     @Test
     public void testSearchWithZsort() {
         System.out.println("\n----- testSearchWithZsort -----");
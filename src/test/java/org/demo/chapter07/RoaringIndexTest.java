@@ -0,0 +1,100 @@
+package org.demo.chapter07;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 位图索引测试
+ */
+public class RoaringIndexTest {
+
+    private Jedis conn;
+    private MyES es;
+    private RoaringIndex index;
+    private ExecutorService executor;
+
+    @Before
+    public void init() {
+        conn = new Jedis("192.168.1.105");
+        conn.auth("123456");
+        conn.select(6);
+        conn.flushDB();
+
+        es = new MyES();
+        es.setConn(conn);
+        index = new RoaringIndex();
+        index.setConn(conn);
+        index.setEs(es);
+    }
+
+    @After
+    public void close() {
+        if (null != executor) {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testParseAndSearch() {
+        System.out.println("\n----- testParseAndSearch -----");
+        Map<String, String> documents = Maps.newLinkedHashMap();
+        documents.put("1", "this is some random content, look at how it is indexed.");
+        documents.put("2", "some fresh content");
+        documents.put("3", "random look");
+        index.indexDocuments(documents);
+        executor = Executors.newFixedThreadPool(2);
+        index.setExecutor(executor);
+
+        //与集合索引使用相同的查询语句和结果
+        String id = index.parseAndSearch("content", 30);
+        assert Sets.newHashSet("1", "2").equals(conn.smembers("idx:" + id));
+        id = index.parseAndSearch("content +look random", 30);
+        assert Sets.newHashSet("1", "3").equals(conn.smembers("idx:" + id));
+        id = index.parseAndSearch("content -fresh", 30);
+        assert Sets.newHashSet("1").equals(conn.smembers("idx:" + id));
+        id = index.parseAndSearch("content missing", 30);
+        assert !conn.exists("idx:" + id);
+        assert null == index.parseAndSearch("-content", 30);
+
+        //只修改发生了变化的单词的位图
+        index.indexDocument("1", "some fresh content");
+        assert index.evaluate(es.parse("random")).getCardinality() == 1;
+        index.deleteIndex("3");
+        assert !conn.exists("bm:idx:random");
+        assert !conn.exists("bm:word:3");
+        System.out.println("Which passed!");
+    }
+
+    @Test
+    public void testDocDictionary() {
+        System.out.println("\n----- testDocDictionary -----");
+        TermDictionary docs = new TermDictionary("doc");
+        docs.setConn(conn);
+        index.setDocDictionary(docs);
+        TermDictionary terms = new TermDictionary("term");
+        terms.setConn(conn);
+        es.setTermDictionary(terms);
+
+        index.indexDocument("test", "this is some random content");
+        index.indexDocument("test2", "look at how it is indexed content");
+        assert conn.exists("bm:idx:" + terms.id("content"));
+
+        Set<String> test = Sets.newHashSet("test", "test2");
+        index.setMaterializeBatchSize(1);
+        String id = index.parseAndSearch("content", 30);
+        assert test.equals(conn.smembers("idx:" + id));
+        id = index.parseAndSearch("content -look", 30);
+        assert Sets.newHashSet("test").equals(conn.smembers("idx:" + id));
+        System.out.println("Which passed!");
+    }
+
+}
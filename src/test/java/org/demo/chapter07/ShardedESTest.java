@@ -0,0 +1,207 @@
+package org.demo.chapter07;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 分片索引测试
+ * 每个分片都是在本机随机端口上启动的一个redis-server进程(不持久化),测试结束时关闭,
+ * redis-server的路径可以通过-Dredis.server指定,默认从PATH中查找.
+ */
+public class ShardedESTest {
+
+    private final static int SHARDS = 3;
+
+    private List<Process> processes;
+    private List<JedisPool> pools;
+    private ExecutorService executor;
+    private ShardedES es;
+
+    @Before
+    public void init() {
+        processes = Lists.newArrayList();
+        pools = Lists.newArrayList();
+        for (int i = 0; i < SHARDS; i++) {
+            int port = freePort();
+            processes.add(startRedis(port));
+            pools.add(new JedisPool(new GenericObjectPoolConfig(), "127.0.0.1", port, 2000));
+            awaitReady(pools.get(i));
+        }
+        executor = Executors.newFixedThreadPool(SHARDS);
+        es = new ShardedES(pools, executor);
+    }
+
+    @After
+    public void destroy() {
+        executor.shutdown();
+        for (JedisPool pool : pools) {
+            pool.close();
+        }
+        for (Process process : processes) {
+            process.destroy();
+        }
+    }
+
+    //通过绑定0端口让操作系统分配一个空闲端口
+    private static int freePort() {
+        try {
+            ServerSocket socket = new ServerSocket(0);
+            try {
+                return socket.getLocalPort();
+            } finally {
+                socket.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Process startRedis(int port) {
+        try {
+            return new ProcessBuilder(System.getProperty("redis.server", "redis-server"),
+                    "--port", String.valueOf(port), "--bind", "127.0.0.1",
+                    "--save", "", "--appendonly", "no", "--dir", System.getProperty("java.io.tmpdir"))
+                    .redirectErrorStream(true)
+                    .redirectOutput(new File(System.getProperty("java.io.tmpdir"), "redis-shard-" + port + ".log"))
+                    .start();
+        } catch (IOException e) {
+            throw new IllegalStateException("无法启动redis-server,可以通过-Dredis.server指定路径", e);
+        }
+    }
+
+    //等待redis-server开始接受连接
+    private static void awaitReady(JedisPool pool) {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try {
+                Jedis conn = pool.getResource();
+                conn.ping();
+                conn.close();
+                return;
+            } catch (JedisConnectionException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(interrupted);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSearchAndSort() {
+        System.out.println("\n----- testSearchAndSort -----");
+        Set<Integer> used = Sets.newHashSet();
+        for (int i = 0; i < 20; i++) {
+            String docid = "doc" + i;
+            es.indexDocument(docid, i % 2 == 0 ? "some random content" : "other content");
+            used.add(es.shard(docid));
+            //文档散列与索引保存在同一个分片上
+            Map<String, String> values = Maps.newHashMap();
+            values.put("id", String.valueOf(i));
+            values.put("title", "title" + (char) ('a' + i));
+            Jedis conn = es.pool(docid).getResource();
+            conn.hmset("kb:doc:" + docid, values);
+            conn.close();
+        }
+        assert used.size() == SHARDS;
+
+        List<String> ids = es.parseAndSearch("random content", 30);
+        assert ids.size() == SHARDS;
+        long total = 0;
+        for (int i = 0; i < SHARDS; i++) {
+            Jedis conn = pools.get(i).getResource();
+            total += conn.scard("idx:" + ids.get(i));
+            conn.close();
+        }
+        assert total == 10;
+
+        //合并各个分片的结果之后再分页
+        ShardedES.ShardedResult result = es.searchAndSort("content", null, 300, "-id", 0, 5);
+        assert result.total == 20;
+        assert Lists.newArrayList("doc19", "doc18", "doc17", "doc16", "doc15").equals(result.results);
+        result = es.searchAndSort("content", result.ids, 300, "-id", 5, 5);
+        assert Lists.newArrayList("doc14", "doc13", "doc12", "doc11", "doc10").equals(result.results);
+        //只有一个单词时分片返回的是单词本身的索引集合,翻页不会为它设置生存时间
+        for (int i = 0; i < SHARDS; i++) {
+            Jedis conn = pools.get(i).getResource();
+            assert conn.ttl("idx:content") == -1;
+            conn.close();
+        }
+
+        result = es.searchAndSort("random content", null, 300, "title", 2, 3);
+        assert result.total == 10;
+        assert Lists.newArrayList("doc4", "doc6", "doc8").equals(result.results);
+
+        es.deleteIndex("doc4");
+        result = es.searchAndSort("random content", null, 300, "title", 2, 3);
+        assert Lists.newArrayList("doc6", "doc8", "doc10").equals(result.results);
+        System.out.println("Which passed!");
+    }
+
+    @Test
+    public void testShardConfiguration() {
+        System.out.println("\n----- testShardConfiguration -----");
+        //每个分片使用模板的配置,这里开启词频和位置索引
+        MyES template = new MyES();
+        template.setIndexTermFrequency(true);
+        template.setIndexPositions(true);
+        es = new ShardedES(pools, executor, template);
+        for (int i = 0; i < 20; i++) {
+            es.indexDocument("doc" + i, "redis is fast");
+        }
+        for (int i = 0; i < SHARDS; i++) {
+            Jedis conn = pools.get(i).getResource();
+            assert conn.exists("idx:corpus:");
+            conn.close();
+        }
+
+        //绑定了连接的组件不能复制到其他分片
+        template.setQueryPlanner(new QueryPlanner(60000));
+        try {
+            new ShardedES(pools, executor, template);
+            assert false;
+        } catch (IllegalStateException e) {
+            System.out.println("Expected: " + e.getMessage());
+        }
+
+        //通过ShardFactory为每个分片创建查询计划
+        es = new ShardedES(pools, executor, new ShardedES.ShardFactory() {
+            public MyES create(Jedis conn, int shard) {
+                MyES es = new MyES();
+                es.setConn(conn);
+                QueryPlanner planner = new QueryPlanner(60000);
+                planner.setConn(conn);
+                planner.setEs(es);
+                es.setQueryPlanner(planner);
+                return es;
+            }
+        });
+        es.indexDocument("doc9", "redis is slow");
+        List<String> ids = es.parseAndSearch("redis", 30);
+        assert ids.size() == SHARDS;
+        System.out.println("Which passed!");
+    }
+
+}
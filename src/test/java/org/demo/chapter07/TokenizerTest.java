@@ -0,0 +1,64 @@
+package org.demo.chapter07;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 分词器测试
+ */
+public class TokenizerTest {
+
+    private Tokenizer tokenizer = new Tokenizer(Sets.newHashSet("is", "it", "at", "how", "this", "tis"));
+
+    @Test
+    public void testTokenize() {
+        System.out.println("\n----- testTokenize -----");
+        Set<String> tokens = tokenizer.tokenize("This is some random Content, look at how it is INDEXED.");
+        System.out.println("Those tokens are: " + Arrays.toString(tokens.toArray()));
+        assert Sets.newHashSet("some", "random", "content", "look", "indexed").equals(tokens);
+
+        //剔除单词前后的单引号,剔除之后的停用词以及单个字符的单词也会被忽略
+        tokens = tokenizer.tokenize("'quoted' don't 'tis a b' ''x'' '' rock'n'roll");
+        assert Sets.newHashSet("quoted", "don't", "rock'n'roll").equals(tokens);
+    }
+
+    @Test
+    public void testTokenPosition() {
+        System.out.println("\n----- testTokenPosition -----");
+        final List<String> words = Lists.newArrayList();
+        final List<Integer> positions = Lists.newArrayList();
+        tokenizer.tokenize("look at how random content", new Tokenizer.TokenCallback() {
+            public void token(char[] buffer, int offset, int length, int position) {
+                words.add(new String(buffer, offset, length));
+                positions.add(position);
+            }
+        });
+        //停用词虽然被忽略,但是仍然占用位置
+        assert Lists.newArrayList("look", "random", "content").equals(words);
+        assert Lists.newArrayList(0, 3, 4).equals(positions);
+
+        //单个字符同样占用位置
+        positions.clear();
+        tokenizer.tokenize("redis x fast", new Tokenizer.TokenCallback() {
+            public void token(char[] buffer, int offset, int length, int position) {
+                positions.add(position);
+            }
+        });
+        assert Lists.newArrayList(0, 2).equals(positions);
+    }
+
+    @Test
+    public void testStopWord() {
+        System.out.println("\n----- testStopWord -----");
+        char[] buffer = "xthisx".toCharArray();
+        assert tokenizer.isStopWord(buffer, 1, 4);
+        assert !tokenizer.isStopWord(buffer, 1, 3);
+        assert !tokenizer.isStopWord(buffer, 0, 5);
+    }
+
+}